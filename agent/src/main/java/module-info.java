@@ -2,6 +2,8 @@ module org.elasticsearch.instrumentation.agent {
     requires java.instrument;
     requires org.objectweb.asm.util;
     requires java.compiler;
+    requires java.management;
+    requires jdk.jfr;
 
     exports org.elasticsearch;
 }
\ No newline at end of file
@@ -1,20 +1,182 @@
 package org.elasticsearch;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static org.elasticsearch.Util.delegate;
 import static org.elasticsearch.Util.propagateDelegation;
 
+/**
+ * Watches {@link #pathToWatch} (a file) and calls {@link #processFileChanges()} when it changes: once on
+ * {@link #start()} if the file exists, then on each change, from a daemon thread. Subclasses implement the hooks.
+ * <p>
+ * We watch the parent directory (that is what a {@link WatchService} can watch), and only call the hook when the
+ * events stopped for {@link #SETTLE_MILLIS} and the file actually changed, so the many events of an editor saving a
+ * file, or of an atomic move, end up in a single call. Writers that can take longer should write a temporary file and
+ * move it in place. The file changed if its attributes (modified time, size, file key) or its content (a SHA-256 of
+ * it, read again on each event) did: a rewrite of the same size within the granularity of the modified time (a
+ * second on some file systems) is still seen. File tests go through {@link Files#readAttributes}, not
+ * {@code Files.exists}, which is instrumented.
+ */
 public class AbstractFileWatchingService {
 
+    static final long SETTLE_MILLIS = 100;
+
+    private record FileUpdateState(long lastModified, long size, Object fileKey, byte[] digest) {
+        boolean sameAs(FileUpdateState other) {
+            return other != null && lastModified == other.lastModified && size == other.size
+                    && Objects.equals(fileKey, other.fileKey) && MessageDigest.isEqual(digest, other.digest);
+        }
+    }
+
     private final Delegator delegator;
     public Path pathToWatch = Path.of("./");
 
+    private WatchService watchService;
+    private Thread watcherThread;
+    private FileUpdateState fileUpdateState;
+
     public AbstractFileWatchingService(Delegator delegator) {
         this.delegator = delegator;
     }
 
+    /**
+     * Called when the file is there on start, and after each change. Exceptions are reported, and the watcher goes on.
+     */
+    protected void processFileChanges() throws IOException {}
+
+    /**
+     * Called on start when the file does not exist (yet). Exceptions are reported, and the watcher goes on.
+     */
+    protected void processInitialFileMissing() throws IOException {}
+
+    /**
+     * @throws IOException if the directory of the file cannot be watched; errors processing the file are only reported
+     */
+    public synchronized void start() throws IOException {
+        if (watcherThread != null) {
+            return;
+        }
+        var file = pathToWatch.toAbsolutePath();
+        var directory = Objects.requireNonNull(file.getParent(), "cannot watch a root directory");
+        var watching = file.getFileSystem().newWatchService();
+        try {
+            directory.register(watching, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException | RuntimeException e) {
+            watching.close();
+            throw e;
+        }
+        try {
+            if (fileChanged(file)) {
+                processFileChanges();
+            } else {
+                processInitialFileMissing();
+            }
+        } catch (Exception e) {
+            // Same as a change that cannot be processed: the next one may be fine
+            System.out.println("[Agent] Error processing " + file + " on start: " + e);
+        }
+        watchService = watching;
+        watcherThread = Thread.ofPlatform()
+                .daemon()
+                .name("file-watcher[" + file.getFileName() + "]")
+                .start(() -> watch(file, watching));
+    }
+
+    public synchronized void stop() {
+        if (watcherThread == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.out.println("[Agent] Cannot close watch service for " + pathToWatch + ": " + e);
+        }
+        watcherThread.interrupt();
+        watcherThread = null;
+        watchService = null;
+    }
+
+    private void watch(Path file, WatchService watching) {
+        try {
+            while (true) {
+                boolean ours = false;
+                // Wait for the burst of events of a write to settle, so we do not read the file half written
+                for (var key = watching.take(); key != null; key = watching.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) {
+                    ours |= key.pollEvents().stream().anyMatch(e -> file.getFileName().equals(e.context()));
+                    if (key.reset() == false) {
+                        // The directory is gone (deleted, unmounted): no more events will ever come
+                        System.out.println("[Agent] Cannot watch " + file.getParent() + " any more, stopped watching "
+                                + file);
+                        watching.close();
+                        return;
+                    }
+                }
+                if (ours && fileChanged(file)) {
+                    try {
+                        processFileChanges();
+                    } catch (Exception e) {
+                        System.out.println("[Agent] Error processing changes to " + file + ": " + e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        } catch (IOException e) {
+            System.out.println("[Agent] Cannot close watch service for " + file + ": " + e);
+        }
+    }
+
+    /**
+     * @return whether the file exists, and changed since the last time we looked
+     */
+    private boolean fileChanged(Path file) {
+        var previous = fileUpdateState;
+        try {
+            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            fileUpdateState = new FileUpdateState(
+                    attributes.lastModifiedTime().toMillis(),
+                    attributes.size(),
+                    attributes.fileKey(),
+                    digest(file)
+            );
+        } catch (NoSuchFileException e) {
+            fileUpdateState = null;
+        } catch (IOException e) {
+            System.out.println("[Agent] Cannot read attributes of " + file + ": " + e);
+            return false;
+        }
+        return fileUpdateState != null && fileUpdateState.sameAs(previous) == false;
+    }
+
+    private static byte[] digest(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (var in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
     public void someSensitiveMethod() {
         if (delegator.delegate(() -> Files.exists(pathToWatch))) {
             System.out.println("Watching " + pathToWatch);
@@ -40,5 +202,17 @@ public class AbstractFileWatchingService {
             }).start();
         });
     }
-}
 
+    /**
+     * {@link #someSensitiveMethodOnDifferentThread()}, with the delegation carried over by a {@link Delegation}
+     * executor instead of by hand
+     */
+    public void someSensitiveMethodOnExecutor(ExecutorService executor) {
+        var delegatingExecutor = Delegation.executorService(executor);
+        delegate(c -> delegatingExecutor.execute(() -> {
+            if (Files.exists(pathToWatch)) {
+                System.out.println("Watching " + pathToWatch);
+            }
+        }));
+    }
+}
@@ -8,11 +8,13 @@ import java.util.Set;
 import static org.objectweb.asm.Opcodes.ASM9;
 
 public class AlreadyInstrumentedMethodChecker extends ClassVisitor {
+    private final String className;
     private final String methodName;
     boolean instrumentationNeeded = false;
 
-    public AlreadyInstrumentedMethodChecker(String methodName) {
+    public AlreadyInstrumentedMethodChecker(String className, String methodName) {
         super(ASM9);
+        this.className = className;
         this.methodName = methodName;
     }
 
@@ -26,7 +28,10 @@ public class AlreadyInstrumentedMethodChecker extends ClassVisitor {
         //System.out.println("[Agent] AlreadyInstrumentedMethodChecker visiting method " + name);
         if (methodName.equals(name)) {
             var recordingVisitor = new RecordingMethodVisitor();
-            InstrumentMethodClassVisitor.InstrumentingMethodVisitor.prologue(recordingVisitor);
+            InstrumentMethodClassVisitor.InstrumentingMethodVisitor.prologue(
+                    recordingVisitor,
+                    CheckerFactory.entitlementFor(className, name, desc)
+            );
 
             return new CheckMethodVisitor(
                     recordingVisitor.getRecordedInstructions(),
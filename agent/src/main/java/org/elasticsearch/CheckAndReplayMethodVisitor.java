@@ -83,6 +83,15 @@ class CheckAndReplayMethodVisitor extends MethodVisitor {
         check(-1,  x -> labelUtil.getLabel(label).equals(x));
     }
 
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        deferredMethodVisitor.visitFieldInsn(opcode, owner, name, descriptor);
+        if (failing || cursor >= instructionsToMatch.size()) {
+            return;
+        }
+        check(opcode, x -> x.equals(owner + name + descriptor));
+    }
+
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
         deferredMethodVisitor.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
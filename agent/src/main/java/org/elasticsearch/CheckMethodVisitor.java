@@ -69,6 +69,14 @@ class CheckMethodVisitor extends MethodVisitor {
         check(-1, x -> labelUtil.getLabel(label).equals(x));
     }
 
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        if (failing || cursor >= instructionsToMatch.size()) {
+            return;
+        }
+        check(opcode, x -> x.equals(owner + name + descriptor));
+    }
+
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
         if (failing || cursor >= instructionsToMatch.size()) {
@@ -1,47 +1,200 @@
 package org.elasticsearch;
 
 import java.lang.invoke.*;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 
+import static java.lang.StackWalker.Option.RETAIN_CLASS_REFERENCE;
+
 public class CheckerFactory {
 
-    public static Map<String, List<Class<?>>> methodsToInterfaces;
+    public static Map<MethodSignature, List<Class<?>>> methodsToInterfaces;
+
+    /**
+     * The keys of {@link #methodsToInterfaces}, compiled for fast lookup by the class visitors
+     */
+    static MethodMatcher inheritanceMethods = MethodMatcher.EMPTY;
+
+    /**
+     * The entitlement each directly instrumented method requires, by class and signature (see
+     * {@link InstrumentationAgent#entitlements()})
+     */
+    static Map<InstrumentationAgent.MethodKey, Entitlement> entitlements = Map.of();
+
+    /**
+     * The entitlement each inheritance method requires, by signature only: it is checked in every subtype of the types
+     * in {@link #methodsToInterfaces} (see {@link InstrumentationAgent#inheritanceEntitlements()})
+     */
+    static Map<MethodSignature, Entitlement> inheritanceEntitlements = Map.of();
 
-    static MethodHandle nullCheck$mh;
+    private static final MethodHandle CALLER_CLASS$mh;
+    private static final MethodHandle CHECK$mh;
+    private static final MethodHandle LINK$mh;
+
+    /**
+     * The argument-aware checks of {@link EntitlementChecker}, {@code (Class, Entitlement, T)V}, by argument type
+     * {@code T}: see {@link #checkFor}.
+     */
+    private static final Map<Class<?>, MethodHandle> ARGUMENT_CHECKS;
 
     static {
         try {
-            // TODO: this should be dynamic too, passed to the bootstrap function, as we have different signatures in reality
-            nullCheck$mh = MethodHandles.lookup().findStatic(CheckerFactory.class, "nullCheck", MethodType.methodType(void.class, EntitlementChecker.class, Class.class));
-            // Or alternatively, use a nullCheck method defined on EntitlementChecker (less complex, less desirable)
-            //nullCheck$mh = MethodHandles.lookup().findVirtual(EntitlementChecker.class, "nullCheck", MethodType.methodType(void.class, Class.class));
-
+            var lookup = MethodHandles.lookup();
+            CALLER_CLASS$mh = lookup.findStatic(CheckerFactory.class, "callerClass", MethodType.methodType(Class.class));
+            CHECK$mh = lookup.findVirtual(EntitlementChecker.class, "check", MethodType.methodType(void.class, Class.class, Entitlement.class));
+            LINK$mh = lookup.findVirtual(PolicyCallSite.class, "link", MethodType.methodType(MethodHandle.class));
+            ARGUMENT_CHECKS = Map.of(
+                    Path.class,
+                    lookup.findVirtual(EntitlementChecker.class, "checkPath", MethodType.methodType(void.class, Class.class, Entitlement.class, Path.class))
+            );
         } catch (NoSuchMethodException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
 
-    static void nullCheck(EntitlementChecker instance, Class<?> callerClass) {}
+    /**
+     * Guards the targets of the {@link PolicyCallSite}s linked against the current policy; invalidated (and replaced)
+     * by {@link #policyChanged}.
+     */
+    private static volatile SwitchPoint policySwitchPoint = new SwitchPoint();
+
+    static void setMethodsToInterfaces(Map<MethodSignature, List<Class<?>>> methodsToInterfaces) {
+        CheckerFactory.methodsToInterfaces = methodsToInterfaces;
+        CheckerFactory.inheritanceMethods = MethodMatcher.of(methodsToInterfaces.keySet());
+    }
+
+    static void setEntitlements(Map<InstrumentationAgent.MethodKey, Entitlement> entitlements,
+                                Map<MethodSignature, Entitlement> inheritanceEntitlements) {
+        CheckerFactory.entitlements = entitlements;
+        CheckerFactory.inheritanceEntitlements = inheritanceEntitlements;
+    }
+
+    /**
+     * Used at instrumentation time, to resolve the entitlement the generated check of a direct target passes along.
+     *
+     * @param className the class name, either in binary or internal form
+     */
+    static Entitlement entitlementFor(String className, String methodName, String methodDescriptor) {
+        return entitlements.getOrDefault(
+                new InstrumentationAgent.MethodKey(className.replace('/', '.'), methodName, methodDescriptor),
+                Entitlement.UNCLASSIFIED
+        );
+    }
+
+    /**
+     * Used at instrumentation (and linkage) time, to resolve the entitlement the check of an inheritance method passes
+     * along.
+     */
+    static Entitlement inheritanceEntitlementFor(String methodName, String methodDescriptor) {
+        return inheritanceEntitlements.getOrDefault(new MethodSignature(methodName, methodDescriptor),
+                Entitlement.UNCLASSIFIED);
+    }
+
+    /**
+     * Called after a new policy is published: the inheritance check sites are relinked against it on their next call.
+     * This deoptimizes the compiled code depending on the current links, so it is meant for policy changes, not for
+     * anything on the check path.
+     */
+    static synchronized void policyChanged() {
+        var invalidated = policySwitchPoint;
+        policySwitchPoint = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[] { invalidated });
+    }
+
+    /**
+     * The caller of the instrumented method, computed first thing by the checks call sites are linked to (see
+     * {@link #checkFor}). The method handle frames between this and the instrumented method are hidden from the stack
+     * walker, so the caller is two frames up.
+     */
+    static Class<?> callerClass() {
+        return StackWalker.getInstance(RETAIN_CLASS_REFERENCE)
+                .walk(
+                        frames -> frames.skip(2) // Skip this method and the instrumented method
+                                .findFirst()
+                                .map(StackWalker.StackFrame::getDeclaringClass)
+                )
+                .orElse(Util.NO_CLASS);
+    }
+
+    /**
+     * The check for a call site of {@code type} (the receiver and arguments of the instrumented method): the
+     * argument-aware check for its first argument one of {@link #ARGUMENT_CHECKS} takes, e.g. the {@code Path} of
+     * {@code FileSystemProvider.exists}, or the plain check. The entitlement is bound, the caller class is computed
+     * first ({@link #callerClass}), and the other arguments are dropped; the checked one is passed as it is, never boxed.
+     */
+    static MethodHandle checkFor(MethodType type, Entitlement entitlement) {
+        var checker = EntitlementCheckerHandle.instance();
+        for (int i = 0; i < type.parameterCount(); ++i) {
+            var argumentType = type.parameterType(i);
+            for (var argumentCheck : ARGUMENT_CHECKS.entrySet()) {
+                if (argumentCheck.getKey().isAssignableFrom(argumentType)) {
+                    // (Class, T)V, then (Class, type...)V
+                    var check = MethodHandles.insertArguments(argumentCheck.getValue().bindTo(checker), 1, entitlement)
+                            .asType(MethodType.methodType(void.class, Class.class, argumentType));
+                    check = MethodHandles.dropArgumentsToMatch(check, 1, type.parameterList(), i);
+                    return MethodHandles.foldArguments(check, CALLER_CLASS$mh);
+                }
+            }
+        }
+        var check = MethodHandles.insertArguments(CHECK$mh.bindTo(checker), 1, entitlement);
+        check = MethodHandles.dropArguments(check, 1, type.parameterList());
+        return MethodHandles.foldArguments(check, CALLER_CLASS$mh);
+    }
+
+    /**
+     * An inheritance check site, linked against the current policy: to a no-op while its entitlement is unrestricted
+     * (see {@link EntitlementPolicy#isUnrestricted}), to its check ({@link #checkFor}) otherwise. The target is guarded by the
+     * {@link #policySwitchPoint} it was linked with, so in compiled code an unrestricted check folds away entirely, and
+     * a policy change relinks the site on its next call.
+     */
+    static final class PolicyCallSite extends MutableCallSite {
+        private final Entitlement entitlement;
+        private final MethodHandle check;
+        private final MethodHandle relink;
 
+        PolicyCallSite(MethodType type, Entitlement entitlement) {
+            super(type);
+            this.entitlement = entitlement;
+            this.check = checkFor(type, entitlement);
+            // link() returns the new target, which is then invoked with the arguments of the call
+            this.relink = MethodHandles.foldArguments(MethodHandles.exactInvoker(type), LINK$mh.bindTo(this));
+            link();
+        }
+
+        private MethodHandle link() {
+            // The switch point first: if the policy changes right after, this link is invalidated along with it
+            var switchPoint = policySwitchPoint;
+            var target = EntitlementCheckerImpl.policy().isUnrestricted(entitlement) ? MethodHandles.empty(type()) : check;
+            var guarded = switchPoint.guardWithTest(target, relink);
+            setTarget(guarded);
+            return guarded;
+        }
+    }
+
+    /**
+     * Links the {@code runCheck} call sites emitted by {@code InstrumentingInheritanceMethodVisitor}: a
+     * {@link PolicyCallSite} if the instrumented class implements one of the interfaces of the method, a permanent
+     * no-op otherwise.
+     */
     public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, String methodName,
-                                     MethodHandle targetMH) {
+                                     String methodDescriptor) {
 
-        System.out.println("Inside boostrap");
+        if (Util.DEBUG) {
+            System.err.println("[Agent] Linking the inheritance check of " + methodName + methodDescriptor + " in "
+                    + caller.lookupClass().getName());
+        }
         final Class<?> callerClass = caller.lookupClass();
-        var candidates = methodsToInterfaces.get(methodName);
+        var candidates = methodsToInterfaces.get(new MethodSignature(methodName, methodDescriptor));
         for (var candidateClass: candidates) {
             if (candidateClass.isAssignableFrom(callerClass)) {
-                System.out.println("Inheritance check YES");
                 // This method is one of those we want to instrument via inheritance of checks
-
-                return new ConstantCallSite(targetMH.asType(type));
+                // The entitlement is a constant of this call site
+                return new PolicyCallSite(type, inheritanceEntitlementFor(methodName, methodDescriptor));
             }
         }
 
         // No, we are not interested in checking this
-        System.out.println("Inheritance check NO");
-        // TODO: instead of this, we should generate an static method + MH with the same signature as targetMH
-        return new ConstantCallSite(nullCheck$mh.asType(type));
+        return new ConstantCallSite(MethodHandles.empty(type));
     }
 }
@@ -4,7 +4,11 @@ import org.objectweb.asm.*;
 import org.objectweb.asm.util.Textifier;
 import org.objectweb.asm.util.TraceMethodVisitor;
 
-import java.util.Set;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
 
 import static org.objectweb.asm.Opcodes.*;
 
@@ -15,31 +19,73 @@ public class ClassRewriter {
     private final ClassWriter writer;
 
     public ClassRewriter(String className, byte[] contents) {
+        this(className, contents, true);
+    }
+
+    /**
+     * @param computeFrames if {@code true}, ASM recomputes max stack/locals and stack map frames for every method it
+     *                      visits, which needs {@link ClassWriter#getCommonSuperClass} (and may load classes to answer
+     *                      it). If {@code false}, nothing is computed: untouched methods keep their original values, and
+     *                      the code we generate emits its own maxs and frames.
+     */
+    public ClassRewriter(String className, byte[] contents, boolean computeFrames) {
         this.className = className;
         //System.out.println("[Agent] Calling ASM");
 
         reader = new ClassReader(contents);
-        writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer = new ClassWriter(reader, computeFrames ? ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS : 0);
+    }
+
+    public byte[] instrumentMethodNoChecks(MethodMatcher methods) {
+        return instrumentMethodNoChecks(methods, true);
+    }
+
+    /**
+     * @param instrumentInheritance whether methods overriding one of {@link CheckerFactory#methodsToInterfaces} should
+     *                              get the inheritance prologue; pass {@code false} when we already know (e.g. via
+     *                              {@link ConstantPoolScanner}) that this class cannot be one of their subtypes
+     */
+    public byte[] instrumentMethodNoChecks(MethodMatcher methods, boolean instrumentInheritance) {
+        return instrumentMethodNoChecks(methods, instrumentInheritance,
+                InstrumentMethodClassVisitor.InstrumentingMethodVisitor.DEFAULT_VARIANT);
     }
 
-    public byte[] instrumentMethodNoChecks(Set<String> methodNames) {
+    /**
+     * @param variant the code replacing the instrumented methods; only the default one is used by the agent, the
+     *                others are there to compare them
+     */
+    byte[] instrumentMethodNoChecks(MethodMatcher methods, boolean instrumentInheritance,
+                                    InstrumentMethodClassVisitor.InstrumentingMethodVisitor.Variant variant) {
         //System.out.println("[Agent] Calling ASM instrumentMethod");
-        reader.accept(new InstrumentMethodClassVisitor(writer, className, methodNames), 0);
+        reader.accept(new InstrumentMethodClassVisitor(writer, className, methods, instrumentInheritance, variant), 0);
         return writer.toByteArray();
     }
 
+    /**
+     * Call-site mode (see {@link InstrumentCallSitesClassVisitor}). This does not change the control flow, so it is
+     * meant to be used without computing frames: callers are loaded by arbitrary class loaders, and computing frames
+     * could need to load (other) classes from them while we are transforming.
+     *
+     * @return the instrumented class, or {@code null} if it does not call any method in the plan
+     */
+    public byte[] instrumentCallSites(Map<String, MethodMatcher> targetClasses) {
+        var visitor = new InstrumentCallSitesClassVisitor(writer, targetClasses);
+        reader.accept(visitor, 0);
+        return visitor.instrumentedCallSites() > 0 ? writer.toByteArray() : null;
+    }
+
     public byte[] checkAndInstrumentMethodSinglePass(String methodName) {
         //System.out.println("[Agent] Calling ASM instrumentMethod");
-        reader.accept(new SinglePassCheckAndInstrumentMethodClassVisitor(writer, methodName), 0);
+        reader.accept(new SinglePassCheckAndInstrumentMethodClassVisitor(writer, className, methodName), 0);
         return writer.toByteArray();
     }
 
-    public byte[] checkAndInstrumentMethodTwoPasses(String methodName) {
+    public byte[] checkAndInstrumentMethodTwoPasses(MethodSignature method) {
         //System.out.println("[Agent] Calling ASM instrumentMethod");
-        var checker = new AlreadyInstrumentedMethodChecker(methodName);
+        var checker = new AlreadyInstrumentedMethodChecker(className, method.name());
         reader.accept(checker, 0);
         if (checker.instrumentationNeeded) {
-            reader.accept(new InstrumentMethodClassVisitor(writer, className, Set.of(methodName)), 0);
+            reader.accept(new InstrumentMethodClassVisitor(writer, className, MethodMatcher.of(List.of(method))), 0);
             return writer.toByteArray();
         }
         return null;
@@ -47,53 +93,253 @@ public class ClassRewriter {
 
     public byte[] instrumentMethodWithAnnotation(String methodName) {
         //System.out.println("[Agent] Calling ASM instrumentMethod");
-        reader.accept(new InstrumentAndAnnotateMethodClassVisitor(writer, methodName), 0);
+        reader.accept(new InstrumentAndAnnotateMethodClassVisitor(writer, className, methodName), 0);
         return writer.toByteArray();
     }
 
-    public byte[] instrumentNativeMethod(String methodName, String descriptor) {
+    /**
+     * Replace a native method with a stub checking its entitlement (see {@link CheckerFactory#entitlementFor}), then
+     * calling the C function {@code symbol} through an FFM downcall linked by {@link Natives#bootstrap}, instead of going
+     * through JNI. For a static method {@code static native int open0(long path, int flags, int mode)}, mapped to
+     * {@code open}, the stub is:
+     * <pre>
+     *     // the prologue (see InstrumentMethodClassVisitor.InstrumentingMethodVisitor#prologue)
+     *     LLOAD 0
+     *     ILOAD 2
+     *     ILOAD 3
+     *     INVOKEDYNAMIC open(JII)I [ org/elasticsearch/Natives.bootstrap, flags ]
+     *     IRETURN
+     * </pre>
+     * The stub keeps the access (but {@code native}) and the throws clause of the native method. The receiver of an
+     * instance method is not passed to the C function. With {@link Natives#THROW_ERRNO} and/or
+     * {@link Natives#RESTARTABLE}, a {@code -1} result goes through {@link #errorHandling} before being returned.
+     *
+     * @param flags how to link the downcall: {@link Natives#CRITICAL}, {@link Natives#CAPTURE_ERRNO} and/or
+     *              {@link Natives#firstVariadicArg}; {@link Natives#CHECK_OPEN} to check the path and flags
+     *              arguments rather than the entitlement of the method; {@link Natives#THROW_ERRNO} and/or
+     *              {@link Natives#RESTARTABLE} to handle errors
+     * @throws IllegalArgumentException if the class has no such native method, if an argument or the result has no
+     *                                  C counterpart (see {@link #isSupportedNative}), if the arguments do not
+     *                                  start with {@code (JI} for {@link Natives#CHECK_OPEN}, or if the errors cannot
+     *                                  be handled as asked (see {@link Natives#THROW_ERRNO}); the class is left as it
+     *                                  is
+     */
+    public byte[] instrumentNativeMethod(String methodName, String descriptor, String symbol, int flags) {
         //System.out.println("[Agent] Calling ASM instrumentNativeMethod");
-        reader.accept(new RemoveMethodAdapter(writer, methodName, descriptor), 0);
-
-//        writer.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_NATIVE, NATIVE_PREFIX + methodName,
-//                descriptor, null, new String[]{"sun/nio/fs/UnixException"});
+        if (isSupportedNative(descriptor) == false) {
+            throw new IllegalArgumentException("cannot call " + symbol + " for " + methodName + descriptor
+                    + ": only primitives, MemorySegment (and a String result) can be passed to C");
+        }
+        boolean checkOpen = (flags & Natives.CHECK_OPEN) != 0;
+        if (checkOpen && descriptor.startsWith("(JI") == false) {
+            throw new IllegalArgumentException("cannot check " + methodName + descriptor
+                    + " as an open: it does not take the path address and the flags first");
+        }
+        var returnType = Type.getReturnType(descriptor);
+        boolean throwErrno = (flags & Natives.THROW_ERRNO) != 0;
+        boolean restartable = (flags & Natives.RESTARTABLE) != 0;
+        if ((throwErrno || restartable) && ((flags & Natives.CAPTURE_ERRNO) == 0
+                || (returnType.getSort() != Type.INT && returnType.getSort() != Type.LONG))) {
+            throw new IllegalArgumentException("cannot handle the errors of " + methodName + descriptor
+                    + ": it must capture errno and return an int or a long");
+        }
+        var removed = new RemoveMethodAdapter(writer, methodName, descriptor);
+        reader.accept(removed, 0);
+        if (removed.access == -1 || (removed.access & ACC_NATIVE) == 0) {
+            throw new IllegalArgumentException("no native method " + methodName + descriptor + " in " + className);
+        }
+        if (throwErrno && (removed.exceptions == null || removed.exceptions.length == 0)) {
+            throw new IllegalArgumentException("cannot throw the errno of " + methodName + descriptor
+                    + ": it does not declare any exception");
+        }
 
-        var stubMethodVisitor = writer.visitMethod(ACC_PRIVATE | ACC_STATIC, methodName, descriptor, null,
-                new String[]{"sun/nio/fs/UnixException"});
+        boolean isStatic = (removed.access & ACC_STATIC) != 0;
+        var stubMethodVisitor = writer.visitMethod(removed.access & ~ACC_NATIVE, methodName, descriptor, null,
+                removed.exceptions);
 
-        var printer = new Textifier();
-        var mv = new TraceMethodVisitor(stubMethodVisitor, printer);
+        //var printer = new Textifier();
+        //var mv = new TraceMethodVisitor(stubMethodVisitor, printer);
+        var mv = stubMethodVisitor;
         mv.visitCode();
-        mv.visitMethodInsn(INVOKESTATIC, "org/elasticsearch/EntitlementChecker",
-                "check", "()Z", false);
-        Label end = new Label();
-        mv.visitJumpInsn(IFNE, end);
-        //mv.visitFrame(F_SAME, 0, null, 0, null);
-        mv.visitTypeInsn(NEW, "java/lang/UnsupportedOperationException");
-        mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESPECIAL,
-                "java/lang/UnsupportedOperationException", "<init>", "()V", false);
-        mv.visitInsn(ATHROW);
-        mv.visitLabel(end);
-
-
-        mv.visitVarInsn(ILOAD, 0);
-        mv.visitVarInsn(ILOAD, 1);
-        mv.visitVarInsn(ILOAD, 2);
-//        stubMethodVisitor.visitMethodInsn(INVOKESTATIC, "sun/nio/fs/UnixNativeDispatcher",
-//                NATIVE_PREFIX + methodName, descriptor, false);
-        mv.visitMethodInsn(INVOKESTATIC, "org/elasticsearch/Natives",
-                methodName, descriptor, false);
-        mv.visitInsn(IRETURN);
+        int localVarIndex = isStatic ? 0 : 1;
+        if (checkOpen) {
+            openPrologue(mv, localVarIndex);
+        } else {
+            InstrumentMethodClassVisitor.InstrumentingMethodVisitor.prologue(mv,
+                    CheckerFactory.entitlementFor(className, methodName, descriptor));
+        }
+        var call = new Label();
+        if (restartable) {
+            mv.visitLabel(call);
+            if (checkOpen == false) {
+                // The open prologue already ends with a frame, at the same offset
+                mv.visitFrame(F_SAME, 0, null, 0, null);
+            }
+        }
+        for (Type type : Type.getArgumentTypes(descriptor)) {
+            mv.visitVarInsn(type.getOpcode(ILOAD), localVarIndex);
+            localVarIndex += type.getSize();
+        }
+        mv.visitInvokeDynamicInsn(symbol, descriptor, NATIVES_BOOTSTRAP, flags);
+        if (throwErrno || restartable) {
+            errorHandling(mv, returnType, throwErrno ? removed.exceptions[0] : null, restartable ? call : null);
+        }
+        mv.visitInsn(returnType.getOpcode(IRETURN));
+        int argumentsSize = localVarIndex - (isStatic ? 0 : 1);
+        mv.visitMaxs(Math.max(checkOpen ? OPEN_PROLOGUE_MAX_STACK
+                        : InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_MAX_STACK,
+                Math.max(argumentsSize, throwErrno || restartable ? errorHandlingMaxStack(returnType) : returnType.getSize())),
+                localVarIndex);
         mv.visitEnd();
 
-        System.out.println(printer.getText());
+        //System.out.println(printer.getText());
         return writer.toByteArray();
     }
 
+    /**
+     * Stack slots used by {@link #openPrologue}: the caller class (twice, or the checker instance and the caller class),
+     * the path address (2) and the flags
+     */
+    private static final int OPEN_PROLOGUE_MAX_STACK = 5;
+
+    /**
+     * Checks the path and the flags, being the first arguments (from local variable {@code firstArgument}), for the
+     * first caller outside the JDK and the agent (see {@link Util#getCallerClassOutsideJdk}); opens with no class to
+     * check (the JVM or the agent opening a file for itself) are not checked, and do not even initialize the checker:
+     * <pre>
+     *     INVOKESTATIC org/elasticsearch/Util.getCallerClassOutsideJdk ()Ljava/lang/Class;
+     *     DUP
+     *     IFNULL exempt
+     *     INVOKESTATIC org/elasticsearch/EntitlementCheckerHandle.instance ()Lorg/elasticsearch/EntitlementChecker;
+     *     SWAP
+     *     LLOAD pathAddress
+     *     ILOAD flags
+     *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.checkOpen (Ljava/lang/Class;JI)V
+     *     GOTO checked
+     *   exempt:
+     *     POP
+     *   checked:
+     * </pre>
+     * Emits its own frames, so it works whether the writer computes them or not.
+     */
+    private static void openPrologue(MethodVisitor mv, int firstArgument) {
+        Type checkerClassType = Type.getType(EntitlementChecker.class);
+        var exempt = new Label();
+        var checked = new Label();
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Util.class), "getCallerClassOutsideJdk",
+                Type.getMethodDescriptor(Type.getType(Class.class)), false);
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNULL, exempt);
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(EntitlementCheckerHandle.class), "instance",
+                Type.getMethodDescriptor(checkerClassType), false);
+        mv.visitInsn(SWAP);
+        mv.visitVarInsn(LLOAD, firstArgument);
+        mv.visitVarInsn(ILOAD, firstArgument + 2);
+        mv.visitMethodInsn(INVOKEINTERFACE, checkerClassType.getInternalName(), "checkOpen",
+                Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Class.class), Type.LONG_TYPE, Type.INT_TYPE), true);
+        mv.visitJumpInsn(GOTO, checked);
+        mv.visitLabel(exempt);
+        mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { Type.getInternalName(Class.class) });
+        mv.visitInsn(POP);
+        mv.visitLabel(checked);
+        mv.visitFrame(F_SAME, 0, null, 0, null);
+    }
+
+    /**
+     * @return the stack slots used by {@link #errorHandling}: the result twice and {@code -1} (2 slots each for a
+     * {@code long}); the result, errno and {@code EINTR}; or the exception twice and errno
+     */
+    private static int errorHandlingMaxStack(Type returnType) {
+        return 3 * returnType.getSize();
+    }
+
+    /**
+     * With the result of the downcall on the stack, and left there when it is not {@code -1}:
+     * <pre>
+     *     DUP
+     *     ICONST_M1
+     *     IF_ICMPNE done
+     *     // restartable: if (Natives.errno() == EINTR) { POP; GOTO call }
+     *     // exception: POP; throw new exception(Natives.errno())
+     *   done:
+     * </pre>
+     * Emits its own frames, so it works whether the writer computes them or not.
+     *
+     * @param exception the internal name of the exception to throw, or {@code null} to return {@code -1}
+     * @param call      the label before the arguments of the downcall, to call it again on {@code EINTR}, or
+     *                  {@code null} not to
+     */
+    private static void errorHandling(MethodVisitor mv, Type returnType, String exception, Label call) {
+        boolean isLong = returnType.getSort() == Type.LONG;
+        Object resultFrameType = isLong ? LONG : INTEGER;
+        var done = new Label();
+        if (isLong) {
+            mv.visitInsn(DUP2);
+            mv.visitLdcInsn(-1L);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFNE, done);
+        } else {
+            mv.visitInsn(DUP);
+            mv.visitInsn(ICONST_M1);
+            mv.visitJumpInsn(IF_ICMPNE, done);
+        }
+        if (call != null) {
+            var failed = exception == null ? done : new Label();
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Natives.class), "errno",
+                    Type.getMethodDescriptor(Type.INT_TYPE), false);
+            mv.visitIntInsn(BIPUSH, Natives.EINTR);
+            mv.visitJumpInsn(IF_ICMPNE, failed);
+            mv.visitInsn(isLong ? POP2 : POP);
+            mv.visitJumpInsn(GOTO, call);
+            if (exception != null) {
+                mv.visitLabel(failed);
+                mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { resultFrameType });
+            }
+        }
+        if (exception != null) {
+            mv.visitInsn(isLong ? POP2 : POP);
+            mv.visitTypeInsn(NEW, exception);
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(Natives.class), "errno",
+                    Type.getMethodDescriptor(Type.INT_TYPE), false);
+            mv.visitMethodInsn(INVOKESPECIAL, exception, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE),
+                    false);
+            mv.visitInsn(ATHROW);
+        }
+        mv.visitLabel(done);
+        mv.visitFrame(F_SAME1, 0, null, 1, new Object[] { resultFrameType });
+    }
+
+    private static final Handle NATIVES_BOOTSTRAP = new Handle(H_INVOKESTATIC, Type.getInternalName(Natives.class),
+            "bootstrap", MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+            MethodType.class, int.class).toMethodDescriptorString(), false);
+
+    /**
+     * @return whether the arguments and result of a native method with this descriptor can be passed to and from C by
+     * {@link Natives}: primitives and {@code MemorySegment}s, and a {@code String} result
+     */
+    static boolean isSupportedNative(String descriptor) {
+        for (var type : Type.getArgumentTypes(descriptor)) {
+            if (isPassedToC(type) == false) {
+                return false;
+            }
+        }
+        var returnType = Type.getReturnType(descriptor);
+        return isPassedToC(returnType) || returnType.getInternalName().equals("java/lang/String");
+    }
+
+    private static boolean isPassedToC(Type type) {
+        return type.getSort() < Type.ARRAY || type.getInternalName().equals("java/lang/foreign/MemorySegment");
+    }
+
+    /**
+     * Drops a method from the class, remembering its access flags and exceptions (or {@code -1} if it is not there)
+     */
     static class RemoveMethodAdapter extends ClassVisitor {
         private final String methodName;
         private final String descriptor;
+        private int access = -1;
+        private String[] exceptions;
         public RemoveMethodAdapter(
                 ClassVisitor cv, String methodName, String descriptor) {
             super(ASM9, cv);
@@ -105,6 +351,8 @@ public class ClassRewriter {
                                          String desc, String signature, String[] exceptions) {
             if (name.equals(methodName) && desc.equals(descriptor)) {
                 // do not delegate to next visitor -> this removes the method
+                this.access = access;
+                this.exceptions = exceptions;
                 return null;
             }
             return cv.visitMethod(access, name, desc, signature, exceptions);
@@ -0,0 +1,201 @@
+package org.elasticsearch;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The unit policies grant entitlements to: a plugin (or the server, or a JDK module).
+ * <p>
+ * A class belongs to a component by the identity of its module, module layer or class loader, never by their names
+ * (anyone can name a class loader, or a module in a layer of their own, after a component with more entitlements):
+ * <ol>
+ *     <li>the component its module, or the layer of its module, is {@link #register registered} to;</li>
+ *     <li>the component named after its module, for the named modules of the boot layer (the JDK, the server);</li>
+ *     <li>the component its class loader is registered to;</li>
+ *     <li>for the classes on the class path, the component named after the built-in loader ({@code app},
+ *     {@code platform});</li>
+ *     <li>otherwise {@link #UNNAMED}.</li>
+ * </ol>
+ * The server registers the layers and loaders it creates for plugins before loading any class from them: the mapping
+ * is resolved once per class and cached in a {@link ClassValue}. It does not depend on the policy, so it survives
+ * policy changes. Registrations are weak: a registered loader (or layer, or module) that is not used any more is
+ * collected along with its registration, and can be {@link #unregister}ed before that.
+ * <p>
+ * Components are interned by name and get a dense id, the index in the compiled grants of a {@link ComponentPolicy}.
+ * Names come from the registrations, the boot layer and the policies only, so there is a bounded number of them.
+ */
+final class Component {
+
+    static final String UNNAMED = "<unnamed>";
+
+    private static final Map<String, Component> byName = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Registered modules, module layers and class loaders (all compared by identity), to their component; weak keys, so
+     * it does not keep them alive. Only read when a class is resolved the first time, so a lock is fine.
+     */
+    private static final Map<Object, Component> registered = new WeakHashMap<>();
+
+    private static final ClassValue<Component> byClass = new ClassValue<>() {
+        @Override
+        protected Component computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private final String name;
+    private final int id;
+
+    private Component(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    static Component named(String name) {
+        // get first: computeIfAbsent locks the bin even when the name is there
+        var component = byName.get(name);
+        return component != null ? component : byName.computeIfAbsent(name, n -> new Component(n, nextId.getAndIncrement()));
+    }
+
+    static Component of(Class<?> type) {
+        return byClass.get(type);
+    }
+
+    /**
+     * Make the classes of {@code module} part of the component {@code name}
+     *
+     * @throws IllegalStateException if the module is already registered to another component
+     */
+    static Component register(String name, Module module) {
+        return register(name, (Object) module);
+    }
+
+    /**
+     * Make the classes of the modules of {@code layer} part of the component {@code name}
+     *
+     * @throws IllegalStateException if the layer is already registered to another component
+     */
+    static Component register(String name, ModuleLayer layer) {
+        return register(name, (Object) layer);
+    }
+
+    /**
+     * Make the classes defined by {@code loader} part of the component {@code name}
+     *
+     * @throws IllegalStateException if the loader is already registered to another component
+     */
+    static Component register(String name, ClassLoader loader) {
+        return register(name, (Object) loader);
+    }
+
+    private static Component register(String name, Object owner) {
+        var component = named(name);
+        Component previous;
+        synchronized (registered) {
+            previous = registered.putIfAbsent(owner, component);
+        }
+        if (previous != null && previous != component) {
+            throw new IllegalStateException(owner + " is already registered to component " + previous);
+        }
+        return component;
+    }
+
+    /**
+     * Undo {@link #register(String, Module)}; the classes of {@code module} already checked keep their component
+     *
+     * @return the component the module was registered to, or null
+     */
+    static Component unregister(Module module) {
+        return unregister((Object) module);
+    }
+
+    /**
+     * Undo {@link #register(String, ModuleLayer)}; the classes of {@code layer} already checked keep their component
+     *
+     * @return the component the layer was registered to, or null
+     */
+    static Component unregister(ModuleLayer layer) {
+        return unregister((Object) layer);
+    }
+
+    /**
+     * Undo {@link #register(String, ClassLoader)}; the classes of {@code loader} already checked keep their component
+     *
+     * @return the component the loader was registered to, or null
+     */
+    static Component unregister(ClassLoader loader) {
+        return unregister((Object) loader);
+    }
+
+    private static Component unregister(Object owner) {
+        synchronized (registered) {
+            return registered.remove(owner);
+        }
+    }
+
+    private static Component registered(Object owner) {
+        synchronized (registered) {
+            return registered.get(owner);
+        }
+    }
+
+    private static Component resolve(Class<?> type) {
+        var module = type.getModule();
+        if (module.isNamed()) {
+            var component = registered(module);
+            if (component == null && module.getLayer() != null) {
+                component = registered(module.getLayer());
+            }
+            if (component != null) {
+                return component;
+            }
+            if (module.getLayer() == ModuleLayer.boot()) {
+                return named(module.getName());
+            }
+        }
+        var loader = type.getClassLoader();
+        if (loader != null) {
+            var component = registered(loader);
+            if (component != null) {
+                return component;
+            }
+            if (isBuiltin(loader)) {
+                return named(loader.getName());
+            }
+        }
+        return named(UNNAMED);
+    }
+
+    /**
+     * The app and platform loaders: their classes are in java.base, defined by the boot loader, so nobody else can
+     * define a loader of the same class. Without asking {@link ClassLoader#getSystemClassLoader()}, which is not
+     * ready while the system class loader is being set up.
+     */
+    private static boolean isBuiltin(ClassLoader loader) {
+        var loaderClass = loader.getClass();
+        return loaderClass.getClassLoader() == null && loaderClass.getName().startsWith("jdk.internal.loader.ClassLoaders$");
+    }
+
+    /**
+     * @return the name of the component of {@code type}, to grant it entitlements in a policy
+     */
+    static String componentName(Class<?> type) {
+        return of(type).name();
+    }
+
+    String name() {
+        return name;
+    }
+
+    int id() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
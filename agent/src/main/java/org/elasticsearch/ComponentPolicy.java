@@ -0,0 +1,226 @@
+package org.elasticsearch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * An immutable policy granting entitlements to {@link Component}s, e.g. "plugin X may read files" and "plugin Z may exit".
+ * <p>
+ * Grants are compiled into one bit set per component: {@code grants[componentId]} has the bit of each granted
+ * {@link Entitlement} id set. A check resolves the caller component (cached per class) and tests a bit; no locks and no
+ * allocation. Components not named in the policy get nothing, except what is granted to {@link #ALL_COMPONENTS}: those
+ * entitlements are unrestricted, and their inheritance checks cost nothing (see {@link EntitlementPolicy#isUnrestricted}).
+ * <p>
+ * Entitlements can also be granted on directories only, e.g. "plugin X may read files in /data": those are compiled into
+ * one {@link PathTrie} per component, and only count for checks on a path (see {@link #isAllowed(Class, Entitlement, Path)}).
+ */
+final class ComponentPolicy implements EntitlementPolicy {
+
+    /**
+     * The component name granting entitlements to every component
+     */
+    static final String ALL_COMPONENTS = "*";
+
+    static final ComponentPolicy DENY_ALL = compile(Map.of());
+
+    private final long[] grants;
+    private final long unrestricted;
+    private final PathTrie[] pathGrants;
+    private final PathTrie allComponentsPathGrants;
+    private final Map<String, Long> source;
+    private final Map<String, PathTrie> pathSource;
+
+    private ComponentPolicy(long[] grants, long unrestricted, PathTrie[] pathGrants, PathTrie allComponentsPathGrants,
+                            Map<String, Long> source, Map<String, PathTrie> pathSource) {
+        this.grants = grants;
+        this.unrestricted = unrestricted;
+        this.pathGrants = pathGrants;
+        this.allComponentsPathGrants = allComponentsPathGrants;
+        this.source = source;
+        this.pathSource = pathSource;
+    }
+
+    /**
+     * @param grants entitlements granted, by component name (see {@link Component#componentName}), or to
+     *               {@link #ALL_COMPONENTS}
+     */
+    static ComponentPolicy compile(Map<String, ? extends Collection<Entitlement>> grants) {
+        return compile(grants, Map.of());
+    }
+
+    /**
+     * @param grants     entitlements granted, by component name (see {@link Component#componentName}), or to
+     *                   {@link #ALL_COMPONENTS}
+     * @param pathGrants entitlements granted on directories (and everything under them), by component name and
+     *                   directory
+     */
+    static ComponentPolicy compile(Map<String, ? extends Collection<Entitlement>> grants,
+                                   Map<String, ? extends Map<String, ? extends Collection<Entitlement>>> pathGrants) {
+        var bitsByComponent = new TreeMap<String, Long>();
+        long unrestricted = 0;
+        int maxId = -1;
+        for (var entry : grants.entrySet()) {
+            long bits = bits(entry.getValue());
+            bitsByComponent.put(entry.getKey(), bits);
+            if (entry.getKey().equals(ALL_COMPONENTS)) {
+                unrestricted = bits;
+            } else {
+                // Interning the names now gives them ids the classes of the component will resolve to later
+                maxId = Math.max(maxId, Component.named(entry.getKey()).id());
+            }
+        }
+        var triesByComponent = new TreeMap<String, PathTrie>();
+        for (var entry : pathGrants.entrySet()) {
+            var bitsByDirectory = new TreeMap<String, Long>();
+            entry.getValue().forEach((directory, entitlements) -> bitsByDirectory.put(directory, bits(entitlements)));
+            triesByComponent.put(entry.getKey(), PathTrie.compile(bitsByDirectory));
+            if (entry.getKey().equals(ALL_COMPONENTS) == false) {
+                maxId = Math.max(maxId, Component.named(entry.getKey()).id());
+            }
+        }
+
+        var compiled = new long[maxId + 1];
+        for (var entry : bitsByComponent.entrySet()) {
+            if (entry.getKey().equals(ALL_COMPONENTS) == false) {
+                compiled[Component.named(entry.getKey()).id()] = entry.getValue();
+            }
+        }
+        var compiledPathGrants = new PathTrie[maxId + 1];
+        Arrays.fill(compiledPathGrants, PathTrie.EMPTY);
+        for (var entry : triesByComponent.entrySet()) {
+            if (entry.getKey().equals(ALL_COMPONENTS) == false) {
+                compiledPathGrants[Component.named(entry.getKey()).id()] = entry.getValue();
+            }
+        }
+        return new ComponentPolicy(compiled, unrestricted, compiledPathGrants,
+                triesByComponent.getOrDefault(ALL_COMPONENTS, PathTrie.EMPTY), bitsByComponent, triesByComponent);
+    }
+
+    private static long bits(Collection<Entitlement> entitlements) {
+        long bits = 0;
+        for (var entitlement : entitlements) {
+            bits |= entitlement.bit();
+        }
+        return bits;
+    }
+
+    /**
+     * Parse a policy in properties format, one component per line, e.g. {@code org.example.plugin = READ_FILE, EXIT_VM};
+     * {@code * = READ_FILE} grants to every component, and {@code READ_FILE:/data} grants on a directory only
+     *
+     * @throws IllegalArgumentException if an entitlement is unknown, or a directory is empty
+     */
+    static ComponentPolicy parse(Reader reader) throws IOException {
+        var properties = new Properties();
+        properties.load(reader);
+        var grants = new TreeMap<String, EnumSet<Entitlement>>();
+        var pathGrants = new TreeMap<String, Map<String, EnumSet<Entitlement>>>();
+        for (var component : properties.stringPropertyNames()) {
+            var granted = EnumSet.noneOf(Entitlement.class);
+            for (var grant : properties.getProperty(component).split(",")) {
+                if (grant.isBlank()) {
+                    continue;
+                }
+                int separator = grant.indexOf(':');
+                var name = (separator < 0 ? grant : grant.substring(0, separator)).strip();
+                Entitlement entitlement;
+                try {
+                    entitlement = Entitlement.valueOf(name.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown entitlement [" + name + "] for " + component, e);
+                }
+                if (separator < 0) {
+                    granted.add(entitlement);
+                } else {
+                    var directory = grant.substring(separator + 1).strip();
+                    if (directory.isEmpty()) {
+                        throw new IllegalArgumentException("empty directory for [" + name + "] for " + component);
+                    }
+                    pathGrants.computeIfAbsent(component, c -> new TreeMap<>())
+                            .computeIfAbsent(directory, d -> EnumSet.noneOf(Entitlement.class))
+                            .add(entitlement);
+                }
+            }
+            grants.put(component, granted);
+        }
+        return compile(grants, pathGrants);
+    }
+
+    @Override
+    public boolean isAllowed(Class<?> callerClass, Entitlement entitlement) {
+        return isAllowed(Component.of(callerClass), entitlement);
+    }
+
+    boolean isAllowed(Component component, Entitlement entitlement) {
+        int id = component.id();
+        long bit = entitlement.bit();
+        // Components registered after this policy was compiled are not in it
+        return (unrestricted & bit) != 0 || (id < grants.length && (grants[id] & bit) != 0);
+    }
+
+    /**
+     * Allowed everywhere, or on a directory containing {@code path}: one walk of the trie of the component, and one of
+     * the trie of {@link #ALL_COMPONENTS} (if any).
+     */
+    @Override
+    public boolean isAllowed(Class<?> callerClass, Entitlement entitlement, Path path) {
+        var component = Component.of(callerClass);
+        if (isAllowed(component, entitlement)) {
+            return true;
+        }
+        int id = component.id();
+        long bit = entitlement.bit();
+        return (allComponentsPathGrants.granted(path) & bit) != 0
+                || (id < pathGrants.length && (pathGrants[id].granted(path) & bit) != 0);
+    }
+
+    /**
+     * The same as {@link #isAllowed(Class, Entitlement, Path)}, matching the bytes of the C string (see
+     * {@link PathTrie#granted(long)})
+     */
+    @Override
+    public boolean isAllowedOnNativePath(Class<?> callerClass, Entitlement entitlement, long path) {
+        var component = Component.of(callerClass);
+        if (isAllowed(component, entitlement)) {
+            return true;
+        }
+        int id = component.id();
+        long bit = entitlement.bit();
+        return (allComponentsPathGrants.granted(path) & bit) != 0
+                || (id < pathGrants.length && (pathGrants[id].granted(path) & bit) != 0);
+    }
+
+    @Override
+    public boolean isUnrestricted(Entitlement entitlement) {
+        return (unrestricted & entitlement.bit()) != 0;
+    }
+
+    @Override
+    public String toString() {
+        var grants = new ArrayList<String>();
+        source.forEach((component, bits) -> grants.add(component + "=" + entitlements(bits)));
+        pathSource.forEach((component, trie) -> trie.grants().forEach(
+                (directory, bits) -> grants.add(component + ":" + directory + "=" + entitlements(bits))
+        ));
+        return "ComponentPolicy{" + String.join(", ", grants) + "}";
+    }
+
+    private static EnumSet<Entitlement> entitlements(long bits) {
+        var granted = EnumSet.noneOf(Entitlement.class);
+        for (var entitlement : Entitlement.values()) {
+            if ((bits & entitlement.bit()) != 0) {
+                granted.add(entitlement);
+            }
+        }
+        return granted;
+    }
+}
@@ -0,0 +1,199 @@
+package org.elasticsearch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Reads just enough of a raw class file (the header, the constant pool, the super class and the interfaces) to decide
+ * if the class can possibly override one of the methods we check via inheritance (see
+ * {@link CheckerFactory#methodsToInterfaces}). It works directly on the {@code classfileBuffer} bytes: no ASM, no
+ * {@code String}s, no allocation.
+ * <p>
+ * A class is <em>not</em> a candidate if none of the watched method names is in its constant pool (it cannot declare
+ * such a method), if it is one of the watched types (those are not instrumented, only their subtypes, as in
+ * {@link RetransformScheduler} and for retransformations in {@link EntitlementCheckTransformer}), or if it extends
+ * {@code java/lang/Object} and implements no interfaces (it cannot be a subtype of a watched type). A class directly
+ * extending or implementing a watched type is a candidate.
+ * For everything else we cannot tell without loading the super types, so we answer "maybe" and let
+ * {@link CheckerFactory#bootstrap} do the final filtering, as before.
+ */
+class ConstantPoolScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final byte[] JAVA_LANG_OBJECT = "java/lang/Object".getBytes(StandardCharsets.UTF_8);
+
+    // Method and class names we deal with are ASCII, so their modified UTF-8 form is plain UTF-8
+    private final byte[][] methodNames;
+    private final byte[][] typeNames;
+
+    ConstantPoolScanner(Collection<String> methodNames, Collection<Class<?>> types) {
+        this.methodNames = methodNames.stream()
+                .map(name -> name.getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        this.typeNames = types.stream()
+                .map(type -> EntitlementCheckTransformer.getInternalClassName(type.getName()).getBytes(StandardCharsets.UTF_8))
+                .distinct()
+                .toArray(byte[][]::new);
+    }
+
+    /**
+     * Used by the call-site mode: a class can only invoke one of our methods if it has its name in the constant pool.
+     */
+    boolean referencesAnyMethodName(byte[] b) {
+        if (b.length < 10 || readInt(b, 0) != MAGIC) {
+            return true;
+        }
+        int constantPoolCount = readUnsignedShort(b, 8);
+        int offset = 10;
+        for (int i = 1; i < constantPoolCount; ++i) {
+            int tag = b[offset];
+            if (tag == 1) {
+                int length = readUnsignedShort(b, offset + 1);
+                if (matchesAny(b, offset + 3, length, methodNames)) {
+                    return true;
+                }
+                offset += 3 + length;
+            } else {
+                int size = entrySize(tag);
+                if (size < 0) {
+                    return true;
+                }
+                offset += size;
+                if (tag == 5 || tag == 6) {
+                    ++i;
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean isInheritanceCandidate(byte[] b) {
+        if (b.length < 10 || readInt(b, 0) != MAGIC) {
+            // Not something we understand: be conservative
+            return true;
+        }
+        int constantPoolCount = readUnsignedShort(b, 8);
+
+        boolean hasMethodName = false;
+        int offset = 10;
+        for (int i = 1; i < constantPoolCount; ++i) {
+            int tag = b[offset];
+            if (tag == 1) {
+                int length = readUnsignedShort(b, offset + 1);
+                if (hasMethodName == false && matchesAny(b, offset + 3, length, methodNames)) {
+                    hasMethodName = true;
+                }
+                offset += 3 + length;
+            } else {
+                int size = entrySize(tag);
+                if (size < 0) {
+                    return true;
+                }
+                offset += size;
+                if (tag == 5 || tag == 6) {
+                    // long and double take two slots
+                    ++i;
+                }
+            }
+        }
+        if (hasMethodName == false) {
+            return false;
+        }
+
+        // access_flags (2), this_class (2), super_class (2), interfaces_count (2), interfaces (2 each)
+        int thisClass = readUnsignedShort(b, offset + 2);
+        int superClass = readUnsignedShort(b, offset + 4);
+        int interfacesCount = readUnsignedShort(b, offset + 6);
+
+        if (isWatchedType(b, thisClass)) {
+            return false;
+        }
+
+        if (superClass != 0 && isWatchedType(b, superClass)) {
+            return true;
+        }
+        for (int i = 0; i < interfacesCount; ++i) {
+            if (isWatchedType(b, readUnsignedShort(b, offset + 8 + 2 * i))) {
+                return true;
+            }
+        }
+        if (interfacesCount == 0 && (superClass == 0 || isClassNamed(b, superClass, JAVA_LANG_OBJECT))) {
+            return false;
+        }
+        // Unknown ancestors: maybe
+        return true;
+    }
+
+    private boolean isWatchedType(byte[] b, int classIndex) {
+        int utf8Offset = classNameOffset(b, classIndex);
+        int length = readUnsignedShort(b, utf8Offset + 1);
+        return matchesAny(b, utf8Offset + 3, length, typeNames);
+    }
+
+    private static boolean isClassNamed(byte[] b, int classIndex, byte[] name) {
+        int utf8Offset = classNameOffset(b, classIndex);
+        int length = readUnsignedShort(b, utf8Offset + 1);
+        return matches(b, utf8Offset + 3, length, name);
+    }
+
+    /**
+     * Constant pool entries are variable in size, so going from an index to an offset means walking the pool again.
+     * We only do this for the super class and the interfaces of classes that passed the method name filter, which is
+     * cheaper than allocating an index.
+     */
+    private static int classNameOffset(byte[] b, int classIndex) {
+        int nameIndex = readUnsignedShort(b, entryOffset(b, classIndex) + 1);
+        return entryOffset(b, nameIndex);
+    }
+
+    private static int entryOffset(byte[] b, int index) {
+        int offset = 10;
+        for (int i = 1; i < index; ++i) {
+            int tag = b[offset];
+            offset += tag == 1 ? 3 + readUnsignedShort(b, offset + 1) : entrySize(tag);
+            if (tag == 5 || tag == 6) {
+                ++i;
+            }
+        }
+        return offset;
+    }
+
+    private static int entrySize(int tag) {
+        return switch (tag) {
+            case 7, 8, 16, 19, 20 -> 3;     // Class, String, MethodType, Module, Package
+            case 15 -> 4;                   // MethodHandle
+            case 3, 4, 9, 10, 11, 12, 17, 18 -> 5; // Integer, Float, *ref, NameAndType, Dynamic, InvokeDynamic
+            case 5, 6 -> 9;                 // Long, Double
+            default -> -1;
+        };
+    }
+
+    private static boolean matchesAny(byte[] b, int offset, int length, byte[][] candidates) {
+        for (var candidate : candidates) {
+            if (matches(b, offset, length, candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(byte[] b, int offset, int length, byte[] candidate) {
+        if (candidate.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (b[offset + i] != candidate[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
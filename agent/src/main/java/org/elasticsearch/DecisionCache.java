@@ -0,0 +1,50 @@
+package org.elasticsearch;
+
+/**
+ * Per class cache of {@link EntitlementPolicy} decisions.
+ * <p>
+ * The first time a class is checked, the policy is evaluated for all the {@link Entitlement}s and the answers are
+ * stored as a bit mask (indexed by entitlement id) in a {@link ClassValue}, so a check is one {@code ClassValue} lookup
+ * and a bit test, and the cache does not keep plugin classes (and their loaders) alive.
+ * <p>
+ * A cache is bound to one policy, which must not change: a new policy gets a new cache (see
+ * {@link EntitlementCheckerImpl#setPolicy}), whose decisions are computed lazily, and the old one is dropped with all
+ * its decisions at once.
+ */
+final class DecisionCache {
+
+    private static final class Decisions {
+        private final long allowed;
+
+        private Decisions(long allowed) {
+            this.allowed = allowed;
+        }
+    }
+
+    private final EntitlementPolicy policy;
+    private final ClassValue<Decisions> decisions = new ClassValue<>() {
+        @Override
+        protected Decisions computeValue(Class<?> type) {
+            long allowed = 0;
+            for (int id = 0; id < Entitlement.count(); ++id) {
+                var entitlement = Entitlement.byId(id);
+                if (policy.isAllowed(type, entitlement)) {
+                    allowed |= entitlement.bit();
+                }
+            }
+            return new Decisions(allowed);
+        }
+    };
+
+    DecisionCache(EntitlementPolicy policy) {
+        this.policy = policy;
+    }
+
+    EntitlementPolicy policy() {
+        return policy;
+    }
+
+    boolean isAllowed(Class<?> callerClass, Entitlement entitlement) {
+        return (decisions.get(callerClass).allowed & entitlement.bit()) != 0;
+    }
+}
@@ -0,0 +1,213 @@
+package org.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.lang.StackWalker.Option.RETAIN_CLASS_REFERENCE;
+
+/**
+ * Carries the delegation of checks ({@link Util#DELEGATE_CHECK_CLASS}, bound by {@link Util#delegate}) over to the
+ * threads running tasks. A {@link ScopedValue} binding is only seen by the thread that made it (and by the subtasks of
+ * a {@link java.util.concurrent.StructuredTaskScope} opened under it): a task handed to a pool would otherwise be checked
+ * as the pool's classes, unless it is wrapped by hand with {@link Util#propagateDelegation}.
+ * <p>
+ * The wrappers here capture the class bound when the task is submitted (or the thread created) and bind it again
+ * around the task in the worker. When nothing is bound, the task is passed as it is: no wrapper, no allocation; when
+ * something is, the wrapper is the only allocation (besides what {@link ScopedValue#runWhere} does).
+ * <p>
+ * Subtasks of a {@code StructuredTaskScope} inherit the bindings of the thread that opened the scope, so opening it
+ * inside {@link Util#delegate} is enough; forking while a different class is bound is not allowed by the scope (it
+ * throws {@code StructureViolationException}). To run a subtask on behalf of another class (the forking class itself,
+ * or the class delegated to), {@link #fork} it, or fork {@link #delegating(Class, Callable)}.
+ */
+public final class Delegation {
+
+    private Delegation() {}
+
+    /**
+     * @return {@code task}, bound to the class delegated to now (if any) when it runs
+     */
+    public static Runnable wrap(Runnable task) {
+        var delegateClass = Util.DELEGATE_CHECK_CLASS.orElse(null);
+        return delegateClass == null ? task : new DelegatedRunnable(delegateClass, task);
+    }
+
+    /**
+     * @return {@code task}, bound to the class delegated to now (if any) when it runs
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        var delegateClass = Util.DELEGATE_CHECK_CLASS.orElse(null);
+        return delegateClass == null ? task : new DelegatedCallable<>(delegateClass, task);
+    }
+
+    /**
+     * A class can only delegate to itself, or to the class already delegated to: otherwise any code could run its
+     * tasks with the entitlements of any class.
+     *
+     * @return {@code task}, with the checks it makes delegated to {@code delegateClass}, e.g. for a subtask of a
+     * {@code StructuredTaskScope} run on behalf of another class than the one that opened the scope
+     * @throws IllegalCallerException if {@code delegateClass} is neither the caller's class nor the class delegated to
+     * now
+     */
+    public static <T> Callable<T> delegating(Class<?> delegateClass, Callable<T> task) {
+        return delegating(delegateClass, StackWalker.getInstance(RETAIN_CLASS_REFERENCE).getCallerClass(), task);
+    }
+
+    /**
+     * Fork {@code task} in {@code scope}, with the checks it makes delegated to {@code delegateClass} (see
+     * {@link #delegating(Class, Callable)}); the scope only sees the bindings of the thread that opened it, so this
+     * forks whatever class is bound now
+     *
+     * @throws IllegalCallerException if {@code delegateClass} is neither the caller's class nor the class delegated to
+     * now
+     */
+    public static <T> StructuredTaskScope.Subtask<T> fork(StructuredTaskScope<? super T> scope, Class<?> delegateClass,
+                                                          Callable<T> task) {
+        return scope.fork(delegating(delegateClass, StackWalker.getInstance(RETAIN_CLASS_REFERENCE).getCallerClass(), task));
+    }
+
+    private static <T> Callable<T> delegating(Class<?> delegateClass, Class<?> callerClass, Callable<T> task) {
+        Objects.requireNonNull(delegateClass, "delegateClass");
+        Objects.requireNonNull(task, "task");
+        if (delegateClass != Util.DELEGATE_CHECK_CLASS.orElse(null) && delegateClass != callerClass) {
+            throw new IllegalCallerException("cannot delegate to " + delegateClass.getName()
+                    + ": only to the caller's class or to the class delegated to");
+        }
+        return new DelegatedCallable<>(delegateClass, task);
+    }
+
+    /**
+     * @return an executor service submitting the tasks to {@code executor}, wrapped (see {@link #wrap(Runnable)})
+     */
+    public static ExecutorService executorService(ExecutorService executor) {
+        return new DelegatingExecutorService(executor);
+    }
+
+    /**
+     * @return a thread factory creating the threads with {@code factory}, their task bound to the class delegated to
+     * by the thread creating them (see {@link #wrap(Runnable)})
+     */
+    public static ThreadFactory threadFactory(ThreadFactory factory) {
+        return task -> factory.newThread(wrap(task));
+    }
+
+    private record DelegatedRunnable(Class<?> delegateClass, Runnable task) implements Runnable {
+        @Override
+        public void run() {
+            ScopedValue.runWhere(Util.DELEGATE_CHECK_CLASS, delegateClass, task);
+        }
+    }
+
+    private record DelegatedCallable<T>(Class<?> delegateClass, Callable<T> task) implements Callable<T> {
+        @Override
+        public T call() throws Exception {
+            return ScopedValue.callWhere(Util.DELEGATE_CHECK_CLASS, delegateClass, task);
+        }
+    }
+
+    private static final class DelegatingExecutorService implements ExecutorService {
+        private final ExecutorService executor;
+
+        private DelegatingExecutorService(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executor.execute(wrap(command));
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return executor.submit(wrap(task));
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return executor.submit(wrap(task), result);
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            return executor.submit(wrap(task));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+            return executor.invokeAll(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return executor.invokeAll(wrapAll(tasks), timeout, unit);
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+            return executor.invokeAny(wrapAll(tasks));
+        }
+
+        @Override
+        public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            return executor.invokeAny(wrapAll(tasks), timeout, unit);
+        }
+
+        private static <T> Collection<? extends Callable<T>> wrapAll(Collection<? extends Callable<T>> tasks) {
+            if (Util.DELEGATE_CHECK_CLASS.isBound() == false) {
+                return tasks;
+            }
+            var wrapped = new ArrayList<Callable<T>>(tasks.size());
+            for (var task : tasks) {
+                wrapped.add(wrap(task));
+            }
+            return wrapped;
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public void close() {
+            executor.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Delegating[" + executor + "]";
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.elasticsearch;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reports entitlement denials without doing I/O on the checking thread.
+ * <p>
+ * Denials are deduplicated per (checked class, entitlement): the first occurrence is queued, repeats only bump a
+ * {@link LongAdder}. A daemon thread, started on the first denial, prints the new denials and the repeat counts every
+ * {@link #FLUSH_INTERVAL_MILLIS}, so a plugin hammering a denied method does not serialize all the threads on stdout.
+ * <p>
+ * Per-class state (one slot per entitlement id) hangs off a {@link ClassValue}, so we do not keep plugin classes (and
+ * their loaders) alive; the flusher only sees the class names. The first occurrence also records the instrumented
+ * method that was denied.
+ * <p>
+ * Reporting never blocks (lock-free queues, and a CAS to start the flusher), and takes no monitor once the state of
+ * the class exists (creating it goes through the monitor of {@link ClassValue#get}, see {@link EntitlementCheckerImpl}),
+ * so a denied check on a virtual thread does not pin it to its carrier.
+ */
+class DenialReporter {
+
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    static final DenialReporter INSTANCE = new DenialReporter();
+
+    static final class Denial {
+        private final String className;
+        private final String module;
+        private final Entitlement entitlement;
+        private final String method;
+        private final LongAdder count = new LongAdder();
+        // Only accessed by the flusher
+        private long reportedCount;
+
+        private Denial(Class<?> checkedClass, Entitlement entitlement, String method) {
+            this.className = checkedClass.getName();
+            this.module = String.valueOf(checkedClass.getModule());
+            this.entitlement = entitlement;
+            this.method = method;
+        }
+    }
+
+    private final ClassValue<AtomicReferenceArray<Denial>> denialsByClass = new ClassValue<>() {
+        @Override
+        protected AtomicReferenceArray<Denial> computeValue(Class<?> type) {
+            return new AtomicReferenceArray<>(Entitlement.count());
+        }
+    };
+
+    private final Queue<Denial> newDenials = new ConcurrentLinkedQueue<>();
+    private final Queue<Denial> allDenials = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flusherStarted = new AtomicBoolean();
+
+    void report(Class<?> checkedClass, Entitlement entitlement) {
+        var denials = denialsByClass.get(checkedClass);
+        int id = entitlement.ordinal();
+        var denial = denials.get(id);
+        if (denial == null) {
+            var newDenial = new Denial(checkedClass, entitlement, EntitlementCheckerImpl.instrumentedMethod());
+            denial = denials.compareAndExchange(id, null, newDenial);
+            if (denial == null) {
+                denial = newDenial;
+                allDenials.add(newDenial);
+                newDenials.add(newDenial);
+                ensureFlusherStarted();
+            }
+        }
+        denial.count.increment();
+    }
+
+    private void ensureFlusherStarted() {
+        if (flusherStarted.get() == false && flusherStarted.compareAndSet(false, true)) {
+            Thread.ofPlatform()
+                    .daemon()
+                    .name("entitlement-denial-reporter")
+                    .start(this::flushLoop);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                flush();
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Print new denials, and how many times the known ones were repeated since the last flush.
+     */
+    synchronized void flush() {
+        var output = new StringBuilder();
+        Denial denial;
+        while ((denial = newDenials.poll()) != null) {
+            output.append(String.format(
+                    Locale.ROOT,
+                    "[Entitlements] Denied %s to %s in %s (%s)%n",
+                    denial.entitlement,
+                    denial.className,
+                    denial.module,
+                    denial.method
+            ));
+        }
+        for (var d : allDenials) {
+            long count = d.count.sum();
+            // The first one has been reported already
+            long repeats = count - Math.max(1, d.reportedCount);
+            if (repeats > 0) {
+                output.append(String.format(
+                        Locale.ROOT,
+                        "[Entitlements] Denied %s to %s %d more times (%d total)%n",
+                        d.entitlement,
+                        d.className,
+                        repeats,
+                        count
+                ));
+            }
+            d.reportedCount = count;
+        }
+        if (output.isEmpty() == false) {
+            System.out.print(output);
+        }
+    }
+}
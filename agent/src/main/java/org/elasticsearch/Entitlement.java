@@ -0,0 +1,39 @@
+package org.elasticsearch;
+
+/**
+ * What an instrumented method needs the caller to be entitled to. Each method in the plan is mapped to one (see
+ * {@link InstrumentationAgent#entitlements()}), and the instrumentation passes it to the {@link EntitlementChecker}.
+ * <p>
+ * The ordinal is the entitlement id: decisions and grants are stored as bits indexed by it, so keep the number of
+ * constants within {@link #MAX_ENTITLEMENTS}.
+ */
+public enum Entitlement {
+    /** Exit or halt the JVM */
+    EXIT_VM,
+    /** Read or test a file or directory */
+    READ_FILE,
+    /** Create, write or delete a file or directory */
+    WRITE_FILE,
+    /** A method in the plan without an entitlement of its own (e.g. in benchmarks); it is only granted explicitly */
+    UNCLASSIFIED;
+
+    static final int MAX_ENTITLEMENTS = Long.SIZE;
+
+    private static final Entitlement[] VALUES = values();
+
+    static {
+        assert VALUES.length <= MAX_ENTITLEMENTS;
+    }
+
+    long bit() {
+        return 1L << ordinal();
+    }
+
+    static Entitlement byId(int id) {
+        return VALUES[id];
+    }
+
+    static int count() {
+        return VALUES.length;
+    }
+}
@@ -0,0 +1,108 @@
+package org.elasticsearch;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event emitted for each entitlement check by {@link EntitlementCheckerImpl}.
+ * <p>
+ * Usage follows the usual JFR pattern: create the event, and only if {@link #isEnabled()} {@link #begin()} it and
+ * {@link #complete} it. When the event is not enabled in any recording, {@code isEnabled()} is a constant for the JIT and
+ * the event allocation is eliminated, so it can stay in production code. The target method (a short stack walk) and
+ * the argument (e.g. decoding a native path) are only resolved when the event is recorded: enabled, and
+ * {@link #shouldCommit()} (e.g. over the threshold of the recordings).
+ */
+@Name("org.elasticsearch.EntitlementCheck")
+@Label("Entitlement Check")
+@Category({"Elasticsearch", "Entitlements"})
+@Description("An entitlement check performed by an instrumented method")
+@StackTrace(false)
+class EntitlementCheckEvent extends Event {
+
+    static final String ALLOWED = "allowed";
+    static final String DENIED = "denied";
+    static final String ALREADY_CHECKED = "already checked";
+
+    @Label("Caller Class")
+    @Description("The class calling the instrumented method")
+    Class<?> callerClass;
+
+    @Label("Checked Class")
+    @Description("The class whose entitlements are checked: the caller, or the class that delegated the check to it")
+    Class<?> checkedClass;
+
+    @Label("Delegated")
+    boolean delegated;
+
+    @Label("Entitlement")
+    String entitlement;
+
+    @Label("Target Method")
+    @Description("The instrumented method")
+    String targetMethod;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Argument")
+    @Description("The argument of the instrumented method the check is about, e.g. a path; not set for class level checks")
+    String argument;
+
+    /**
+     * Fill in and commit this event, if enabled. Must be called from the checker, directly called by the instrumented
+     * method.
+     */
+    void complete(Class<?> callerClass, Class<?> checkedClass, Entitlement entitlement, String outcome) {
+        complete(callerClass, checkedClass, entitlement, outcome, null);
+    }
+
+    /**
+     * @param argument the argument checked, if any; only turned into a string when the event is recorded
+     */
+    void complete(Class<?> callerClass, Class<?> checkedClass, Entitlement entitlement, String outcome, Object argument) {
+        if (set(callerClass, checkedClass, entitlement, outcome) == false) {
+            return;
+        }
+        this.argument = argument == null ? null : argument.toString();
+        resolveAndCommit();
+    }
+
+    /**
+     * @param path the address of the C string of the path checked; only decoded when the event is recorded
+     */
+    void completeOnNativePath(Class<?> callerClass, Class<?> checkedClass, Entitlement entitlement, String outcome,
+                              long path) {
+        if (set(callerClass, checkedClass, entitlement, outcome) == false) {
+            return;
+        }
+        this.argument = PathTrie.decode(path);
+        resolveAndCommit();
+    }
+
+    /**
+     * Set the fields that cost nothing to set
+     *
+     * @return whether the event is to be recorded ({@link #shouldCommit()}: enabled, and over the threshold of the
+     * recordings), so whether the costly ones (the argument, the target method) are worth resolving
+     */
+    private boolean set(Class<?> callerClass, Class<?> checkedClass, Entitlement entitlement, String outcome) {
+        if (isEnabled() == false) {
+            return false;
+        }
+        this.callerClass = callerClass;
+        this.checkedClass = checkedClass;
+        this.delegated = callerClass != checkedClass;
+        this.entitlement = entitlement.name();
+        this.outcome = outcome;
+        return shouldCommit();
+    }
+
+    private void resolveAndCommit() {
+        this.targetMethod = EntitlementCheckerImpl.instrumentedMethod();
+        commit();
+    }
+}
@@ -3,19 +3,46 @@ package org.elasticsearch;
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
 
+/**
+ * Replaces one native method of a class with a checking stub calling its C function through FFM (see
+ * {@link ClassRewriter#instrumentNativeMethod}).
+ */
 public class EntitlementCheckNativeTransformer implements ClassFileTransformer {
 
     private final String targetClassName;
     private final String methodName;
     private final ClassLoader targetClassLoader;
     private final String descriptor;
+    private final String symbol;
+    private final int flags;
+    private final InstrumentedClassCache cache;
+    private final byte[] planHash;
 
     public EntitlementCheckNativeTransformer(String targetClassName, ClassLoader targetClassLoader,
-                                             String methodName, String descriptor) {
+                                             String methodName, String descriptor, String symbol, int flags) {
+        this(targetClassName, targetClassLoader, methodName, descriptor, symbol, flags, null);
+    }
+
+    EntitlementCheckNativeTransformer(String targetClassName, ClassLoader targetClassLoader, String methodName,
+                                      String descriptor, String symbol, int flags, InstrumentedClassCache cache) {
         this.targetClassName = targetClassName.replaceAll("\\.", "/");
         this.methodName = methodName;
         this.targetClassLoader = targetClassLoader;
         this.descriptor = descriptor;
+        this.symbol = symbol;
+        this.flags = flags;
+        this.cache = cache;
+        this.planHash = planHash(this.targetClassName, methodName, descriptor, symbol, flags);
+    }
+
+    /**
+     * @return the hash of the plan of the transformer of this native method, which its cache entries are keyed by
+     */
+    static byte[] planHash(String targetClassName, String methodName, String descriptor, String symbol, int flags) {
+        return InstrumentedClassCache.planHash("native:" + targetClassName.replace('.', '/') + "#" + methodName
+                + descriptor + "->" + symbol + "/" + flags
+                + "\nentitlement:" + CheckerFactory.entitlementFor(targetClassName, methodName, descriptor)
+                + "\nprologue:" + InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_VARIANT + "/ffm");
     }
 
     @Override
@@ -27,15 +54,33 @@ public class EntitlementCheckNativeTransformer implements ClassFileTransformer {
             byte[] classfileBuffer
     ) {
         //System.out.println("[Agent] transform called for " + className);
+        if (c != null) {
+            // Retransformation: the stub drops the native modifier, which retransformation rejects
+            return null;
+        }
         if (className.equals(targetClassName)) { //&& loader.equals(targetClassLoader)) {
             //System.out.println("[Agent] Transforming class");
             try {
+                InstrumentedClassCache.Key cacheKey = null;
+                if (cache != null) {
+                    cacheKey = InstrumentedClassCache.key(planHash, classfileBuffer);
+                    var cachedClassBytes = cache.get(cacheKey);
+                    if (cachedClassBytes != null) {
+                        return cachedClassBytes;
+                    }
+                }
                 var rewriter = new ClassRewriter(className, classfileBuffer);
                 //System.out.println("[Agent] Rewriter created");
-                return rewriter.instrumentNativeMethod(methodName, descriptor);
+                var instrumentedClassBytes = rewriter.instrumentNativeMethod(methodName, descriptor, symbol, flags);
+                if (cacheKey != null) {
+                    cache.put(cacheKey, instrumentedClassBytes);
+                }
+                return instrumentedClassBytes;
             } catch (Throwable t) {
-                System.out.println("[Agent] error " + t);
-                t.printStackTrace();
+                if (Util.DEBUG) {
+                    System.err.println("[Agent] error transforming " + className + ": " + t);
+                    t.printStackTrace();
+                }
             }
         }
         return classfileBuffer;
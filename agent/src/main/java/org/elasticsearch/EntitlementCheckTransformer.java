@@ -1,33 +1,215 @@
 package org.elasticsearch;
 
+import org.objectweb.asm.Type;
+
 import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.security.ProtectionDomain;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class EntitlementCheckTransformer implements ClassFileTransformer {
 
-    private final Map<String, List<String>> targetClasses;
+    private final Map<String, MethodMatcher> targetClasses;
+    private final Map<String, MethodMatcher> callSiteTargets;
+    private final Class<?>[] inheritanceClasses;
+    private final ConstantPoolScanner constantPoolScanner;
+    private final InstrumentedClassCache cache;
+    private final byte[] planHash;
+    private final JavaBasePatch javaBasePatch;
+    private final TransformMetrics metrics;
+    private final ConstantPoolScanner callSiteScanner;
 
     static String getInternalClassName(String targetClassName) {
         return targetClassName.replaceAll("\\.", "/");
     }
 
     EntitlementCheckTransformer(Set<InstrumentationAgent.MethodKey> methodsToTransform) {
-        this.targetClasses = methodsToTransform.stream().collect(
-                Collectors.groupingBy(
-                        m -> getInternalClassName(m.className()),
-                        Collectors.mapping(InstrumentationAgent.MethodKey::methodName, Collectors.toList())
+        this(methodsToTransform, null, null, new TransformMetrics(), InstrumentationAgent.InstrumentationMode.CALLEE);
+    }
+
+    /**
+     * @param cache where to look for (and store) already instrumented classes; can be {@code null}
+     * @param javaBasePatch classes that have been instrumented offline, which we must skip; can be {@code null}
+     * @param metrics where to record what each {@link #transform} call did, and how long it took
+     * @param mode whether to instrument the planned methods themselves, or the call sites invoking them (for the
+     *             methods that can be called from outside the JDK, see {@link #callSiteMethods})
+     */
+    EntitlementCheckTransformer(Set<InstrumentationAgent.MethodKey> methodsToTransform, InstrumentedClassCache cache,
+                                JavaBasePatch javaBasePatch, TransformMetrics metrics,
+                                InstrumentationAgent.InstrumentationMode mode) {
+        var callSiteMethods = callSiteMethods(methodsToTransform, mode);
+        this.targetClasses = compileTargets(calleeMethods(methodsToTransform, mode));
+        this.callSiteTargets = compileTargets(callSiteMethods);
+        this.inheritanceClasses = CheckerFactory.methodsToInterfaces.values().stream()
+                .flatMap(Collection::stream)
+                .distinct()
+                .toArray(Class<?>[]::new);
+        this.constantPoolScanner = new ConstantPoolScanner(
+                CheckerFactory.methodsToInterfaces.keySet().stream().map(MethodSignature::name).distinct().toList(),
+                List.of(inheritanceClasses)
+        );
+        this.cache = cache;
+        this.planHash = planHash(methodsToTransform, mode);
+        this.javaBasePatch = javaBasePatch;
+        this.metrics = metrics;
+        this.callSiteScanner = new ConstantPoolScanner(
+                callSiteMethods.stream().map(InstrumentationAgent.MethodKey::methodName).distinct().toList(),
+                List.of()
+        );
+    }
+
+    /**
+     * The methods whose invocations are checked in {@code mode}: in
+     * {@link InstrumentationAgent.InstrumentationMode#CALL_SITE} mode, the planned methods that code outside the JDK
+     * can invoke, i.e. the public and protected methods of the public classes of exported packages. The others (e.g.
+     * {@code java.lang.Shutdown.exit}, package-private) can only be reached through JDK code, loaded before premain
+     * and never seen by the call-site rewriting: they keep their callee checks, as do the inheritance methods (which
+     * are mostly reached through the JDK, e.g. {@code Files.exists} calling {@code FileSystemProvider.exists}).
+     * <p>
+     * Call sites are matched on the owner of the invocation (see {@link InstrumentCallSitesClassVisitor}), which is the
+     * static type of the receiver, or the class naming a static method: {@code MyFile.delete()} invokes
+     * {@code File.delete} with {@code MyFile} as the owner. Without the hierarchy of the owner (loading it while
+     * transforming the caller is not an option), only the methods no other owner can name are checked at their call
+     * sites: constructors, and the methods of final classes. The others keep their callee checks, as do the methods
+     * that cannot be found.
+     */
+    static Set<InstrumentationAgent.MethodKey> callSiteMethods(Set<InstrumentationAgent.MethodKey> methodsToTransform,
+                                                              InstrumentationAgent.InstrumentationMode mode) {
+        if (mode != InstrumentationAgent.InstrumentationMode.CALL_SITE) {
+            return Set.of();
+        }
+        return methodsToTransform.stream()
+                .filter(EntitlementCheckTransformer::isCheckableAtCallSites)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * @return the methods that get a callee check (a prologue) in {@code mode}: the ones not in {@link #callSiteMethods}
+     */
+    static Set<InstrumentationAgent.MethodKey> calleeMethods(Set<InstrumentationAgent.MethodKey> methodsToTransform,
+                                                            InstrumentationAgent.InstrumentationMode mode) {
+        var callSiteMethods = callSiteMethods(methodsToTransform, mode);
+        return methodsToTransform.stream()
+                .filter(m -> callSiteMethods.contains(m) == false)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static boolean isCheckableAtCallSites(InstrumentationAgent.MethodKey method) {
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(method.className(), false, ClassLoader.getSystemClassLoader());
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        if (Modifier.isPublic(clazz.getModifiers()) == false
+                || clazz.getModule().isExported(clazz.getPackageName()) == false) {
+            return false;
+        }
+        if (method.methodName().equals("<init>")) {
+            // Constructors are invoked on their own class only
+            return Stream.of(clazz.getDeclaredConstructors())
+                    .filter(c -> Type.getConstructorDescriptor(c).equals(method.methodDescriptor()))
+                    .anyMatch(c -> (c.getModifiers() & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0);
+        }
+        if (Modifier.isFinal(clazz.getModifiers()) == false) {
+            // A subclass (or a subinterface) can name the method too
+            return false;
+        }
+        return Stream.of(clazz.getDeclaredMethods())
+                .filter(m -> m.getName().equals(method.methodName())
+                        && Type.getMethodDescriptor(m).equals(method.methodDescriptor()))
+                .anyMatch(m -> (m.getModifiers() & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0);
+    }
+
+    /**
+     * Groups the methods to instrument by (internal) class name, and compiles each group into an immutable
+     * {@link MethodMatcher}: transforming a class is then one map lookup, regardless of the size of the plan.
+     */
+    static Map<String, MethodMatcher> compileTargets(Set<InstrumentationAgent.MethodKey> methodsToTransform) {
+        return methodsToTransform.stream().collect(
+                Collectors.collectingAndThen(
+                        Collectors.groupingBy(
+                                m -> getInternalClassName(m.className()),
+                                Collectors.collectingAndThen(
+                                        Collectors.mapping(InstrumentationAgent.MethodKey::signature, Collectors.toList()),
+                                        MethodMatcher::of
+                                )
+                        ),
+                        Map::copyOf
                 )
         );
     }
 
+    /**
+     * @return the hash of the plan of a transformer of {@code methodsToTransform} in {@code mode}, which its cache
+     * entries are keyed by
+     */
+    static byte[] planHash(Set<InstrumentationAgent.MethodKey> methodsToTransform,
+                           InstrumentationAgent.InstrumentationMode mode) {
+        return InstrumentedClassCache.planHash(
+                describePlan(methodsToTransform, CheckerFactory.methodsToInterfaces, CheckerFactory.entitlements,
+                        CheckerFactory.inheritanceEntitlements)
+                        + "\nmode:" + mode
+                        + "\ncallSites:" + callSiteMethods(methodsToTransform, mode).stream()
+                                .map(m -> getInternalClassName(m.className()) + "#" + m.methodName() + m.methodDescriptor())
+                                .sorted()
+                                .toList()
+        );
+    }
+
+    /**
+     * Everything that determines the output of {@link #transform}, besides the input class bytes.
+     */
+    static String describePlan(Set<InstrumentationAgent.MethodKey> methodsToTransform,
+                               Map<MethodSignature, List<Class<?>>> methodsToInterfaces,
+                               Map<InstrumentationAgent.MethodKey, Entitlement> entitlements,
+                               Map<MethodSignature, Entitlement> inheritanceEntitlements) {
+        var plan = new StringBuilder("methods:");
+        methodsToTransform.stream()
+                .map(m -> getInternalClassName(m.className()) + "#" + m.methodName() + m.methodDescriptor() + "="
+                        + entitlements.getOrDefault(m, Entitlement.UNCLASSIFIED))
+                .sorted()
+                .forEach(m -> plan.append(m).append(';'));
+        plan.append("\ninheritance:");
+        methodsToInterfaces.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey(Comparator.comparing(MethodSignature::name).thenComparing(MethodSignature::descriptor)))
+                .forEach(e -> plan.append(e.getKey().name()).append(e.getKey().descriptor())
+                        .append(e.getValue().stream().map(Class::getName).sorted().toList())
+                        .append('=').append(inheritanceEntitlements.getOrDefault(e.getKey(), Entitlement.UNCLASSIFIED))
+                        .append(';'));
+        plan.append("\nprologue:").append(InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_VARIANT)
+                .append('/').append(InstrumentMethodClassVisitor.InstrumentingInheritanceMethodVisitor.PROLOGUE_VARIANT);
+        return plan.toString();
+    }
+
+    /**
+     * Cheap pre-filter, evaluated before we hand the class to ASM. The vast majority of the classes loaded by the JVM
+     * are not in the plan at all: they are neither a direct target, nor can they override one of the methods we check
+     * via inheritance. For those, parsing and re-serializing the class is pure waste.
+     */
+    private boolean isInheritanceCandidate(Class<?> classBeingRedefined, byte[] classfileBuffer) {
+        if (classBeingRedefined != null) {
+            // Retransformation: the class is already loaded, so we can just ask for its hierarchy. The watched types
+            // themselves are not instrumented, only their subtypes (as in ConstantPoolScanner and RetransformScheduler)
+            for (var inheritanceClass : inheritanceClasses) {
+                if (inheritanceClass != classBeingRedefined && inheritanceClass.isAssignableFrom(classBeingRedefined)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return constantPoolScanner.isInheritanceCandidate(classfileBuffer);
+    }
+
     @Override
     public byte[] transform(
             ClassLoader loader,
@@ -37,34 +219,82 @@ class EntitlementCheckTransformer implements ClassFileTransformer {
             byte[] classfileBuffer
     ) {
         //System.out.println("[Agent] transform called for " + className);
-
-        //System.out.println("[Agent] Transforming class");
+        long startTime = System.nanoTime();
+        var outcome = TransformMetrics.Outcome.SKIPPED;
+        byte[] result = null;
         try {
-            var rewriter = new ClassRewriter(className, classfileBuffer);
-            //System.out.println("[Agent] Rewriter created");
-
-            Set<String> methods = new HashSet<>();
+            if (className == null || (javaBasePatch != null && javaBasePatch.isPatched(className))) {
+                return null;
+            }
             var classMethods = targetClasses.get(className);
-            if (classMethods != null) {
-                methods.addAll(classMethods);
+            boolean inheritanceCandidate = isInheritanceCandidate(c, classfileBuffer);
+            boolean callSiteCandidate = callSiteTargets.isEmpty() == false
+                    && callSiteScanner.referencesAnyMethodName(classfileBuffer);
+            if (classMethods == null && inheritanceCandidate == false && callSiteCandidate == false) {
+                return null;
             }
-            var instrumentedClassBytes = rewriter.instrumentMethodNoChecks(methods);
-            if (instrumentedClassBytes != null) {
-                //System.out.println("Instrumented class " + className);
-                //var path = Path.of(className + ".class");
-                //Files.createDirectories(path.getParent());
-                //Files.write(path, instrumentedClassBytes);
-                return instrumentedClassBytes;
 
+            //System.out.println("[Agent] Transforming class");
+            try {
+                InstrumentedClassCache.Key cacheKey = null;
+                if (cache != null) {
+                    // The inheritance candidate flag is derived from the bytes (or the class hierarchy, which does not
+                    // change across restarts), so the key covers it
+                    cacheKey = InstrumentedClassCache.key(planHash, classfileBuffer);
+                    var cachedClassBytes = cache.get(cacheKey);
+                    if (cachedClassBytes != null) {
+                        outcome = TransformMetrics.Outcome.CACHE_HIT;
+                        result = cachedClassBytes;
+                        return result;
+                    }
+                }
+
+                byte[] instrumentedClassBytes = null;
+                if (classMethods != null || inheritanceCandidate) {
+                    var rewriter = new ClassRewriter(className, classfileBuffer);
+                    //System.out.println("[Agent] Rewriter created");
+
+                    var methods = classMethods != null ? classMethods : MethodMatcher.EMPTY;
+                    instrumentedClassBytes = rewriter.instrumentMethodNoChecks(methods, inheritanceCandidate);
+                }
+                if (callSiteCandidate) {
+                    // Inheritance methods keep their callee checks (see callSiteMethods): no call-site check for them
+                    var rewriter = new ClassRewriter(className,
+                            instrumentedClassBytes != null ? instrumentedClassBytes : classfileBuffer, false);
+                    var callSitesInstrumented = rewriter.instrumentCallSites(callSiteTargets);
+                    if (callSitesInstrumented != null) {
+                        instrumentedClassBytes = callSitesInstrumented;
+                    }
+                }
+                if (instrumentedClassBytes != null) {
+                    if (cacheKey != null) {
+                        cache.put(cacheKey, instrumentedClassBytes);
+                    }
+                    //System.out.println("Instrumented class " + className);
+                    //var path = Path.of(className + ".class");
+                    //Files.createDirectories(path.getParent());
+                    //Files.write(path, instrumentedClassBytes);
+                    outcome = TransformMetrics.Outcome.REWRITTEN;
+                    result = instrumentedClassBytes;
+                    return result;
+
+                }
+                //System.out.println("No need to instrument class");
+                outcome = TransformMetrics.Outcome.UNCHANGED;
+
+                //return rewriter.instrumentMethod(methodName);
+            } catch (Throwable t) {
+                outcome = TransformMetrics.Outcome.FAILED;
+                if (Util.DEBUG) {
+                    System.err.println("[Agent] error transforming " + className + ": " + t);
+                    t.printStackTrace();
+                }
             }
-            //System.out.println("No need to instrument class");
 
-            //return rewriter.instrumentMethod(methodName);
-        } catch (Throwable t) {
-            System.out.println("[Agent] error " + t);
-            t.printStackTrace();
+            return null;
+        } finally {
+            metrics.record(className, outcome, System.nanoTime() - startTime, classfileBuffer.length,
+                    result != null ? result.length : 0);
         }
-
-        return null;
     }
 }
@@ -1,6 +1,6 @@
 package org.elasticsearch;
 
-import java.util.Locale;
+import java.nio.file.Path;
 
 import static java.lang.StackWalker.Option.RETAIN_CLASS_REFERENCE;
 
@@ -12,65 +12,279 @@ public interface EntitlementChecker {
         return ALREADY_CHECKED.orElse(false);
     }
 
-    void check(Class<?> callerClass);
+    void check(Class<?> callerClass, Entitlement entitlement);
 
     /**
-     * Check variant that implements context-aware checks via stack frames
+     * Argument-aware check, for instrumented methods taking a {@link Path} (see {@link CheckerFactory#checkFor})
      */
-    void check(Class<?> callerClass, Runnable originalMethodRunnable);
+    void checkPath(Class<?> callerClass, Entitlement entitlement, Path path);
+
+    /**
+     * Check for an intercepted {@code open} (see {@link Natives#CHECK_OPEN}): the entitlements the {@code flags} need
+     * (see {@link OpenFlags}), on the NUL-terminated path at {@code pathAddress}. The path is matched in place, so an
+     * allowed check allocates nothing. {@code callerClass} is the first class outside the JDK and the agent, or the
+     * class to blame when there is none (see {@link Util#getCallerClassOutsideJdk}); opens without either are not
+     * checked.
+     */
+    void checkOpen(Class<?> callerClass, long pathAddress, int flags);
+
+    /**
+     * Check variant that implements context-aware checks: the original method runs inside the check, and checks nested
+     * in it are skipped.
+     */
+    void check(Class<?> callerClass, Entitlement entitlement, Runnable originalMethod);
+
+    boolean check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfBoolean originalMethod);
+
+    int check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfInt originalMethod);
+
+    long check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfLong originalMethod);
+
+    float check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfFloat originalMethod);
+
+    double check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfDouble originalMethod);
+
+    <T> T check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfObject<T> originalMethod);
 
     // TODO: this should be auto-generated, maybe even directly on the impl?
     void nullCheck(Class<?> callerClass);
 }
 
+/**
+ * Once a class has been checked, its checks never block a virtual thread's carrier: they take no monitor (the policy
+ * is a volatile snapshot, decisions a {@link ClassValue}, nesting a {@link ThreadLocal} counter, and denials are
+ * reported by {@link DenialReporter} on its own thread), and the generated prologues call them before taking the
+ * monitor of a synchronized method.
+ * <p>
+ * The first check of a class is not monitor-free: the first {@link ClassValue#get} of a class synchronizes on the
+ * class's {@code ClassValueMap}, and resolving its {@link Component} may lock a {@code ConcurrentHashMap} bin. On JDK 21
+ * a virtual thread contending for a monitor blocks its carrier, and JFR records no {@code jdk.VirtualThreadPinned}
+ * event for it. That is once per class (and per policy), with the monitors held for microseconds.
+ * VirtualThreadScalabilityHarness checks both: no pinning with many caller classes, and the contended monitor enters
+ * on virtual threads that it reports.
+ */
 class EntitlementCheckerImpl implements  EntitlementChecker {
-    static boolean allowed = false;
+    /**
+     * The decisions of the current policy. Changing policy publishes a new cache (see {@link #setPolicy}), so a check
+     * sees either the old policy or the new one.
+     */
+    private static volatile DecisionCache decisions = new DecisionCache(ComponentPolicy.DENY_ALL);
+
+    static void setPolicy(EntitlementPolicy policy) {
+        decisions = new DecisionCache(policy);
+        // After publishing it: relinked call sites must see the new policy
+        CheckerFactory.policyChanged();
+    }
+
+    static EntitlementPolicy policy() {
+        return decisions.policy();
+    }
 
     @Override
-    public void check(Class<?> callerClass) {
+    public void check(Class<?> callerClass, Entitlement entitlement) {
+        checkAllowed(callerClass, entitlement, null);
+    }
+
+    /**
+     * Allowed if the class is entitled everywhere (the cached decision), or on a directory containing the path (see
+     * {@link EntitlementPolicy#isAllowed(Class, Entitlement, Path)}).
+     */
+    @Override
+    public void checkPath(Class<?> callerClass, Entitlement entitlement, Path path) {
+        checkAllowed(callerClass, entitlement, path);
+    }
+
+    @Override
+    public void checkOpen(Class<?> callerClass, long pathAddress, int flags) {
+        long required = OpenFlags.entitlements(flags);
+        if ((required & Entitlement.READ_FILE.bit()) != 0) {
+            checkAllowedOnNativePath(callerClass, Entitlement.READ_FILE, pathAddress);
+        }
+        if ((required & Entitlement.WRITE_FILE.bit()) != 0) {
+            checkAllowedOnNativePath(callerClass, Entitlement.WRITE_FILE, pathAddress);
+        }
+    }
+
+    private void checkAllowedOnNativePath(Class<?> callerClass, Entitlement entitlement, long path) {
+        var event = new EntitlementCheckEvent();
+        if (event.isEnabled()) {
+            event.begin();
+        }
         var classToValidate = findClassToValidate(callerClass);
-        System.out.printf(
-                Locale.ROOT,
-                "Caller class: %s in %s%n",
-                classToValidate.getName(),
-                classToValidate.getModule()
-        );
+        var current = decisions;
+        if (current.isAllowed(classToValidate, entitlement) == false
+                && current.policy().isAllowedOnNativePath(classToValidate, entitlement, path) == false) {
+            event.completeOnNativePath(callerClass, classToValidate, entitlement, EntitlementCheckEvent.DENIED, path);
+            throw denied(classToValidate, entitlement);
+        }
+        event.completeOnNativePath(callerClass, classToValidate, entitlement, EntitlementCheckEvent.ALLOWED, path);
+    }
 
-        if (allowed == false) {
-            throw new SecurityException(classToValidate + " not allowed");
+    private void checkAllowed(Class<?> callerClass, Entitlement entitlement, Path path) {
+        var event = new EntitlementCheckEvent();
+        if (event.isEnabled()) {
+            event.begin();
         }
+        var classToValidate = findClassToValidate(callerClass);
+        var current = decisions;
+        if (current.isAllowed(classToValidate, entitlement) == false
+                && (path == null || current.policy().isAllowed(classToValidate, entitlement, path) == false)) {
+            event.complete(callerClass, classToValidate, entitlement, EntitlementCheckEvent.DENIED, path);
+            throw denied(classToValidate, entitlement);
+        }
+        event.complete(callerClass, classToValidate, entitlement, EntitlementCheckEvent.ALLOWED, path);
+    }
+
+    /**
+     * How many checks running an original method (the {@code check} overloads taking it) are in progress on this
+     * thread; checks nested in one of those are skipped. Constant time, unlike walking the stack looking for an outer
+     * check (see {@link #checkWalkingStack}).
+     * <p>
+     * This is a plain {@link ThreadLocal}, so it is per virtual thread, not per carrier thread: a virtual thread can
+     * unmount in the original method (e.g. blocking on I/O) and resume on another carrier.
+     */
+    private static final ThreadLocal<CheckDepth> checkDepth = ThreadLocal.withInitial(CheckDepth::new);
+
+    private static final class CheckDepth {
+        private int depth;
     }
 
     @Override
-    public void check(Class<?> callerClass, Runnable originalMethodRunnable) {
-        var classToValidate = findClassToValidate(callerClass);
-        System.out.printf(
-                Locale.ROOT,
-                "Caller class: %s in %s%n",
-                classToValidate.getName(),
-                classToValidate.getModule()
-        );
+    public void check(Class<?> callerClass, Entitlement entitlement, Runnable originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            originalMethod.run();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    @Override
+    public boolean check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfBoolean originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
 
+    @Override
+    public int check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfInt originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    @Override
+    public long check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfLong originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    @Override
+    public float check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfFloat originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    @Override
+    public double check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfDouble originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    @Override
+    public <T> T check(Class<?> callerClass, Entitlement entitlement, OriginalMethod.OfObject<T> originalMethod) {
+        var marker = enter(callerClass, entitlement);
+        try {
+            return originalMethod.call();
+        } finally {
+            marker.depth--;
+        }
+    }
+
+    private CheckDepth enter(Class<?> callerClass, Entitlement entitlement) {
+        var marker = checkDepth.get();
+        checkUnlessNested(callerClass, entitlement, marker.depth > 0);
+        // Only once the check passed
+        marker.depth++;
+        return marker;
+    }
+
+    /**
+     * The original variant of {@link #check(Class, Entitlement, Runnable)}, detecting nested checks by walking the
+     * whole stack; its cost grows with the stack depth. Kept for comparison (see ReentrancyDetectionBenchmarks).
+     */
+    void checkWalkingStack(Class<?> callerClass, Entitlement entitlement, Runnable originalMethod) {
         var alreadyChecked = StackWalker.getInstance(RETAIN_CLASS_REFERENCE)
                 .walk(frames -> frames
                         .skip(2) // Skip this method and its caller
-                        .filter(f -> f.getDeclaringClass().equals(EntitlementCheckerImpl.class) && f.getMethodName().equals("check"))
-                ).findFirst().isPresent();
+                        .anyMatch(f -> f.getDeclaringClass().equals(EntitlementCheckerImpl.class)
+                                && (f.getMethodName().equals("check") || f.getMethodName().equals("checkWalkingStack")))
+                );
+        checkUnlessNested(callerClass, entitlement, alreadyChecked);
+        originalMethod.run();
+    }
 
+    private void checkUnlessNested(Class<?> callerClass, Entitlement entitlement, boolean alreadyChecked) {
+        var event = new EntitlementCheckEvent();
+        if (event.isEnabled()) {
+            event.begin();
+        }
+        var classToValidate = findClassToValidate(callerClass);
         if (alreadyChecked == false) {
-            if (allowed == false) {
-                throw new SecurityException(classToValidate + " not allowed");
+            if (decisions.isAllowed(classToValidate, entitlement) == false) {
+                event.complete(callerClass, classToValidate, entitlement, EntitlementCheckEvent.DENIED);
+                throw denied(classToValidate, entitlement);
             }
+            event.complete(callerClass, classToValidate, entitlement, EntitlementCheckEvent.ALLOWED);
+        } else {
+            event.complete(callerClass, classToValidate, entitlement, EntitlementCheckEvent.ALREADY_CHECKED);
         }
-        originalMethodRunnable.run();
     }
 
     @Override
-    public void nullCheck(Class<?> callerClass) {
-        System.out.printf(
-                Locale.ROOT,
-                "nullCheck for %s",
-                callerClass.getName());
+    public void nullCheck(Class<?> callerClass) {}
+
+    /**
+     * Denials are the slow path (we are going to throw anyway), so this is where we resolve what was denied and hand
+     * it to the {@link DenialReporter}; allowed checks do no I/O at all.
+     */
+    private static SecurityException denied(Class<?> classToValidate, Entitlement entitlement) {
+        DenialReporter.INSTANCE.report(classToValidate, entitlement);
+        return new SecurityException(classToValidate + " not allowed");
+    }
+
+    /**
+     * @return the instrumented method calling the checker, e.g. {@code java.lang.Shutdown.exit(I)V}; in call-site mode,
+     * the method containing the instrumented call
+     */
+    static String instrumentedMethod() {
+        return StackWalker.getInstance(RETAIN_CLASS_REFERENCE)
+                .walk(frames -> frames
+                        .dropWhile(f -> f.getDeclaringClass() == EntitlementCheckerImpl.class
+                                || f.getDeclaringClass() == EntitlementCheckEvent.class
+                                || f.getDeclaringClass() == DenialReporter.class)
+                        .findFirst()
+                        .map(f -> f.getClassName() + "." + f.getMethodName() + f.getDescriptor())
+                        .orElse("<unknown>")
+                );
     }
 
     private Class<?> findClassToValidate(Class<?> callerClass) {
@@ -0,0 +1,58 @@
+package org.elasticsearch;
+
+import java.nio.file.Path;
+
+/**
+ * Decides whether a class is entitled to something. Implementations can be as slow as they need to be: the checker
+ * only asks once per (class, entitlement) and caches the answer in a {@link DecisionCache}.
+ */
+@FunctionalInterface
+interface EntitlementPolicy {
+
+    /**
+     * Everything is allowed to everyone: checks are linked to no-ops (see {@link #isUnrestricted}).
+     */
+    EntitlementPolicy ALLOW_ALL = new EntitlementPolicy() {
+        @Override
+        public boolean isAllowed(Class<?> callerClass, Entitlement entitlement) {
+            return true;
+        }
+
+        @Override
+        public boolean isUnrestricted(Entitlement entitlement) {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "ALLOW_ALL";
+        }
+    };
+
+    boolean isAllowed(Class<?> callerClass, Entitlement entitlement);
+
+    /**
+     * The decision for a check on a path (see {@link EntitlementChecker#checkPath}), asked when the class is not
+     * entitled everywhere. It is not cached, so it has to be cheap (see {@link PathTrie}).
+     */
+    default boolean isAllowed(Class<?> callerClass, Entitlement entitlement, Path path) {
+        return isAllowed(callerClass, entitlement);
+    }
+
+    /**
+     * {@link #isAllowed(Class, Entitlement, Path)}, for a path passed to an intercepted native as the address of a C
+     * string (see {@link EntitlementChecker#checkOpen}); must not allocate either.
+     */
+    default boolean isAllowedOnNativePath(Class<?> callerClass, Entitlement entitlement, long path) {
+        return isAllowed(callerClass, entitlement);
+    }
+
+    /**
+     * Whether every class is entitled to {@code entitlement}, whoever the caller is. Inheritance check sites for an
+     * unrestricted entitlement are linked to a no-op, at no cost at all in compiled code, until the policy changes (see
+     * {@link CheckerFactory#bootstrap}).
+     */
+    default boolean isUnrestricted(Entitlement entitlement) {
+        return false;
+    }
+}
@@ -1,9 +1,5 @@
 package org.elasticsearch;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
-
 public class Example {
     /**
      * The original method, renamed and made private.
@@ -20,26 +16,13 @@ public class Example {
      */
     static void method(int arg) {
         if (EntitlementChecker.isCurrentCallAlreadyChecked() == false) {
-            EntitlementCheckerHandle.instance().check(Util.getCallerClass());
-            ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, new OriginalMethodRunnable(null, arg));
-            //ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, new original_method_runnable(arg));
-            //ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, () -> original_method(arg));
+            EntitlementCheckerHandle.instance().check(Util.getCallerClass(), Entitlement.EXIT_VM);
+            ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, () -> original_method(arg));
         } else {
             original_method(arg);
         }
     }
 
-    static MethodHandle mh;
-    public static MethodType mt = MethodType.methodType(Void.TYPE, Integer.TYPE);
-
-    static {
-        try {
-            mh = MethodHandles.lookup().findStatic(System.class, "exit", mt);
-        } catch (NoSuchMethodException | IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /**
      * The instrumented method retains the same signature, but it is a just a stub that replaces the implementation
      * with checks and then delegates the work to the renamed method.
@@ -47,6 +30,18 @@ public class Example {
      * This is the {@link StackWalker} variant.
      */
     static void method_2(int arg) {
-        EntitlementCheckerHandle.instance().check(Util.getCallerClass(), new OriginalMethodRunnable(mh, arg));
+        EntitlementCheckerHandle.instance().check(Util.getCallerClass(), Entitlement.EXIT_VM, () -> original_method(arg));
+    }
+
+    private static long original_method_3(String path, long offset) {
+        return path.length() + offset;
+    }
+
+    /**
+     * Same as {@link #method_2}, for a method returning a value: the check returns it, without boxing.
+     */
+    static long method_3(String path, long offset) {
+        return EntitlementCheckerHandle.instance().check(Util.getCallerClass(), Entitlement.READ_FILE,
+                () -> original_method_3(path, offset));
     }
 }
@@ -6,16 +6,19 @@ import org.objectweb.asm.util.TraceMethodVisitor;
 
 import java.io.PrintWriter;
 
+import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_MAX_STACK;
 import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.prologue;
 import static org.objectweb.asm.Opcodes.*;
 
 class InstrumentAndAnnotateMethodClassVisitor extends ClassVisitor {
 
+    private final String className;
     private final String methodName;
     //private final TraceClassVisitor tracer;
 
-    public InstrumentAndAnnotateMethodClassVisitor(ClassVisitor cv, String methodName) {
+    public InstrumentAndAnnotateMethodClassVisitor(ClassVisitor cv, String className, String methodName) {
         super(ASM9, cv);
+        this.className = className;
         this.methodName = methodName;
         //this.tracer = new TraceClassVisitor(cv, new PrintWriter(System.out));
     }
@@ -41,7 +44,8 @@ class InstrumentAndAnnotateMethodClassVisitor extends ClassVisitor {
             //System.out.println("[Agent] method " + name + " instrumenting: " + (methodVisitor == null ? "no" : "yes"));
             return new InstrumentingMethodVisitor(
                     //new TraceMethodVisitor(methodVisitor, InstrumentAndAnnotateMethodClassVisitor.this.tracer.p)
-                    methodVisitor
+                    methodVisitor,
+                    CheckerFactory.entitlementFor(className, name, desc)
             );
 
         }
@@ -59,8 +63,11 @@ class InstrumentAndAnnotateMethodClassVisitor extends ClassVisitor {
 
         private boolean isAnnotationPresent;
 
-        public InstrumentingMethodVisitor(MethodVisitor mv) {
+        private final Entitlement entitlement;
+
+        public InstrumentingMethodVisitor(MethodVisitor mv, Entitlement entitlement) {
             super(ASM9, mv);
+            this.entitlement = entitlement;
             //System.out.println("Instrumenting");
         }
 
@@ -87,8 +94,13 @@ class InstrumentAndAnnotateMethodClassVisitor extends ClassVisitor {
                 isAnnotationPresent = true;
 
                 mv.visitCode();
-                prologue(this);
+                prologue(this, entitlement);
             }
         }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(Math.max(maxStack, PROLOGUE_MAX_STACK), maxLocals);
+        }
     }
 }
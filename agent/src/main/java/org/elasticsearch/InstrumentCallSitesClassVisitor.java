@@ -0,0 +1,117 @@
+package org.elasticsearch;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Call-site (caller side) alternative to {@link InstrumentMethodClassVisitor}: instead of adding a prologue to the
+ * methods in the plan, we rewrite the invocations of those methods in the classes calling them, as they are loaded.
+ * <p>
+ * Each invocation of a planned method gets a check right before it, with the caller passed as a class constant:
+ * <pre>
+ *     ... arguments of the call
+ *     INVOKESTATIC org/elasticsearch/EntitlementCheckerHandle.instance ()Lorg/elasticsearch/EntitlementChecker;
+ *     LDC Lcom/example/Caller;
+ *     GETSTATIC org/elasticsearch/Entitlement.READ_FILE : Lorg/elasticsearch/Entitlement;
+ *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.check (Ljava/lang/Class;Lorg/elasticsearch/Entitlement;)V (itf)
+ *     INVOKEVIRTUAL java/nio/file/spi/FileSystemProvider.exists (Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z
+ * </pre>
+ * No stack walk, and the JIT sees the caller identity as a constant. The check only pushes (and consumes) three values
+ * on top of the arguments, and does not branch, so existing frames stay valid; we just need 3 more stack slots.
+ * <p>
+ * Invocations are matched on their owner exactly, so the plan given here must only have methods no other owner can
+ * name (see {@link EntitlementCheckTransformer#callSiteMethods}): a call through a subclass reference is not seen. The
+ * inheritance methods ({@link CheckerFactory#methodsToInterfaces}) are all overridable, so they keep their callee checks.
+ */
+class InstrumentCallSitesClassVisitor extends ClassVisitor {
+
+    private final Map<String, MethodMatcher> targetClasses;
+    private String callerClass;
+    private boolean canLoadClassConstants;
+    private int instrumentedCallSites;
+
+    /**
+     * @param targetClasses the methods in the plan, by internal class name
+     */
+    InstrumentCallSitesClassVisitor(ClassVisitor cv, Map<String, MethodMatcher> targetClasses) {
+        super(ASM9, cv);
+        this.targetClasses = targetClasses;
+    }
+
+    int instrumentedCallSites() {
+        return instrumentedCallSites;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.callerClass = name;
+        // LDC of a class constant needs class file version 49 (Java 5)
+        this.canLoadClassConstants = (version & 0xFFFF) >= V1_5;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        var mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (mv == null || canLoadClassConstants == false) {
+            return mv;
+        }
+        return new CallSiteMethodVisitor(mv);
+    }
+
+    private boolean isPlanned(String owner, String name, String descriptor) {
+        var methods = targetClasses.get(owner);
+        return methods != null && methods.matches(name, descriptor);
+    }
+
+    private class CallSiteMethodVisitor extends MethodVisitor {
+
+        private boolean instrumented;
+
+        CallSiteMethodVisitor(MethodVisitor mv) {
+            super(Opcodes.ASM9, mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if (isPlanned(owner, name, descriptor)) {
+                //System.out.println("[Agent] call site " + callerClass + " -> " + owner + "#" + name + descriptor);
+                Type checkerClassType = Type.getType(EntitlementChecker.class);
+                String handleClass = checkerClassType.getInternalName() + "Handle";
+
+                // pushEntitlementChecker
+                super.visitMethodInsn(INVOKESTATIC, handleClass, "instance", Type.getMethodDescriptor(checkerClassType), false);
+                // pushCallerClass, as a constant
+                super.visitLdcInsn(Type.getObjectType(callerClass));
+                InstrumentMethodClassVisitor.InstrumentingMethodVisitor.pushEntitlement(
+                        this,
+                        CheckerFactory.entitlementFor(owner, name, descriptor)
+                );
+                // invokeInstrumentationMethod
+                super.visitMethodInsn(
+                        INVOKEINTERFACE,
+                        checkerClassType.getInternalName(),
+                        "check",
+                        Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Class.class), Type.getType(Entitlement.class)),
+                        true
+                );
+                instrumented = true;
+                ++instrumentedCallSites;
+            }
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // The arguments are still on the stack when we push checker, caller and entitlement
+            int extraStack = instrumented ? InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_MAX_STACK : 0;
+            super.visitMaxs(maxStack + extraStack, maxLocals);
+        }
+    }
+}
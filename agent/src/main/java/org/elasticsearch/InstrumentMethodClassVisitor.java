@@ -3,12 +3,12 @@ package org.elasticsearch;
 import org.objectweb.asm.*;
 
 import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Supplier;
 
 import static org.elasticsearch.EntitlementCheckTransformer.getInternalClassName;
@@ -16,13 +16,27 @@ import static org.objectweb.asm.Opcodes.*;
 
 class InstrumentMethodClassVisitor extends ClassVisitor {
 
-    private final Set<String> methodNames;
+    private final MethodMatcher methods;
+    private final boolean instrumentInheritance;
+    private final InstrumentingMethodVisitor.Variant variant;
     private final String owner;
     //private final TraceClassVisitor tracer;
 
-    public InstrumentMethodClassVisitor(ClassVisitor cv, String className, Set<String> methodNames) {
+    public InstrumentMethodClassVisitor(ClassVisitor cv, String className, MethodMatcher methods) {
+        this(cv, className, methods, true);
+    }
+
+    public InstrumentMethodClassVisitor(ClassVisitor cv, String className, MethodMatcher methods,
+                                        boolean instrumentInheritance) {
+        this(cv, className, methods, instrumentInheritance, InstrumentingMethodVisitor.DEFAULT_VARIANT);
+    }
+
+    public InstrumentMethodClassVisitor(ClassVisitor cv, String className, MethodMatcher methods,
+                                        boolean instrumentInheritance, InstrumentingMethodVisitor.Variant variant) {
         super(ASM9, cv);
-        this.methodNames = methodNames;
+        this.methods = methods;
+        this.instrumentInheritance = instrumentInheritance;
+        this.variant = variant;
         this.owner = getInternalClassName(className);
         //this.tracer = new TraceClassVisitor(cv, new PrintWriter(System.out));
     }
@@ -55,8 +69,8 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
      *
      * static void exit(int var0) {
      *     if (!EntitlementChecker.isCurrentCallAlreadyChecked()) {
-     *         EntitlementCheckerHandle.instance().check(Util.getCallerClass());
-     *         ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, new OriginalMethodRunnable("original_exit", var0));
+     *         EntitlementCheckerHandle.instance().check(Util.getCallerClass(), Entitlement.EXIT_VM);
+     *         ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, () -> original_exit(var0));
      *     } else {
      *         original_exit(var0);
      *     }
@@ -70,25 +84,27 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                                      String[] exceptions) {
 
         // System.out.println("[Agent] visiting method " + name);
-        if (methodNames.contains(name)) {
+        if (methods.matches(name, desc)) {
             var newAccess = (access &~ACC_PUBLIC) | ACC_PRIVATE;
             var methodVisitor = cv.visitMethod(newAccess, "original_" + name, desc, signature, exceptions);
             //System.out.println("[Agent] method " + name + " instrumenting: " + (methodVisitor == null ? "no" : "yes"));
 
-            ;
+            // The renamed original keeps ACC_SYNCHRONIZED: the check runs before taking the monitor, so it never
+            // pins a virtual thread to its carrier
+            var checkAccess = access & ~ACC_SYNCHRONIZED;
             methodsToAdd.add(() -> new InstrumentingMethodVisitor(
                     //new TraceMethodVisitor(methodVisitor, InstrumentMethodClassVisitor.this.tracer.p)
-                    cv.visitMethod(access, name, desc, signature, exceptions), owner, name, desc
+                    cv.visitMethod(checkAccess, name, desc, signature, exceptions), owner, checkAccess, name, desc, variant
             ));
             return methodVisitor;
         }
         //System.out.println("[Agent] method " + name + " in interfaces?");
-        if (CheckerFactory.methodsToInterfaces.containsKey(name)) {
+        if (instrumentInheritance && CheckerFactory.inheritanceMethods.matches(name, desc)) {
             var methodVisitor = cv.visitMethod(access, name, desc, signature, exceptions);
             //System.out.println("[Agent] inherited method " + name + " instrumenting: " + (methodVisitor == null ? "no" : "yes"));
             return new InstrumentingInheritanceMethodVisitor(
                     //new TraceMethodVisitor(methodVisitor, InstrumentMethodClassVisitor.this.tracer.p)
-                    methodVisitor, name
+                    methodVisitor, owner, access, name, desc
             );
         }
         return cv.visitMethod(access, name, desc, signature, exceptions);
@@ -107,25 +123,68 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
     static class InstrumentingMethodVisitor extends MethodVisitor {
 
         private final String owner;
+        private final boolean isStatic;
         private final String originalMethodName;
         private final String originalMethodDescriptor;
+        private final Entitlement entitlement;
+        private final Variant variant;
 
-        public InstrumentingMethodVisitor(MethodVisitor mv, String owner, String originalMethodName, String originalMethodDescriptor) {
+        public InstrumentingMethodVisitor(MethodVisitor mv, String owner, int access, String originalMethodName,
+                                          String originalMethodDescriptor, Variant variant) {
             super(Opcodes.ASM9, mv);
+            this.variant = variant;
             this.owner = owner;
+            this.isStatic = (access & ACC_STATIC) != 0;
             this.originalMethodName = originalMethodName;
             this.originalMethodDescriptor = originalMethodDescriptor;
-            System.out.println("Instrumenting " + owner + "#" + originalMethodName);
+            this.entitlement = CheckerFactory.entitlementFor(owner, originalMethodName, originalMethodDescriptor);
+            if (Util.DEBUG) {
+                System.err.println("[Agent] Instrumenting " + owner + "#" + originalMethodName);
+            }
+        }
+
+        /**
+         * What {@link #visitCode} emits in place of the instrumented method, around the call to the renamed original
+         */
+        enum Variant {
+            /** {@link #prologue}, then call the original method; nested checks are not skipped */
+            PROLOGUE,
+            /** {@link #deepCheckPrologue} (void methods only) */
+            DEEP_CHECK_PROLOGUE,
+            /** {@link #deepCheckPrologueWithStackFrames} */
+            DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES
         }
 
+        static final Variant DEFAULT_VARIANT = Variant.DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES;
+
+        /**
+         * The prologue emitted by {@link #visitCode} for the {@link #DEFAULT_VARIANT}; it is part of the plan an
+         * instrumented class depends on (see {@link InstrumentedClassCache}), so keep this in sync when switching variant.
+         */
+        static final String PROLOGUE_VARIANT = "deepCheckPrologueWithStackFrames/lambdaInvoker/unsynchronized";
+
+        /**
+         * Stack slots used by {@link #prologue}: the checker instance, the caller class and the entitlement. Visitors
+         * that insert the prologue in front of existing code must make room for it when frames and maxs are not
+         * computed by ASM.
+         */
+        static final int PROLOGUE_MAX_STACK = 3;
+
         @Override
         public void visitCode() {
-            //deepCheckPrologue(this);
-            //prologue(this);
-            deepCheckPrologueWithStackFrames(this);
+            switch (variant) {
+                case PROLOGUE -> prologueThenCallOriginal(this);
+                case DEEP_CHECK_PROLOGUE -> deepCheckPrologue(this);
+                case DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES -> deepCheckPrologueWithStackFrames(this);
+            }
+        }
+
+        static void pushEntitlement(MethodVisitor mv, Entitlement entitlement) {
+            mv.visitFieldInsn(GETSTATIC, Type.getInternalName(Entitlement.class), entitlement.name(),
+                    Type.getDescriptor(Entitlement.class));
         }
 
-        static void prologue(MethodVisitor mv) {
+        static void prologue(MethodVisitor mv, Entitlement entitlement) {
             Type checkerClassType = Type.getType(EntitlementChecker.class);
             String handleClass = checkerClassType.getInternalName() + "Handle";
             String getCheckerClassMethodDescriptor = Type.getMethodDescriptor(checkerClassType);
@@ -140,6 +199,7 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                     Type.getMethodDescriptor(Type.getType(Class.class)),
                     false
             );
+            pushEntitlement(mv, entitlement);
             // invokeInstrumentationMethod
             mv.visitMethodInsn(
                     INVOKEINTERFACE,
@@ -147,25 +207,63 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                     "check",
                     Type.getMethodDescriptor(
                             Type.VOID_TYPE,
-                            Type.getType(Class.class)
+                            Type.getType(Class.class),
+                            Type.getType(Entitlement.class)
                     ),
                     true
             );
         }
 
+        /**
+         * The plain {@link #prologue}, then a direct call to the original method, returning its result.
+         */
+        void prologueThenCallOriginal(MethodVisitor mv) {
+            prologue(mv, entitlement);
+            int argumentsSize = pushReceiverAndArguments(mv);
+            mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, owner, "original_" + originalMethodName,
+                    originalMethodDescriptor, false);
+            mv.visitInsn(Type.getReturnType(originalMethodDescriptor).getOpcode(IRETURN));
+            // the prologue, or the receiver and arguments (the result takes no more than that, or 2 slots)
+            mv.visitMaxs(Math.max(PROLOGUE_MAX_STACK, Math.max(argumentsSize, 2)), argumentsSize);
+        }
+
+        /**
+         * @return the size of the receiver and arguments
+         */
+        private int pushReceiverAndArguments(MethodVisitor mv) {
+            return pushReceiverAndArguments(mv, isStatic, originalMethodDescriptor);
+        }
+
+        /**
+         * @return the size of the receiver and arguments
+         */
+        static int pushReceiverAndArguments(MethodVisitor mv, boolean isStatic, String methodDescriptor) {
+            int localVarIndex = 0;
+            if (isStatic == false) {
+                mv.visitVarInsn(ALOAD, localVarIndex++);
+            }
+            for (Type type : Type.getArgumentTypes(methodDescriptor)) {
+                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVarIndex);
+                localVarIndex += type.getSize();
+            }
+            return localVarIndex;
+        }
+
         /**
          * This will produce the following bytecode; it's largely equivalent to what you see happening in
-         * {@link Example#method_2} class, but we take advantage of the fact we can generate MethodHandles directly with
-         * ASM.
+         * {@link Example#method_2}, with the lambda produced by an invokedynamic we emit directly.
          *     INVOKESTATIC org/elasticsearch/EntitlementCheckerHandle.instance ()Lorg/elasticsearch/EntitlementChecker;
          *     INVOKESTATIC org/elasticsearch/Util.getCallerClass ()Ljava/lang/Class;
-         *     NEW org/elasticsearch/OriginalMethodRunnable
-         *     DUP
-         *     LDC java/lang/Shutdown.original_exit(I)V (6)
+         *     GETSTATIC org/elasticsearch/Entitlement.EXIT_VM : Lorg/elasticsearch/Entitlement;
          *     ILOAD 0
-         *     INVOKESPECIAL org/elasticsearch/OriginalMethodRunnable.<init> (Ljava/lang/invoke/MethodHandle;I)V
-         *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.check (Ljava/lang/Class;Ljava/lang/Runnable;)V (itf)
+         *     INVOKEDYNAMIC run(I)Ljava/lang/Runnable; [
+         *       java/lang/invoke/LambdaMetafactory.metafactory(...)
+         *       ()V, java/lang/Shutdown.original_exit(I)V (6), ()V
+         *     ]
+         *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.check (Ljava/lang/Class;Lorg/elasticsearch/Entitlement;Ljava/lang/Runnable;)V (itf)
          *     RETURN
+         * Methods returning a value pass the matching {@link OriginalMethod} interface instead, use the check overload
+         * returning that value, and return it.
          */
         void deepCheckPrologueWithStackFrames(MethodVisitor mv) {
             Type checkerClassType = Type.getType(EntitlementChecker.class);
@@ -182,44 +280,110 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                     Type.getMethodDescriptor(Type.getType(Class.class)),
                     false
             );
+            pushEntitlement(mv, entitlement);
 
-            // Create the runnable:
-            // create the object
-            mv.visitTypeInsn(NEW, "org/elasticsearch/OriginalMethodRunnable");
-            mv.visitInsn(DUP);
-            // the MH to call
-            Handle originalMethodHandle = new Handle(
-                    H_INVOKESTATIC, // TODO: pass down the right one
-                    owner,
-                    "original_" + originalMethodName,
-                    originalMethodDescriptor,
-                    false // TODO: pass down the right one
-            );
-            mv.visitLdcInsn(originalMethodHandle);
-
-            // forward args to ctor
-            int localVarIndex = 0;
-            for (Type type : Type.getArgumentTypes(originalMethodDescriptor)) {
-                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVarIndex);
-                localVarIndex += type.getSize();
-            }
-            // call ctor
-            mv.visitMethodInsn(INVOKESPECIAL, "org/elasticsearch/OriginalMethodRunnable", "<init>", "(Ljava/lang/invoke/MethodHandle;I)V");
+            int argumentsSize = pushOriginalMethod(mv);
 
             // invokeInstrumentationMethod
+            Type returnType = Type.getReturnType(originalMethodDescriptor);
+            Type originalMethodType = originalMethodType(returnType);
             mv.visitMethodInsn(
                     INVOKEINTERFACE,
                     checkerClassType.getInternalName(),
                     "check",
                     Type.getMethodDescriptor(
-                            Type.VOID_TYPE,
+                            checkReturnType(returnType),
                             Type.getType(Class.class),
-                            Type.getType(Runnable.class)
+                            Type.getType(Entitlement.class),
+                            originalMethodType
                     ),
                     true
             );
+            if (returnType.getSort() == Type.OBJECT && returnType.getInternalName().equals("java/lang/Object") == false
+                    || returnType.getSort() == Type.ARRAY) {
+                mv.visitTypeInsn(CHECKCAST, returnType.getInternalName());
+            }
 
-            mv.visitInsn(RETURN);
+            mv.visitInsn(returnType.getOpcode(IRETURN));
+            // checker, caller class, entitlement + receiver and arguments; then checker, caller class, entitlement, lambda
+            mv.visitMaxs(3 + Math.max(argumentsSize, 1), argumentsSize);
+        }
+
+        /**
+         * The {@link OriginalMethod} interface for a method returning {@code returnType}
+         */
+        static Type originalMethodType(Type returnType) {
+            return Type.getType(switch (returnType.getSort()) {
+                case Type.VOID -> Runnable.class;
+                case Type.BOOLEAN -> OriginalMethod.OfBoolean.class;
+                case Type.BYTE, Type.CHAR, Type.SHORT, Type.INT -> OriginalMethod.OfInt.class;
+                case Type.LONG -> OriginalMethod.OfLong.class;
+                case Type.FLOAT -> OriginalMethod.OfFloat.class;
+                case Type.DOUBLE -> OriginalMethod.OfDouble.class;
+                default -> OriginalMethod.OfObject.class;
+            });
+        }
+
+        /**
+         * The return type of the {@code check} overload taking the {@link #originalMethodType} (erased)
+         */
+        private static Type checkReturnType(Type returnType) {
+            return switch (returnType.getSort()) {
+                case Type.BYTE, Type.CHAR, Type.SHORT -> Type.INT_TYPE;
+                case Type.OBJECT, Type.ARRAY -> Type.getType(Object.class);
+                default -> returnType;
+            };
+        }
+
+        /**
+         * Push a lambda calling the original method with the receiver (if any) and arguments of this one, as the
+         * {@link #originalMethodType}. The lambda class is spun once per call site by {@link LambdaMetafactory}, and
+         * calls the original method directly (no {@link MethodHandle} in a field), so the JIT can inline it.
+         *
+         * @return the size of the receiver and arguments
+         */
+        private int pushOriginalMethod(MethodVisitor mv) {
+            var capturedTypes = new ArrayList<Type>();
+            if (isStatic == false) {
+                capturedTypes.add(Type.getObjectType(owner));
+            }
+            capturedTypes.addAll(List.of(Type.getArgumentTypes(originalMethodDescriptor)));
+            int argumentsSize = pushReceiverAndArguments(mv);
+
+            Type returnType = Type.getReturnType(originalMethodDescriptor);
+            Type originalMethodType = originalMethodType(returnType);
+            String samName = returnType.getSort() == Type.VOID ? "run" : "call";
+            // The interface method, erased; and as we instantiate it (the lambda can widen byte/char/short to int)
+            Type samMethodType = Type.getMethodType(checkReturnType(returnType));
+            Type instantiatedMethodType = Type.getMethodType(switch (returnType.getSort()) {
+                case Type.BYTE, Type.CHAR, Type.SHORT -> Type.INT_TYPE;
+                default -> returnType;
+            });
+
+            Handle metafactory = new Handle(
+                    H_INVOKESTATIC,
+                    Type.getInternalName(LambdaMetafactory.class),
+                    "metafactory",
+                    MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class, MethodType.class,
+                            MethodType.class, MethodHandle.class, MethodType.class).toMethodDescriptorString(),
+                    false
+            );
+            Handle originalMethodHandle = new Handle(
+                    isStatic ? H_INVOKESTATIC : H_INVOKESPECIAL,
+                    owner,
+                    "original_" + originalMethodName,
+                    originalMethodDescriptor,
+                    false // TODO: pass down the right one
+            );
+            mv.visitInvokeDynamicInsn(
+                    samName,
+                    Type.getMethodDescriptor(originalMethodType, capturedTypes.toArray(Type[]::new)),
+                    metafactory,
+                    samMethodType,
+                    originalMethodHandle,
+                    instantiatedMethodType
+            );
+            return argumentsSize;
         }
 
         /**
@@ -231,14 +395,12 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
          *     IFNE L0
          *     INVOKESTATIC org/elasticsearch/EntitlementCheckerHandle.instance ()Lorg/elasticsearch/EntitlementChecker;
          *     INVOKESTATIC org/elasticsearch/Util.getCallerClass ()Ljava/lang/Class;
-         *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.check (Ljava/lang/Class;)V (itf)
+         *     GETSTATIC org/elasticsearch/Entitlement.EXIT_VM : Lorg/elasticsearch/Entitlement;
+         *     INVOKEINTERFACE org/elasticsearch/EntitlementChecker.check (Ljava/lang/Class;Lorg/elasticsearch/Entitlement;)V (itf)
          *     GETSTATIC org/elasticsearch/EntitlementChecker.ALREADY_CHECKED : Ljava/lang/ScopedValue;
          *     GETSTATIC java/lang/Boolean.TRUE : Ljava/lang/Boolean;
-         *     NEW org/elasticsearch/OriginalMethodRunnable
-         *     DUP
-         *     LDC java/lang/Shutdown.original_exit(I)V (6)
          *     ILOAD 0
-         *     INVOKESPECIAL org/elasticsearch/OriginalMethodRunnable.<init> (Ljava/lang/invoke/MethodHandle;I)V
+         *     INVOKEDYNAMIC run(I)Ljava/lang/Runnable; [ java/lang/invoke/LambdaMetafactory.metafactory(...) ... ]
          *     INVOKESTATIC java/lang/ScopedValue.runWhere (Ljava/lang/ScopedValue;Ljava/lang/Object;Ljava/lang/Runnable;)V
          *     GOTO L1
          *    L0
@@ -247,6 +409,7 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
          *    L1
          *     RETURN
          *
+         * {@link ScopedValue#runWhere} only takes a {@link Runnable}, so this variant only supports void methods.
          */
         void deepCheckPrologue(MethodVisitor mv) {
             Type checkerClassType = Type.getType(EntitlementChecker.class);
@@ -270,6 +433,7 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                     Type.getMethodDescriptor(Type.getType(Class.class)),
                     false
             );
+            pushEntitlement(mv, entitlement);
             // invokeInstrumentationMethod
             mv.visitMethodInsn(
                     INVOKEINTERFACE,
@@ -277,7 +441,8 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
                     "check",
                     Type.getMethodDescriptor(
                             Type.VOID_TYPE,
-                            Type.getType(Class.class)
+                            Type.getType(Class.class),
+                            Type.getType(Entitlement.class)
                     ),
                     true
             );
@@ -286,42 +451,23 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
             mv.visitFieldInsn(GETSTATIC, checkerClassType.getInternalName(), "ALREADY_CHECKED", Type.getDescriptor(ScopedValue.class));
             mv.visitFieldInsn(GETSTATIC, "java/lang/Boolean", "TRUE", Type.getDescriptor(Boolean.class));
 
-            // Create the runnable:
-            // create the object
-            mv.visitTypeInsn(NEW, "org/elasticsearch/OriginalMethodRunnable");
-            mv.visitInsn(DUP);
-            // the MH to call
-            Handle originalMethodHandle = new Handle(
-                    H_INVOKESTATIC, // TODO: pass down the right one
-                    owner,
-                    "original_" + originalMethodName,
-                    originalMethodDescriptor,
-                    false // TODO: pass down the right one
-            );
-            mv.visitLdcInsn(originalMethodHandle);
-            // forward args to ctor
-            int localVarIndex = 0;
-            for (Type type : Type.getArgumentTypes(originalMethodDescriptor)) {
-                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVarIndex);
-                localVarIndex += type.getSize();
-            }
-            // call ctor
-            mv.visitMethodInsn(INVOKESPECIAL, "org/elasticsearch/OriginalMethodRunnable", "<init>", "(Ljava/lang/invoke/MethodHandle;I)V");
-
+            // the runnable calling the original method
+            int argumentsSize = pushOriginalMethod(mv);
 
             mv.visitMethodInsn(INVOKESTATIC, "java/lang/ScopedValue", "runWhere", "(Ljava/lang/ScopedValue;Ljava/lang/Object;Ljava/lang/Runnable;)V", false);
             mv.visitJumpInsn(GOTO, end);
             mv.visitLabel(l1);
+            mv.visitFrame(F_SAME, 0, null, 0, null);
 
-            localVarIndex = 0;
-            for (Type type : Type.getArgumentTypes(originalMethodDescriptor)) {
-                mv.visitVarInsn(type.getOpcode(Opcodes.ILOAD), localVarIndex);
-                localVarIndex += type.getSize();
-            }
-            mv.visitMethodInsn(INVOKESTATIC, owner, "original_" + originalMethodName, originalMethodDescriptor);
+            pushReceiverAndArguments(mv);
+            mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, owner, "original_" + originalMethodName,
+                    originalMethodDescriptor, false);
 
             mv.visitLabel(end);
+            mv.visitFrame(F_SAME, 0, null, 0, null);
             mv.visitInsn(RETURN);
+            // scoped value, value + receiver and arguments (or the runnable)
+            mv.visitMaxs(3 + Math.max(argumentsSize, 1), argumentsSize);
         }
 
 //        @Override
@@ -332,68 +478,80 @@ class InstrumentMethodClassVisitor extends ClassVisitor {
     }
 
     static class InstrumentingInheritanceMethodVisitor extends MethodVisitor {
+        private final String owner;
+        private final boolean isStatic;
         private final String methodName;
+        private final String methodDescriptor;
+        private int argumentsSize;
 
-        public InstrumentingInheritanceMethodVisitor(MethodVisitor mv, String methodName) {
+        public InstrumentingInheritanceMethodVisitor(MethodVisitor mv, String owner, int access, String methodName,
+                                                     String methodDescriptor) {
             super(Opcodes.ASM9, mv);
+            this.owner = owner;
+            this.isStatic = (access & ACC_STATIC) != 0;
             this.methodName = methodName;
-            System.out.println("Instrumenting for inheritance " + methodName);
+            this.methodDescriptor = methodDescriptor;
+            if (Util.DEBUG) {
+                System.err.println("[Agent] Instrumenting for inheritance " + owner + "#" + methodName + methodDescriptor);
+            }
         }
 
         @Override
         public void visitCode() {
-            prologue(this, methodName);
+            argumentsSize = prologue(this, owner, isStatic, methodName, methodDescriptor);
             mv.visitCode();
         }
 
-        static void prologue(MethodVisitor mv, String methodName) {
-            Type checkerClassType = Type.getType(EntitlementChecker.class);
-            String handleClass = checkerClassType.getInternalName() + "Handle";
-            String getCheckerClassMethodDescriptor = Type.getMethodDescriptor(checkerClassType);
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(Math.max(maxStack, argumentsSize), maxLocals);
+        }
 
-            // pushEntitlementChecker
-            mv.visitMethodInsn(INVOKESTATIC, handleClass, "instance", getCheckerClassMethodDescriptor, false);
-            // pushCallerClass
-            mv.visitMethodInsn(
-                    INVOKESTATIC,
-                    Type.getInternalName(Util.class),
-                    "getCallerClass",
-                    Type.getMethodDescriptor(Type.getType(Class.class)),
-                    false
-            );
+        /**
+         * The inheritance prologue; part of the plan an instrumented class depends on (see {@link InstrumentedClassCache})
+         */
+        static final String PROLOGUE_VARIANT = "policyCallSite/arguments";
+
+        /**
+         * Emits an invokedynamic linked by {@link CheckerFactory#bootstrap}, passing it the receiver and the arguments as
+         * they are (no boxing), e.g. for {@code FileSystemProvider.exists}:
+         *     ALOAD 0
+         *     ALOAD 1
+         *     ALOAD 2
+         *     INVOKEDYNAMIC runCheck(Lsun/nio/fs/UnixFileSystemProvider;Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)V [
+         *       org/elasticsearch/CheckerFactory.bootstrap(...)
+         *       "exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"
+         *     ]
+         * The call site does the whole check (caller class included), so it can be linked to nothing at all while the
+         * entitlement is unrestricted.
+         *
+         * @return the stack size of the prologue
+         */
+        static int prologue(MethodVisitor mv, String owner, boolean isStatic, String methodName, String methodDescriptor) {
+            int argumentsSize = InstrumentingMethodVisitor.pushReceiverAndArguments(mv, isStatic, methodDescriptor);
+            var argumentTypes = Type.getArgumentTypes(methodDescriptor);
+            if (isStatic == false) {
+                var withReceiver = new Type[argumentTypes.length + 1];
+                withReceiver[0] = Type.getObjectType(owner);
+                System.arraycopy(argumentTypes, 0, withReceiver, 1, argumentTypes.length);
+                argumentTypes = withReceiver;
+            }
 
             MethodType mt = MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
-                    MethodType.class, String.class, MethodHandle.class);
+                    MethodType.class, String.class, String.class);
 
             Handle bootstrap = new Handle(H_INVOKESTATIC, Type.getInternalName(CheckerFactory.class), "bootstrap",
                     mt.toMethodDescriptorString(), false);
 
-            // This will be "dynamic", depending on this method signature: the check method is Class + "that" +
-            // original params
-            var checkMethodDescriptor = Type.getMethodDescriptor(
-                    Type.VOID_TYPE,
-                    Type.getType(Class.class)
-            );
-            var dynamicCheckMethodDescriptor = Type.getMethodDescriptor(
-                    Type.VOID_TYPE,
-                    checkerClassType,
-                    Type.getType(Class.class)
-            );
-
-            var checkMethodHandle = new Handle(
-                    H_INVOKEINTERFACE,
-                    checkerClassType.getInternalName(),
-                    "check",
-                    checkMethodDescriptor,
-                    true);
-
+            // The entitlement, and which arguments the check takes, are bound by the bootstrap method
             mv.visitInvokeDynamicInsn(
                     "runCheck",
-                    dynamicCheckMethodDescriptor,
+                    Type.getMethodDescriptor(Type.VOID_TYPE, argumentTypes),
                     bootstrap,
                     methodName,
-                    checkMethodHandle
+                    methodDescriptor
             );
+            return argumentsSize;
         }
     }
 }
@@ -2,23 +2,74 @@ package org.elasticsearch;
 
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import javax.management.ObjectName;
 
 public class InstrumentationAgent {
 
-    record MethodKey(String className, String methodName) {}
+    record MethodKey(String className, String methodName, String methodDescriptor) {
+        MethodSignature signature() {
+            return new MethodSignature(methodName, methodDescriptor);
+        }
+    }
+
+    /**
+     * A native method replaced by a call to the C function {@code symbol} (see {@link EntitlementCheckNativeTransformer}),
+     * linked and checked according to {@code flags} ({@link Natives#CRITICAL}, {@link Natives#CAPTURE_ERRNO},
+     * {@link Natives#CHECK_OPEN})
+     */
+    record NativeMethodKey(String className, String methodName, String methodDescriptor, String symbol, int flags) {}
+
+    enum InstrumentationMode {
+        /** Add the check to the planned methods themselves; the caller is found walking the stack */
+        CALLEE,
+        /**
+         * Add the check to the invocations of the planned methods, with the caller as a constant, in the classes
+         * loaded after premain. Only for the methods code outside the JDK can invoke, through their own class only:
+         * the others, and the inheritance methods, keep their callee checks (see
+         * {@link EntitlementCheckTransformer#callSiteMethods})
+         */
+        CALL_SITE
+    }
+
+    /**
+     * {@link InstrumentationMode}, case-insensitive; defaults to {@link InstrumentationMode#CALLEE}.
+     */
+    static final String MODE_PROPERTY = "org.elasticsearch.instrumentation.mode";
+
+    /**
+     * Directory of the {@link InstrumentedClassCache}; if not set, every class is instrumented from scratch.
+     */
+    static final String CACHE_DIR_PROPERTY = "org.elasticsearch.instrumentation.cacheDir";
+
+    /**
+     * Policy file, watched for changes (see {@link PolicyFileWatchingService}); if not set, everything is denied.
+     */
+    static final String POLICY_FILE_PROPERTY = "org.elasticsearch.instrumentation.policyFile";
+
+    /**
+     * If {@code true}, the {@link #nativeMethodsToTransform()} are intercepted too; they are not by default.
+     */
+    static final String NATIVES_PROPERTY = "org.elasticsearch.instrumentation.natives";
+
+    /**
+     * If {@code true}, the {@link TransformMetrics} are registered as an MBean (off the premain thread: the platform
+     * MBean server alone takes longer to start than most of the transformation); they are not by default.
+     */
+    static final String METRICS_MBEAN_PROPERTY = "org.elasticsearch.instrumentation.metricsMBean";
 
     public static void premain(String agentArgs, Instrumentation instrumentation) throws IOException {
         System.out.println("[Agent] In premain method");
 
-        // TODO: the key should be name + descriptor, here I used just the name for simplicity
-        CheckerFactory.methodsToInterfaces = Map.of("exists", List.of(FileSystemProvider.class));
+        CheckerFactory.setMethodsToInterfaces(methodsToInterfaces());
+        CheckerFactory.setEntitlements(entitlements(), inheritanceEntitlements());
+        watchPolicy();
 
         try (var stream = Files.list(Paths.get("./agent/build/libs/"))
                 .filter(file -> !Files.isDirectory(file))) {
@@ -31,79 +82,193 @@ public class InstrumentationAgent {
             });
         }
 
-        Set<MethodKey> classesToTransform = Set.of(
-                transformClass("java.lang.Shutdown", "exit", instrumentation),
-                transformClass("java.lang.Shutdown", "halt", instrumentation)
-                //transformClass("java.nio.file.Files", "exists", instrumentation)
-                //transformClass("java.io.File", "exists", instrumentation)
+        var javaBasePatch = JavaBasePatch.load();
+
+        var classesToTransform = methodsToTransform().stream()
+                .filter(m -> javaBasePatch.isPatched(m.className()) == false)
+                .collect(Collectors.toSet());
+        var mode = InstrumentationMode.valueOf(
+                System.getProperty(MODE_PROPERTY, InstrumentationMode.CALLEE.name()).toUpperCase(Locale.ROOT)
         );
-        transform(classesToTransform, CheckerFactory.methodsToInterfaces, instrumentation);
-        // sun.nio.fs.UnixNativeDispatcher
-        // private static native int open0(long pathAddress, int flags, int mode) throws UnixException;
-        //transformNativeClass("sun.nio.fs.UnixNativeDispatcher", instrumentation, "open0", "(JII)I");
+        System.out.println("[Agent] Instrumentation mode: " + mode);
+        var cache = openCache(livePlans(classesToTransform, mode));
+        var metrics = new TransformMetrics();
+        transform(classesToTransform, CheckerFactory.methodsToInterfaces, instrumentation, cache, javaBasePatch, metrics,
+                mode);
+        if (Boolean.getBoolean(NATIVES_PROPERTY)) {
+            var loadedClassNames = Arrays.stream(instrumentation.getAllLoadedClasses())
+                    .map(Class::getName)
+                    .collect(Collectors.toSet());
+            for (var nativeMethod : nativeMethodsToTransform()) {
+                interceptNative(nativeMethod, instrumentation, cache, javaBasePatch, loadedClassNames);
+            }
+        }
+        System.out.println("[Agent] Transform metrics: " + metrics.summary());
+        if (Boolean.getBoolean(METRICS_MBEAN_PROPERTY)) {
+            Thread.ofPlatform().daemon().name("entitlement-metrics-registration").start(() -> registerMetrics(metrics));
+        }
         System.out.println("[Agent] completed");
     }
 
-    private static MethodKey transformClass(String className, String methodName, Instrumentation instrumentation) {
-        return new MethodKey(className, methodName);
-    }
-
-    private static void transform(Set<MethodKey> methodsToTransform, Map<String, List<Class<?>>> inheritanceMethods, Instrumentation instrumentation) {
-        instrumentation.addTransformer(new EntitlementCheckTransformer(methodsToTransform), true);
+    private static void registerMetrics(TransformMetrics metrics) {
         try {
-            Set<Class<?>> inheritanceMethodClasses = inheritanceMethods.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
-
-            var classesToRetransform = Stream.concat(
-                    Arrays.stream(instrumentation.getAllLoadedClasses()).filter(x -> methodsToTransform.stream().anyMatch(m -> m.className().equals(x.getName()))),
-                    Arrays.stream(instrumentation.getAllLoadedClasses()).filter(x -> inheritanceMethodClasses.stream().anyMatch(base -> base.isAssignableFrom(x)))
-            ).toArray(Class[]::new);
-
-            System.out.println("classesToRetransform: " + Arrays.stream(classesToRetransform).map(Class::getSimpleName).collect(Collectors.joining(";")));
-
-            //instrumentation.retransformClasses(classesToRetransform);
-        } catch (Exception ex) {
-            throw new RuntimeException("Retransform failed", ex);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(TransformMetrics.OBJECT_NAME));
+        } catch (Exception | LinkageError e) {
+            // Needs java.base to read java.management (--add-reads); the summary is still printed at the end of premain
+            System.out.println("[Agent] Cannot register transform metrics MBean: " + e);
         }
     }
 
-    private static void transformNativeClass(String className, Instrumentation instrumentation, String methodName, String descriptor)  {
-        Class<?> targetCls = null;
-        ClassLoader targetClassLoader = null;
-        // see if we can get the class using forName
-        try {
-            targetCls = Class.forName(className);
-            targetClassLoader = targetCls.getClassLoader();
-            transformNative(targetCls, targetClassLoader, instrumentation, methodName, descriptor);
+    private static void watchPolicy() throws IOException {
+        var policyFile = System.getProperty(POLICY_FILE_PROPERTY);
+        if (policyFile == null) {
             return;
-        } catch (Exception ex) {
-            System.out.println("Class [{}] not found with Class.forName");
-            ex.printStackTrace();
         }
-        // otherwise iterate all loaded classes and find what we want
-        try {
-            for(Class<?> clazz: instrumentation.getAllLoadedClasses()) {
-                if(clazz.getName().equals(className)) {
-                    targetCls = clazz;
-                    targetClassLoader = targetCls.getClassLoader();
-                    transformNative(targetCls, targetClassLoader, instrumentation, methodName, descriptor);
-                    return;
-                }
+        new PolicyFileWatchingService(Paths.get(policyFile), EntitlementCheckerImpl::setPolicy).start();
+    }
+
+    /**
+     * @return the hashes of the plans of the transformers premain installs: the cache entries of any other plan can be
+     * dropped
+     */
+    private static List<byte[]> livePlans(Set<MethodKey> classesToTransform, InstrumentationMode mode) {
+        var livePlans = new ArrayList<byte[]>();
+        livePlans.add(EntitlementCheckTransformer.planHash(classesToTransform, mode));
+        if (Boolean.getBoolean(NATIVES_PROPERTY)) {
+            for (var m : nativeMethodsToTransform()) {
+                livePlans.add(EntitlementCheckNativeTransformer.planHash(m.className(), m.methodName(), m.methodDescriptor(),
+                        m.symbol(), m.flags()));
             }
-        } catch (Exception ex) {
-            System.out.println("Class [{}] not found with Class.forName");
-            ex.printStackTrace();
         }
-        throw new RuntimeException("Failed to find class [" + className + "]");
+        return livePlans;
     }
 
-    private static void transformNative(Class<?> clazz, ClassLoader classLoader, Instrumentation instrumentation, String methodName, String descriptor) {
-        var transformer = new EntitlementCheckNativeTransformer(clazz.getName(), classLoader, methodName, descriptor);
-        instrumentation.addTransformer(transformer, true);
-        //instrumentation.setNativeMethodPrefix(transformer, ClassRewriter.NATIVE_PREFIX);
+    private static InstrumentedClassCache openCache(List<byte[]> livePlans) {
+        var cacheDir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (cacheDir == null) {
+            return null;
+        }
         try {
-            instrumentation.retransformClasses(clazz);
-        } catch (Exception ex) {
-            throw new RuntimeException("Transform failed for class: [" + clazz.getName() + "]", ex);
+            var cache = InstrumentedClassCache.open(Paths.get(cacheDir), livePlans);
+            System.out.println("[Agent] Using instrumented class cache in " + cacheDir);
+            return cache;
+        } catch (IOException e) {
+            // A cache is just an optimization: go ahead without it
+            System.out.println("[Agent] Cannot open instrumented class cache in " + cacheDir + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * The methods we instrument directly. This (together with {@link #methodsToInterfaces()}) is the instrumentation
+     * plan, shared by the runtime transformation and by the offline java.base patch builder in the cli module.
+     */
+    static Set<MethodKey> methodsToTransform() {
+        return Set.of(
+                transformClass("java.lang.Shutdown", "exit", "(I)V"),
+                transformClass("java.lang.Shutdown", "halt", "(I)V")
+                //transformClass("java.nio.file.Files", "exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z")
+                //transformClass("java.io.File", "exists", "()Z")
+        );
+    }
+
+    /**
+     * The native methods we replace with an FFM downcall to the C function behind them.
+     */
+    static List<NativeMethodKey> nativeMethodsToTransform() {
+        return List.of(
+                // private static native int open0(long pathAddress, int flags, int mode) throws UnixException;
+                // open can block (FIFOs, network file systems): not critical
+                // int open(const char *path, int oflag, ...): the mode is variadic
+                // like the JNI code: retried on EINTR, other errors thrown as new UnixException(errno)
+                new NativeMethodKey("sun.nio.fs.UnixNativeDispatcher", "open0", "(JII)I", "open",
+                        Natives.CAPTURE_ERRNO | Natives.THROW_ERRNO | Natives.RESTARTABLE | Natives.CHECK_OPEN
+                                | Natives.firstVariadicArg(2))
+        );
+    }
+
+    /**
+     * The methods we instrument in every subclass/implementor of the given types.
+     */
+    static Map<MethodSignature, List<Class<?>>> methodsToInterfaces() {
+        return Map.of(
+                new MethodSignature("exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"),
+                List.of(FileSystemProvider.class)
+        );
+    }
+
+    /**
+     * The entitlement required by each method in {@link #methodsToTransform()} (and {@link #nativeMethodsToTransform()}).
+     * Methods not listed here check {@link Entitlement#UNCLASSIFIED}.
+     */
+    static Map<MethodKey, Entitlement> entitlements() {
+        return Map.of(
+                transformClass("java.lang.Shutdown", "exit", "(I)V"), Entitlement.EXIT_VM,
+                transformClass("java.lang.Shutdown", "halt", "(I)V"), Entitlement.EXIT_VM,
+                transformClass("java.nio.file.Files", "exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"),
+                Entitlement.READ_FILE,
+                transformClass("java.io.File", "exists", "()Z"), Entitlement.READ_FILE
+        );
+    }
+
+    /**
+     * The entitlement required by each method in {@link #methodsToInterfaces()}, in whatever subtype it is declared.
+     * Methods not listed here check {@link Entitlement#UNCLASSIFIED}.
+     */
+    static Map<MethodSignature, Entitlement> inheritanceEntitlements() {
+        return Map.of(
+                new MethodSignature("exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"), Entitlement.READ_FILE
+        );
+    }
+
+    private static MethodKey transformClass(String className, String methodName, String methodDescriptor) {
+        return new MethodKey(className, methodName, methodDescriptor);
+    }
+
+    private static void transform(Set<MethodKey> methodsToTransform, Map<MethodSignature, List<Class<?>>> inheritanceMethods,
+                                  Instrumentation instrumentation, InstrumentedClassCache cache,
+                                  JavaBasePatch javaBasePatch, TransformMetrics metrics, InstrumentationMode mode) {
+        instrumentation.addTransformer(
+                new EntitlementCheckTransformer(methodsToTransform, cache, javaBasePatch, metrics, mode),
+                true
+        );
+        // Call sites are only rewritten in the classes loaded from now on: what is already loaded is the JDK and us,
+        // and the planned methods only the JDK can reach keep their callee checks (see callSiteMethods)
+        Set<Class<?>> inheritanceMethodClasses = inheritanceMethods.values().stream().flatMap(Collection::stream).collect(Collectors.toSet());
+        Set<String> targetClassNames = EntitlementCheckTransformer.calleeMethods(methodsToTransform, mode).stream()
+                .map(MethodKey::className)
+                .collect(Collectors.toSet());
+
+        var scheduler = new RetransformScheduler(instrumentation, targetClassNames, inheritanceMethodClasses);
+        var classesToRetransform = scheduler.classesToRetransform(instrumentation.getAllLoadedClasses()).stream()
+                .filter(x -> javaBasePatch.isPatched(x.getName()) == false)
+                .toList();
+
+        System.out.println("classesToRetransform: " + RetransformScheduler.describe(classesToRetransform));
+
+        // Failures are reported, not fatal: those classes just stay uninstrumented
+        scheduler.retransform(classesToRetransform);
+    }
+
+    /**
+     * A stub drops the {@code native} modifier of the method it replaces, and retransformation cannot change modifiers:
+     * classes already loaded (like {@code UnixNativeDispatcher}, loaded long before premain) get their stubs from the
+     * java.base patch only (see {@code JavaBasePatchBuilder}), the others when they are loaded.
+     */
+    private static void interceptNative(NativeMethodKey nativeMethod, Instrumentation instrumentation,
+                                        InstrumentedClassCache cache, JavaBasePatch javaBasePatch,
+                                        Set<String> loadedClassNames) {
+        var className = nativeMethod.className();
+        var method = className + "#" + nativeMethod.methodName() + nativeMethod.methodDescriptor();
+        if (javaBasePatch.isPatched(className)) {
+            System.out.println("[Agent] " + method + " is intercepted by the java.base patch");
+        } else if (loadedClassNames.contains(className)) {
+            System.out.println("[Agent] Cannot intercept " + method + ": already loaded, build the java.base patch with -D"
+                    + NATIVES_PROPERTY + "=true");
+        } else {
+            instrumentation.addTransformer(new EntitlementCheckNativeTransformer(className, null,
+                    nativeMethod.methodName(), nativeMethod.methodDescriptor(), nativeMethod.symbol(),
+                    nativeMethod.flags(), cache), false);
         }
     }
 }
\ No newline at end of file
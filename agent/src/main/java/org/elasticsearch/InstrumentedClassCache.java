@@ -0,0 +1,396 @@
+package org.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of instrumented class bytes, so that a warm restart does not need to run ASM again.
+ * <p>
+ * Entries are keyed by a hash of the original class bytes <em>and</em> of the instrumentation plan that produced them
+ * (see {@link #planHash}), so a change in the plan (methods, descriptors, prologue variant) simply misses.
+ * <p>
+ * The cache is a single append-only file of records:
+ * <pre>
+ *     int magic | long plan | long keyHigh | long keyLow | int length | int crc32 | byte[length] instrumented class
+ * </pre>
+ * The index (key to record offset) is not stored: it is rebuilt when the cache is opened by skipping from header to
+ * header, and kept in memory in a compact open-addressing table; it is brought up to date with records appended by
+ * other JVMs on a miss, or before appending. Lookups read the payload from a read-only memory mapping of the file. The
+ * mapping is only redone once the records past it are as large as what it maps (so a cold start maps the file a
+ * logarithmic number of times); records past it are read with positional reads.
+ * Several JVMs can share the same directory: the initial scan runs under a shared {@link java.nio.channels.FileLock}
+ * and appends run under an exclusive one, after indexing whatever other JVMs appended in the meantime. A record torn
+ * by a crash is detected (bad magic, short length or bad checksum), ignored on read, and truncated by the next append.
+ * <p>
+ * Each record is tagged with (the first 8 bytes of) the hash of its plan. When the first JVM opens the file (every JVM
+ * holds a shared lock on a "users" byte past the records while it has the file open), records of plans that are not
+ * in use any more are dropped: the live ones are moved to the front of the file, and the file truncated.
+ */
+class InstrumentedClassCache implements Closeable {
+
+    /**
+     * Bump this every time the code we generate changes in a way the plan description does not capture.
+     */
+    static final int FORMAT_VERSION = 2;
+
+    static final String CACHE_FILE_NAME = "instrumented-classes.bin";
+
+    static final int RECORD_MAGIC = 0x45434332; // "ECC2"
+    static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4 + 4;
+    static final int PLAN_OFFSET = 4;
+    static final int HIGH_OFFSET = 12;
+    static final int LOW_OFFSET = 20;
+    static final int LENGTH_OFFSET = 28;
+    static final int CRC_OFFSET = 32;
+
+    /**
+     * Every JVM with the file open holds a shared lock on this byte; records are locked up to it
+     */
+    private static final long USERS_REGION = Long.MAX_VALUE - 1;
+
+    /**
+     * @param plan the first 8 bytes of the plan hash, see {@link #plan}
+     */
+    record Key(long plan, long high, long low) {}
+
+    private final FileChannel channel;
+    private final Index index = new Index();
+
+    private volatile MappedByteBuffer mapped;
+    private long end;
+
+    private InstrumentedClassCache(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param livePlans the hashes of the plans this JVM will use (see {@link #planHash}); if no other JVM has the cache
+     *                  open, the records of any other plan are dropped
+     */
+    static InstrumentedClassCache open(Path directory, Collection<byte[]> livePlans) throws IOException {
+        Files.createDirectories(directory);
+        var channel = FileChannel.open(
+                directory.resolve(CACHE_FILE_NAME),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        var cache = new InstrumentedClassCache(channel);
+        try {
+            try {
+                var exclusiveUsersLock = channel.tryLock(USERS_REGION, 1, false);
+                if (exclusiveUsersLock != null) {
+                    // Nobody else is using the file (and nobody can start until we are done): no offsets to invalidate
+                    try (exclusiveUsersLock) {
+                        cache.compact(livePlans.stream().map(InstrumentedClassCache::plan).collect(Collectors.toSet()));
+                    }
+                }
+                // Held until the channel is closed
+                channel.lock(USERS_REGION, 1, true);
+            } catch (OverlappingFileLockException e) {
+                // Already open in this JVM: that instance holds the users lock
+            }
+            try (var _ = channel.lock(0, USERS_REGION, true)) {
+                cache.indexUpTo(channel.size());
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return cache;
+    }
+
+    /**
+     * Move the records of {@code livePlans} to the front of the file, and truncate it after them; stops at the first
+     * torn record. Only while no other JVM has the file open.
+     */
+    private void compact(Set<Long> livePlans) throws IOException {
+        long size = channel.size();
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        long read = 0;
+        long write = 0;
+        int dropped = 0;
+        while (readFully(header.clear(), read, size) && header.getInt(0) == RECORD_MAGIC) {
+            int length = header.getInt(LENGTH_OFFSET);
+            if (length < 0 || read + HEADER_SIZE + length > size) {
+                break;
+            }
+            int recordSize = HEADER_SIZE + length;
+            if (livePlans.contains(header.getLong(PLAN_OFFSET)) == false) {
+                ++dropped;
+            } else if (write != read) {
+                var record = ByteBuffer.allocate(recordSize);
+                readFully(record, read, size);
+                record.flip();
+                while (record.hasRemaining()) {
+                    write += channel.write(record, write);
+                }
+            } else {
+                write += recordSize;
+            }
+            read += recordSize;
+        }
+        if (write < size) {
+            channel.truncate(write);
+            if (Util.DEBUG) {
+                System.err.println("[Agent] Instrumented class cache compacted: dropped " + dropped
+                        + " records of other plans, " + (size - write) + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Read {@code buffer.remaining()} bytes at {@code position}, if they are before {@code size}
+     *
+     * @return whether the buffer was filled
+     */
+    private boolean readFully(ByteBuffer buffer, long position, long size) throws IOException {
+        if (position + buffer.remaining() > size) {
+            return false;
+        }
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] planHash(String planDescription) {
+        return newDigest().digest((FORMAT_VERSION + "\n" + planDescription).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Key key(byte[] planHash, byte[] classBytes) {
+        var digest = newDigest();
+        digest.update(planHash);
+        var hash = ByteBuffer.wrap(digest.digest(classBytes));
+        return new Key(plan(planHash), hash.getLong(), hash.getLong());
+    }
+
+    /**
+     * @return the tag of the records of the plan with this hash
+     */
+    static long plan(byte[] planHash) {
+        return ByteBuffer.wrap(planHash).getLong();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached instrumented bytes, or {@code null} if there is no (valid) entry for this key
+     */
+    byte[] get(Key key) throws IOException {
+        long offset;
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            offset = index.get(key.high(), key.low());
+            if (offset < 0 && channel.size() > end) {
+                // Another JVM may have just instrumented this class: it is still cheaper to look than to run ASM
+                try (var _ = channel.lock(0, USERS_REGION, true)) {
+                    indexUpTo(channel.size());
+                }
+                offset = index.get(key.high(), key.low());
+            }
+            if (offset < 0) {
+                return null;
+            }
+            buffer = mapped;
+        }
+        long mappedSize = buffer == null ? 0 : buffer.capacity();
+        ByteBuffer header;
+        if (offset + HEADER_SIZE <= mappedSize) {
+            header = buffer.slice((int) offset, HEADER_SIZE);
+        } else {
+            header = ByteBuffer.allocate(HEADER_SIZE);
+            if (readFully(header, offset, Long.MAX_VALUE) == false) {
+                return null;
+            }
+        }
+        if (header.getInt(0) != RECORD_MAGIC || header.getLong(HIGH_OFFSET) != key.high()
+                || header.getLong(LOW_OFFSET) != key.low()) {
+            return null;
+        }
+        int length = header.getInt(LENGTH_OFFSET);
+        int crc = header.getInt(CRC_OFFSET);
+        var bytes = new byte[length];
+        if (offset + HEADER_SIZE + length <= mappedSize) {
+            buffer.get((int) offset + HEADER_SIZE, bytes);
+        } else if (readFully(ByteBuffer.wrap(bytes), offset + HEADER_SIZE, Long.MAX_VALUE) == false) {
+            return null;
+        }
+        return crc32(bytes) == crc ? bytes : null;
+    }
+
+    synchronized void put(Key key, byte[] instrumentedBytes) throws IOException {
+        try (var _ = channel.lock(0, USERS_REGION, false)) {
+            long size = channel.size();
+            if (size > end) {
+                // Another JVM appended entries, possibly including this one
+                indexUpTo(size);
+            }
+            if (index.get(key.high(), key.low()) >= 0) {
+                return;
+            }
+            if (size > end) {
+                // Leftover of a torn write
+                channel.truncate(end);
+            }
+
+            var record = ByteBuffer.allocate(HEADER_SIZE + instrumentedBytes.length);
+            record.putInt(RECORD_MAGIC)
+                    .putLong(key.plan())
+                    .putLong(key.high())
+                    .putLong(key.low())
+                    .putInt(instrumentedBytes.length)
+                    .putInt(crc32(instrumentedBytes))
+                    .put(instrumentedBytes)
+                    .flip();
+            long position = end;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            index.put(key.high(), key.low(), end);
+            end = position;
+            remapIfNeeded();
+        }
+    }
+
+    /**
+     * Index records from {@link #end} up to {@code size}, stopping at the first one that is not complete.
+     * Must be called while holding a lock on the file.
+     */
+    private void indexUpTo(long size) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = end;
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt(0) != RECORD_MAGIC) {
+                break;
+            }
+            int length = header.getInt(LENGTH_OFFSET);
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            index.put(header.getLong(HIGH_OFFSET), header.getLong(LOW_OFFSET), position);
+            position += HEADER_SIZE + length;
+        }
+        end = position;
+        remapIfNeeded();
+    }
+
+    /**
+     * Map the file again once the records past the mapping are as large as the mapping itself. A read-only mapping
+     * cannot go past the end of the file (mapping more would grow it), hence the reads past it in {@link #get}.
+     * A mapping is at most 2GB: records past that are always read from the channel.
+     */
+    private void remapIfNeeded() throws IOException {
+        long mappedSize = mapped == null ? 0 : mapped.capacity();
+        if (end - mappedSize > Math.max(mappedSize, MIN_MAPPING_GROWTH) && mappedSize < Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(end, Integer.MAX_VALUE));
+        }
+    }
+
+    private static final long MIN_MAPPING_GROWTH = 1 << 20;
+
+    private static int crc32(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Open addressing (linear probing) map from a 128-bit key to a file offset, stored in three parallel arrays.
+     * Keys are already uniformly distributed hashes, so we use the low bits directly.
+     */
+    private static class Index {
+        private static final long EMPTY = -1;
+
+        private long[] highs = new long[1024];
+        private long[] lows = new long[1024];
+        private long[] offsets = newOffsets(1024);
+        private int size;
+
+        private static long[] newOffsets(int capacity) {
+            var offsets = new long[capacity];
+            Arrays.fill(offsets, EMPTY);
+            return offsets;
+        }
+
+        long get(long high, long low) {
+            int mask = offsets.length - 1;
+            for (int i = (int) low & mask; offsets[i] != EMPTY; i = (i + 1) & mask) {
+                if (highs[i] == high && lows[i] == low) {
+                    return offsets[i];
+                }
+            }
+            return EMPTY;
+        }
+
+        void put(long high, long low, long offset) {
+            if ((size + 1) * 2 > offsets.length) {
+                grow();
+            }
+            int mask = offsets.length - 1;
+            int i = (int) low & mask;
+            while (offsets[i] != EMPTY) {
+                if (highs[i] == high && lows[i] == low) {
+                    // First one wins: they are the same bytes anyway
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            highs[i] = high;
+            lows[i] = low;
+            offsets[i] = offset;
+            ++size;
+        }
+
+        private void grow() {
+            var oldHighs = highs;
+            var oldLows = lows;
+            var oldOffsets = offsets;
+            highs = new long[oldOffsets.length * 2];
+            lows = new long[oldOffsets.length * 2];
+            offsets = newOffsets(oldOffsets.length * 2);
+            size = 0;
+            for (int i = 0; i < oldOffsets.length; ++i) {
+                if (oldOffsets[i] != EMPTY) {
+                    put(oldHighs[i], oldLows[i], oldOffsets[i]);
+                }
+            }
+        }
+    }
+}
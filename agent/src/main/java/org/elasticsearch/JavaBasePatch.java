@@ -0,0 +1,101 @@
+package org.elasticsearch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The classes of java.base that have been instrumented offline (see {@code JavaBasePatchBuilder} in the cli module)
+ * and are loaded through {@code --patch-module=java.base=<agent jar>:<patch jar>}. They already contain the checks, so
+ * the agent must leave them alone.
+ * <p>
+ * The patch jar lists them in {@link #RESOURCE_NAME}: the first line is the hash of the plan they were instrumented
+ * with, followed by one (internal) class name per line. The hash covers the JDK version too: the patched classes are
+ * copies of the java.base classes of the JDK they were built from.
+ * <p>
+ * A patch built with another plan (or from another JDK) cannot be used, nor worked around: the stale classes are
+ * already loaded in place of the JDK ones, with the checks of the other plan in them. Startup fails.
+ */
+class JavaBasePatch {
+
+    static final String RESOURCE_NAME = "org/elasticsearch/java-base-patch.txt";
+
+    private static final JavaBasePatch NONE = new JavaBasePatch("", Set.of());
+
+    private final String planHash;
+    private final Set<String> classNames;
+
+    JavaBasePatch(String planHash, Set<String> classNames) {
+        this.planHash = planHash;
+        this.classNames = classNames;
+    }
+
+    /**
+     * @throws IllegalStateException if the patch was built with a different plan, or from a different JDK
+     */
+    static JavaBasePatch load() throws IOException {
+        // With --patch-module the resource is part of java.base, same as this class
+        var stream = JavaBasePatch.class.getModule().getResourceAsStream(RESOURCE_NAME);
+        if (stream == null) {
+            return NONE;
+        }
+        try (var reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            var planHash = reader.readLine();
+            var classNames = reader.lines().filter(l -> l.isBlank() == false).collect(Collectors.toUnmodifiableSet());
+            if (currentPlanHash().equals(planHash) == false) {
+                throw new IllegalStateException("The java.base patch was built with a different plan or JDK than "
+                        + Runtime.version() + ", rebuild it");
+            }
+            System.out.println("[Agent] java.base patch found, " + classNames.size() + " classes already instrumented");
+            return new JavaBasePatch(planHash, classNames);
+        }
+    }
+
+    static String currentPlanHash() {
+        return HexFormat.of().formatHex(InstrumentedClassCache.planHash(EntitlementCheckTransformer.describePlan(
+                InstrumentationAgent.methodsToTransform(),
+                InstrumentationAgent.methodsToInterfaces(),
+                InstrumentationAgent.entitlements(),
+                InstrumentationAgent.inheritanceEntitlements()
+        ) + nativesPlan() + "\njdk:" + Runtime.version()));
+    }
+
+    /**
+     * The native methods stubbed in the patch (only if {@value InstrumentationAgent#NATIVES_PROPERTY} is set, as it
+     * must be both when building the patch and when running with it)
+     */
+    private static String nativesPlan() {
+        if (Boolean.getBoolean(InstrumentationAgent.NATIVES_PROPERTY) == false) {
+            return "";
+        }
+        return InstrumentationAgent.nativeMethodsToTransform().stream()
+                .map(m -> EntitlementCheckTransformer.getInternalClassName(m.className()) + "#" + m.methodName()
+                        + m.methodDescriptor() + "->" + m.symbol() + "/" + m.flags() + "="
+                        + InstrumentationAgent.entitlements().getOrDefault(
+                                new InstrumentationAgent.MethodKey(m.className(), m.methodName(), m.methodDescriptor()),
+                                Entitlement.UNCLASSIFIED))
+                .sorted()
+                .collect(Collectors.joining(";", "\nnatives:", ""));
+    }
+
+    /**
+     * @param className the class name, either in binary ({@code java.lang.Shutdown}) or internal
+     *                  ({@code java/lang/Shutdown}) form
+     */
+    boolean isPatched(String className) {
+        return classNames.isEmpty() == false
+                && classNames.contains(EntitlementCheckTransformer.getInternalClassName(className));
+    }
+
+    String planHash() {
+        return planHash;
+    }
+
+    Set<String> classNames() {
+        return classNames;
+    }
+}
@@ -0,0 +1,175 @@
+package org.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Immutable set of {@link MethodSignature}s, compiled once (per class, for direct targets) and then queried by
+ * the class visitors for every method they see.
+ * <p>
+ * It is a perfect hash table, built with "hash and displace": signatures are first spread into buckets, and each
+ * bucket gets a seed (its displacement) chosen so that all of its signatures land in slots no other signature uses.
+ * A lookup is then a hash of the name and descriptor hash codes (which {@code String} caches), one seed, one slot and
+ * at most two {@code equals}: no probing and no allocation, however large the plan is.
+ * <p>
+ * Signatures with the same (full) hash cannot be told apart by any seed ({@code "Aa"} and {@code "BB"} have the same
+ * hash code, for instance): only the first of them goes into the table, the others into a small overflow list that is
+ * scanned with {@code equals} when the table misses. It is empty for any real plan.
+ */
+final class MethodMatcher {
+
+    static final MethodMatcher EMPTY = new MethodMatcher(List.of(), new int[1], new String[1], new String[1],
+            new String[0], new String[0]);
+
+    private static final int MAX_SEEDS = 1 << 16;
+
+    private final List<MethodSignature> signatures;
+    private final int[] seeds;
+    private final String[] names;
+    private final String[] descriptors;
+    private final String[] overflowNames;
+    private final String[] overflowDescriptors;
+
+    private MethodMatcher(List<MethodSignature> signatures, int[] seeds, String[] names, String[] descriptors,
+                          String[] overflowNames, String[] overflowDescriptors) {
+        this.signatures = signatures;
+        this.seeds = seeds;
+        this.names = names;
+        this.descriptors = descriptors;
+        this.overflowNames = overflowNames;
+        this.overflowDescriptors = overflowDescriptors;
+    }
+
+    static MethodMatcher of(Collection<MethodSignature> signatures) {
+        if (signatures.isEmpty()) {
+            return EMPTY;
+        }
+        var distinct = List.copyOf(new LinkedHashSet<>(signatures));
+        // No seed separates signatures with the same hash: keep one per hash in the table, the rest go to the overflow
+        var hashes = new HashSet<Integer>();
+        var table = new ArrayList<MethodSignature>();
+        var overflow = new ArrayList<MethodSignature>();
+        for (var signature : distinct) {
+            (hashes.add(hash(signature.name(), signature.descriptor())) ? table : overflow).add(signature);
+        }
+        int bucketCount = Integer.highestOneBit(table.size() * 2 - 1);
+        for (int size = bucketCount * 2; ; size <<= 1) {
+            var matcher = tryBuild(distinct, table, overflow, bucketCount, size);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+    }
+
+    private static MethodMatcher tryBuild(List<MethodSignature> all, List<MethodSignature> signatures,
+                                          List<MethodSignature> overflow, int bucketCount, int size) {
+        var buckets = new ArrayList<List<MethodSignature>>(bucketCount);
+        for (int i = 0; i < bucketCount; ++i) {
+            buckets.add(new ArrayList<>());
+        }
+        for (var signature : signatures) {
+            buckets.get(bucket(hash(signature.name(), signature.descriptor()), bucketCount - 1)).add(signature);
+        }
+        var bucketsBySize = new ArrayList<Integer>();
+        for (int i = 0; i < bucketCount; ++i) {
+            bucketsBySize.add(i);
+        }
+        // Place the largest buckets first, while the table is still mostly empty
+        bucketsBySize.sort(Comparator.comparingInt((Integer i) -> buckets.get(i).size()).reversed());
+
+        var seeds = new int[bucketCount];
+        var names = new String[size];
+        var descriptors = new String[size];
+        var slots = new int[signatures.size()];
+        for (int bucketIndex : bucketsBySize) {
+            var bucket = buckets.get(bucketIndex);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            int seed = findSeed(bucket, names, slots, size - 1);
+            if (seed < 0) {
+                return null;
+            }
+            seeds[bucketIndex] = seed;
+            for (int i = 0; i < bucket.size(); ++i) {
+                names[slots[i]] = bucket.get(i).name();
+                descriptors[slots[i]] = bucket.get(i).descriptor();
+            }
+        }
+        return new MethodMatcher(all, seeds, names, descriptors,
+                overflow.stream().map(MethodSignature::name).toArray(String[]::new),
+                overflow.stream().map(MethodSignature::descriptor).toArray(String[]::new));
+    }
+
+    private static int findSeed(List<MethodSignature> bucket, String[] names, int[] slots, int mask) {
+        nextSeed:
+        for (int seed = 0; seed < MAX_SEEDS; ++seed) {
+            for (int i = 0; i < bucket.size(); ++i) {
+                var signature = bucket.get(i);
+                int slot = slot(hash(signature.name(), signature.descriptor()), seed, mask);
+                if (names[slot] != null) {
+                    continue nextSeed;
+                }
+                for (int j = 0; j < i; ++j) {
+                    if (slots[j] == slot) {
+                        continue nextSeed;
+                    }
+                }
+                slots[i] = slot;
+            }
+            return seed;
+        }
+        return -1;
+    }
+
+    private static int hash(String name, String descriptor) {
+        return name.hashCode() * 31 + descriptor.hashCode();
+    }
+
+    private static int bucket(int hash, int mask) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int slot(int hash, int seed, int mask) {
+        int h = (hash ^ seed) * 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    boolean matches(String name, String descriptor) {
+        int hash = hash(name, descriptor);
+        int slot = slot(hash, seeds[bucket(hash, seeds.length - 1)], names.length - 1);
+        if (name.equals(names[slot]) && descriptor.equals(descriptors[slot])) {
+            return true;
+        }
+        for (int i = 0; i < overflowNames.length; ++i) {
+            if (name.equals(overflowNames[i]) && descriptor.equals(overflowDescriptors[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return signatures.isEmpty();
+    }
+
+    List<MethodSignature> signatures() {
+        return signatures;
+    }
+
+    @Override
+    public String toString() {
+        return signatures.stream()
+                .sorted(Comparator.comparing(MethodSignature::name).thenComparing(MethodSignature::descriptor))
+                .map(s -> s.name() + s.descriptor())
+                .toList()
+                .toString();
+    }
+}
@@ -0,0 +1,7 @@
+package org.elasticsearch;
+
+/**
+ * A method within a class, identified by name and descriptor (e.g. {@code exit}, {@code (I)V}), so that we instrument
+ * exactly the overloads we need.
+ */
+record MethodSignature(String name, String descriptor) {}
@@ -1,11 +1,44 @@
 package org.elasticsearch;
 
 import java.lang.foreign.*;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.foreign.ValueLayout.*;
 
+/**
+ * FFM downcalls replacing intercepted native methods (see {@link ClassRewriter#instrumentNativeMethod}): the stub
+ * generated in place of a native method checks the entitlement, then calls the C function through an invokedynamic
+ * linked by {@link #bootstrap}, with the same arguments and result as the native method.
+ * <p>
+ * The function descriptor is derived from the descriptor of the native method: primitives are passed as the C types of
+ * the same size ({@code long} also carries pointers, as the JDK natives do: the linker only supports 64-bit platforms),
+ * {@link MemorySegment}s as pointers, and a {@link String} result is decoded from a NUL-terminated UTF-8 C string
+ * ({@code null} for a {@code NULL} pointer). Other reference types have no C counterpart and are rejected when
+ * rewriting (see {@link ClassRewriter#isSupportedNative}).
+ * <p>
+ * Downcall handles are linked on first use (the first call through a stub, or {@link #downcallHandle}), and cached by
+ * symbol, function descriptor and options, so call sites of the same function share one handle. Two flags tune the
+ * linkage of a native method:
+ * <ul>
+ *     <li>{@link #CRITICAL}: linked with {@link Linker.Option#isTrivial()}, which skips the thread state transitions
+ *     around the call. Only for functions that return quickly, never block and never call back into Java (e.g.
+ *     {@code getpid}); a thread in a trivial call holds up safepoints, so never for I/O like {@code open}.</li>
+ *     <li>{@link #CAPTURE_ERRNO}: {@code errno} is saved right after the call, before the JVM can overwrite it, and
+ *     read with {@link #errno()} on the same thread. It is saved in a segment of the calling thread, allocated on its
+ *     first capturing call: threads never share it, and calls do not allocate.</li>
+ * </ul>
+ * Variadic functions must say so ({@link #firstVariadicArg}): on some platforms (e.g. macOS on AArch64) variadic
+ * arguments are not passed like fixed ones.
+ */
 public class Natives {
 
     private static final Linker LINKER = Linker.nativeLinker();
@@ -20,37 +53,192 @@ public class Natives {
         SYMBOL_LOOKUP = (name) -> loaderLookup.find(name).or(() -> LINKER.defaultLookup().find(name));
     }
 
+    /**
+     * Linkage flag: the function is short and non-blocking (see the class documentation)
+     */
+    public static final int CRITICAL = 1;
+
+    /**
+     * Linkage flag: save {@code errno} after each call, for {@link #errno()}
+     */
+    public static final int CAPTURE_ERRNO = 1 << 1;
+
+    /**
+     * Not a linkage flag, but a check one: the native method opens the file at the C string address in its first
+     * argument, with the {@code open} flags in its second (e.g. {@code open0(long pathAddress, int flags, int mode)}).
+     * Its stub checks the path and the flags (see {@link EntitlementChecker#checkOpen}) rather than the entitlement of
+     * the method, for the first caller outside the JDK and the agent rather than for the direct caller (see
+     * {@link Util#getCallerClassOutsideJdk}).
+     */
+    public static final int CHECK_OPEN = 1 << 2;
+
+    /**
+     * Linkage flag: the function is variadic, the index of its first variadic argument in the bits above
+     * {@link #VARIADIC_SHIFT}; see {@link #firstVariadicArg}
+     */
+    public static final int VARIADIC = 1 << 3;
+
+    private static final int VARIADIC_SHIFT = 8;
+
+    /**
+     * Not a linkage flag, but a stub one (with {@link #CAPTURE_ERRNO}, for an {@code int} or {@code long} result): when
+     * the function returns {@code -1}, the stub throws the first exception the native method declares, constructed
+     * with {@link #errno()} (e.g. {@code new UnixException(errno)}), as the JNI code did
+     */
+    public static final int THROW_ERRNO = 1 << 4;
+
+    /**
+     * Not a linkage flag, but a stub one (with {@link #CAPTURE_ERRNO}, for an {@code int} or {@code long} result): when
+     * the function returns {@code -1} with {@code errno} {@link #EINTR}, the stub calls it again, like the
+     * {@code RESTARTABLE} macro of the JDK natives
+     */
+    public static final int RESTARTABLE = 1 << 5;
+
+    /**
+     * {@code errno} of an interrupted system call, on Linux and macOS
+     */
+    static final int EINTR = 4;
+
+    /**
+     * @return the flags linking a variadic function, e.g. {@code firstVariadicArg(2)} for
+     * {@code int open(const char *path, int oflag, ...)}, called with a mode; the variadic arguments are passed as the
+     * fixed ones, so they must already be of their promoted C type ({@code int}, {@code long}, {@code double}...)
+     */
+    public static int firstVariadicArg(int index) {
+        return VARIADIC | index << VARIADIC_SHIFT;
+    }
+
     // errno can change between system calls, so we capture it
     private static final StructLayout CAPTURE_ERRNO_LAYOUT = Linker.Option.captureStateLayout();
     static final Linker.Option CAPTURE_ERRNO_OPTION = Linker.Option.captureCallState("errno");
-    //private static final VarHandle errno$vh = varHandleWithoutOffset(CAPTURE_ERRNO_LAYOUT, groupElement("errno"));
+    private static final VarHandle errno$vh = CAPTURE_ERRNO_LAYOUT.varHandle(MemoryLayout.PathElement.groupElement("errno"));
 
-    static final MemorySegment errnoState = Arena.ofAuto().allocate(CAPTURE_ERRNO_LAYOUT);
+    /**
+     * Where capturing downcalls save {@code errno}, per thread: allocated once per thread (virtual threads included),
+     * and freed with it. Nothing else runs on the thread between the call and reading errno back.
+     */
+    private static final ThreadLocal<MemorySegment> errnoState = ThreadLocal.withInitial(
+            () -> Arena.ofAuto().allocate(CAPTURE_ERRNO_LAYOUT)
+    );
+
+    private record Linkage(String function, FunctionDescriptor descriptor, List<Linker.Option> options) {}
 
-//    private static final MethodHandle openWithMode$mh = downcallHandle(
-//            "open",
-//            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT),
-//            CAPTURE_ERRNO_OPTION
-//    );
+    private static final Map<Linkage, MethodHandle> downcalls = new ConcurrentHashMap<>();
 
-    private static final MethodHandle openWithMode$mh = downcallHandle(
-            "open",
-            FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT)
+    /**
+     * The C type of each Java type that can be passed to a downcall
+     */
+    private static final Map<Class<?>, MemoryLayout> LAYOUTS = Map.of(
+            boolean.class, JAVA_BOOLEAN,
+            byte.class, JAVA_BYTE,
+            char.class, JAVA_CHAR,
+            short.class, JAVA_SHORT,
+            int.class, JAVA_INT,
+            long.class, JAVA_LONG,
+            float.class, JAVA_FLOAT,
+            double.class, JAVA_DOUBLE,
+            MemorySegment.class, ADDRESS
     );
 
+    private static final MethodHandle TO_STRING$mh;
+    private static final MethodHandle ERRNO_STATE$mh;
+
+    static {
+        try {
+            TO_STRING$mh = MH_LOOKUP.findStatic(Natives.class, "toJavaString",
+                    MethodType.methodType(String.class, MemorySegment.class));
+            ERRNO_STATE$mh = MH_LOOKUP.findStatic(Natives.class, "currentErrnoState", MethodType.methodType(MemorySegment.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     static MemorySegment functionAddress(String function) {
         return SYMBOL_LOOKUP.find(function).orElseThrow(() -> new LinkageError("Native function " + function + " could not be found"));
     }
 
+    /**
+     * @return the downcall handle for {@code function}, linked the first time it is asked for
+     */
     static MethodHandle downcallHandle(String function, FunctionDescriptor functionDescriptor, Linker.Option... options) {
-        return LINKER.downcallHandle(functionAddress(function), functionDescriptor, options);
+        return downcalls.computeIfAbsent(new Linkage(function, functionDescriptor, List.of(options)),
+                linkage -> LINKER.downcallHandle(functionAddress(function), functionDescriptor, options));
     }
 
-    public static int open0(long pathAddress, int flags, int mode) {
-        try {
-            return (int) openWithMode$mh.invokeExact(MemorySegment.ofAddress(pathAddress), flags, mode);
-        } catch (Throwable t) {
-            throw new AssertionError(t);
+    /**
+     * @return the {@code errno} saved by the last call to a function linked with {@link #CAPTURE_ERRNO} on this thread
+     */
+    public static int errno() {
+        return (int) errno$vh.get(currentErrnoState());
+    }
+
+    private static MemorySegment currentErrnoState() {
+        return errnoState.get();
+    }
+
+    /**
+     * Bootstrap of the invokedynamic in the stubs of intercepted native methods: links the call site to the C function
+     * named {@code symbol}, on its first call; the handle is exactly of the type of the call site, so the JIT inlines
+     * the downcall into the stub.
+     *
+     * @param symbol the C function, e.g. {@code open}
+     * @param type   the descriptor of the native method, without the receiver
+     * @param flags  {@link #CRITICAL}, {@link #CAPTURE_ERRNO} and/or {@link #firstVariadicArg}
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String symbol, MethodType type, int flags) {
+        return new ConstantCallSite(downcallHandle(symbol, type, flags));
+    }
+
+    /**
+     * @return a handle of type {@code type} calling the C function {@code symbol}
+     * @throws IllegalArgumentException if {@code type} has a parameter or return type without a C counterpart
+     */
+    static MethodHandle downcallHandle(String symbol, MethodType type, int flags) {
+        var returnType = type.returnType();
+        var options = new ArrayList<Linker.Option>(3);
+        if ((flags & CRITICAL) != 0) {
+            options.add(Linker.Option.isTrivial());
+        }
+        if ((flags & VARIADIC) != 0) {
+            options.add(Linker.Option.firstVariadicArg(flags >>> VARIADIC_SHIFT));
+        }
+        if ((flags & CAPTURE_ERRNO) != 0) {
+            options.add(CAPTURE_ERRNO_OPTION);
+        }
+        var handle = downcallHandle(symbol, functionDescriptor(type), options.toArray(Linker.Option[]::new));
+        if ((flags & CAPTURE_ERRNO) != 0) {
+            // (MemorySegment, args...) -> (args...): the state segment of the calling thread goes first
+            handle = MethodHandles.foldArguments(handle, ERRNO_STATE$mh);
+        }
+        if (returnType == String.class) {
+            handle = MethodHandles.filterReturnValue(handle, TO_STRING$mh);
         }
+        return handle;
+    }
+
+    static FunctionDescriptor functionDescriptor(MethodType type) {
+        var arguments = new MemoryLayout[type.parameterCount()];
+        for (int i = 0; i < arguments.length; ++i) {
+            arguments[i] = layout(type.parameterType(i), false);
+        }
+        var returnType = type.returnType();
+        return returnType == void.class
+                ? FunctionDescriptor.ofVoid(arguments)
+                : FunctionDescriptor.of(layout(returnType, true), arguments);
+    }
+
+    private static MemoryLayout layout(Class<?> carrier, boolean isReturn) {
+        var layout = LAYOUTS.get(carrier);
+        if (layout == null && isReturn && carrier == String.class) {
+            layout = ADDRESS;
+        }
+        if (layout == null) {
+            throw new IllegalArgumentException("no C type for " + (isReturn ? "result " : "argument ") + carrier.getName());
+        }
+        return layout;
+    }
+
+    private static String toJavaString(MemorySegment string) {
+        return string.equals(MemorySegment.NULL) ? null : string.reinterpret(Long.MAX_VALUE).getUtf8String(0);
     }
 }
@@ -0,0 +1,62 @@
+package org.elasticsearch;
+
+import java.util.Locale;
+
+/**
+ * Decodes the {@code flags} of {@code open(2)} (as passed to the intercepted {@code UnixNativeDispatcher.open0}) into
+ * what the caller intends to do with the file, and the entitlements that takes: reading needs
+ * {@link Entitlement#READ_FILE}; writing, truncating or creating needs {@link Entitlement#WRITE_FILE}. Plain int
+ * arithmetic, nothing allocated.
+ * <p>
+ * The values of the flags differ between platforms: Linux and macOS are covered, other platforms get the Linux ones.
+ */
+final class OpenFlags {
+
+    static final int READ = 1;
+    static final int WRITE = 1 << 1;
+    static final int CREATE = 1 << 2;
+
+    static final int O_ACCMODE = 3;
+    static final int O_WRONLY = 1;
+    static final int O_RDWR = 2;
+
+    private static final boolean MAC_OS = System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("mac");
+    static final int O_CREAT = MAC_OS ? 0x200 : 0100;
+    static final int O_TRUNC = MAC_OS ? 0x400 : 01000;
+    static final int O_APPEND = MAC_OS ? 0x8 : 02000;
+
+    private OpenFlags() {}
+
+    /**
+     * @return the {@link #READ}, {@link #WRITE} and {@link #CREATE} bits for the {@code open} flags
+     */
+    static int intent(int flags) {
+        int intent = 0;
+        int accessMode = flags & O_ACCMODE;
+        if (accessMode != O_WRONLY) {
+            intent |= READ;
+        }
+        if (accessMode == O_WRONLY || accessMode == O_RDWR || (flags & (O_TRUNC | O_APPEND)) != 0) {
+            intent |= WRITE;
+        }
+        if ((flags & O_CREAT) != 0) {
+            intent |= CREATE;
+        }
+        return intent;
+    }
+
+    /**
+     * @return the bits (indexed by entitlement id) of the entitlements needed to open a file with {@code flags}
+     */
+    static long entitlements(int flags) {
+        int intent = intent(flags);
+        long entitlements = 0;
+        if ((intent & READ) != 0) {
+            entitlements |= Entitlement.READ_FILE.bit();
+        }
+        if ((intent & (WRITE | CREATE)) != 0) {
+            entitlements |= Entitlement.WRITE_FILE.bit();
+        }
+        return entitlements;
+    }
+}
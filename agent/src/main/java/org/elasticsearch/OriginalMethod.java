@@ -0,0 +1,47 @@
+package org.elasticsearch;
+
+/**
+ * Calls the original ({@code "original_" + name}) implementation of an instrumented method, with the arguments of the
+ * call. The instrumentation passes one to {@link EntitlementChecker#check(Class, Entitlement, Runnable)} (and
+ * overloads), so the original method runs inside the check.
+ * <p>
+ * There is one functional interface per kind of return type, so that results are returned without boxing ({@code byte},
+ * {@code char} and {@code short} are returned as {@code int}, like the JVM does); {@code void} methods use
+ * {@link Runnable}. Implementations are generated per call site by {@link java.lang.invoke.LambdaMetafactory}: the
+ * instrumented method captures its receiver and arguments, and the generated class calls the original method directly,
+ * so the JIT can inline it through the check.
+ */
+public final class OriginalMethod {
+
+    private OriginalMethod() {}
+
+    @FunctionalInterface
+    public interface OfBoolean {
+        boolean call();
+    }
+
+    @FunctionalInterface
+    public interface OfInt {
+        int call();
+    }
+
+    @FunctionalInterface
+    public interface OfLong {
+        long call();
+    }
+
+    @FunctionalInterface
+    public interface OfFloat {
+        float call();
+    }
+
+    @FunctionalInterface
+    public interface OfDouble {
+        double call();
+    }
+
+    @FunctionalInterface
+    public interface OfObject<T> {
+        T call();
+    }
+}
@@ -0,0 +1,318 @@
+package org.elasticsearch;
+
+import java.io.File;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * Entitlements granted on directories (and everything under them), compiled into an immutable trie of path name
+ * elements. Each node holds the bits (indexed by entitlement id) granted on its directory or on one of its parents, so
+ * a lookup is the bits of the deepest node matching the path.
+ * <p>
+ * A lookup walks the name elements of the path string in place: each element is hashed and compared straight from the
+ * string, so no intermediate {@code String} or {@code Path} is created, and the cost depends on the depth of the path,
+ * not on the number of grants. Paths are matched by name elements, so {@code /data} covers {@code /data/x} but not
+ * {@code /database}. Only the default file system is covered; paths with {@code .} or {@code ..} elements are
+ * normalized first (the slow path), and symbolic links are not resolved.
+ * <p>
+ * Intercepted natives (see {@link EntitlementChecker#checkOpen}) get the path as the address of a NUL-terminated C
+ * string: {@link #granted(long)} matches its bytes in place, through a view of the whole native memory, against the
+ * UTF-8 encoded name elements (each node has a second table, by hash of the encoded bytes), without decoding it into a
+ * {@code String} or allocating anything. The slow path decodes it, as do file systems whose separator is not
+ * {@code /}.
+ */
+final class PathTrie {
+
+    private static final FileSystem DEFAULT_FILE_SYSTEM = FileSystems.getDefault();
+    private static final char SEPARATOR = File.separatorChar;
+
+    /**
+     * Whether C string paths can be walked in place: the byte walk splits on {@code '/'}, so it is only for POSIX
+     * file systems; elsewhere native paths are decoded and walked as a {@link Path}
+     */
+    private static final boolean NATIVE_WALK = SEPARATOR == '/';
+
+    /**
+     * All the native memory, to read C strings from their address
+     */
+    private static final MemorySegment MEMORY = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
+
+    static final PathTrie EMPTY = compile(Map.of());
+
+    private static final class Node {
+        private final long granted;
+        // Open addressing, by the String hash of the name element; the length is a power of two, never full
+        private final String[] names;
+        private final Node[] children;
+        // The same children by the UTF-8 bytes of their name element, by byteHash
+        private final byte[][] encodedNames;
+        private final Node[] encodedChildren;
+
+        private Node(long granted, String[] names, Node[] children, byte[][] encodedNames, Node[] encodedChildren) {
+            this.granted = granted;
+            this.names = names;
+            this.children = children;
+            this.encodedNames = encodedNames;
+            this.encodedChildren = encodedChildren;
+        }
+
+        private static Node leaf(long granted) {
+            return new Node(granted, new String[1], new Node[1], new byte[1][], new Node[1]);
+        }
+
+        /**
+         * @return the child for the name element {@code path[start, start + length)}, whose String hash is {@code hash};
+         * or null
+         */
+        private Node child(int hash, String path, int start, int length) {
+            int mask = names.length - 1;
+            for (int slot = hash & mask; names[slot] != null; slot = (slot + 1) & mask) {
+                var name = names[slot];
+                if (name.length() == length && name.regionMatches(0, path, start, length)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the child for the name element of {@code length} bytes at {@code address}, whose {@link #byteHash} is
+         * {@code hash}; or null
+         */
+        private Node child(int hash, long address, int length) {
+            int mask = encodedNames.length - 1;
+            for (int slot = hash & mask; encodedNames[slot] != null; slot = (slot + 1) & mask) {
+                if (matches(encodedNames[slot], address, length)) {
+                    return encodedChildren[slot];
+                }
+            }
+            return null;
+        }
+
+        private static boolean matches(byte[] name, long address, int length) {
+            if (name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if (MEMORY.get(JAVA_BYTE, address + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int byteHash(int hash, byte b) {
+        return 31 * hash + b;
+    }
+
+    private final Node root;
+    private final Map<String, Long> source;
+    /**
+     * Where relative paths start from (the JVM does not change the working directory): its node, or if the trie has
+     * none, a leaf with what is granted on its deepest parent in the trie
+     */
+    private final Node workingDirectory;
+
+    private PathTrie(Node root, Map<String, Long> source) {
+        this.root = root;
+        this.source = source;
+        var workingDirectoryPath = Path.of("").toAbsolutePath().toString();
+        var node = walk(root, workingDirectoryPath, true);
+        this.workingDirectory = node != null ? node : Node.leaf(walk(root, workingDirectoryPath, false).granted);
+    }
+
+    /**
+     * @param grants the entitlement bits granted, by directory; relative directories are resolved against the working
+     *               directory
+     */
+    static PathTrie compile(Map<String, Long> grants) {
+        var root = new MutableNode();
+        var source = new TreeMap<String, Long>();
+        for (var grant : grants.entrySet()) {
+            var directory = Path.of(grant.getKey()).toAbsolutePath().normalize().toString();
+            source.merge(directory, grant.getValue(), (a, b) -> a | b);
+            var node = root;
+            for (var element : directory.split(Pattern.quote(String.valueOf(SEPARATOR)))) {
+                if (element.isEmpty() == false) {
+                    node = node.children.computeIfAbsent(element, k -> new MutableNode());
+                }
+            }
+            node.granted |= grant.getValue();
+        }
+        return new PathTrie(root.compile(0), source);
+    }
+
+    private static final class MutableNode {
+        private long granted;
+        private final Map<String, MutableNode> children = new TreeMap<>();
+
+        private Node compile(long inherited) {
+            long granted = inherited | this.granted;
+            int size = Integer.highestOneBit(Math.max(1, children.size() * 2 - 1)) << 1;
+            var names = new String[size];
+            var compiled = new Node[size];
+            var encodedNames = new byte[size][];
+            var encodedCompiled = new Node[size];
+            for (var child : children.entrySet()) {
+                var node = child.getValue().compile(granted);
+                int slot = child.getKey().hashCode() & (size - 1);
+                while (names[slot] != null) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                names[slot] = child.getKey();
+                compiled[slot] = node;
+
+                var encoded = child.getKey().getBytes(StandardCharsets.UTF_8);
+                int hash = 0;
+                for (byte b : encoded) {
+                    hash = byteHash(hash, b);
+                }
+                slot = hash & (size - 1);
+                while (encodedNames[slot] != null) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                encodedNames[slot] = encoded;
+                encodedCompiled[slot] = node;
+            }
+            return new Node(granted, names, compiled, encodedNames, encodedCompiled);
+        }
+    }
+
+    /**
+     * @return the bits of the entitlements granted on {@code path}, by it or by one of its parents
+     */
+    long granted(Path path) {
+        if (source.isEmpty() || path.getFileSystem() != DEFAULT_FILE_SYSTEM) {
+            return 0;
+        }
+        var node = walk(path.isAbsolute() ? root : workingDirectory, path.toString(), false);
+        if (node == null) {
+            // . or .. elements
+            node = walk(root, path.toAbsolutePath().normalize().toString(), false);
+        }
+        return node.granted;
+    }
+
+    /**
+     * One pass over {@code path}: each name element is hashed as it is scanned, and looked up in the children of the
+     * current node; once one is missing, the rest of the path is only scanned for {@code .} and {@code ..} elements.
+     *
+     * @param exact whether to return null rather than the deepest node matching, if the whole path does not match
+     * @return the deepest node matching {@code path} from {@code node}; null if {@code path} has {@code .} or {@code ..}
+     * elements, as the deepest node matching may then not be a parent of the path
+     */
+    private static Node walk(Node node, String path, boolean exact) {
+        int length = path.length();
+        boolean matching = true;
+        int start = 0;
+        while (start < length) {
+            if (path.charAt(start) == SEPARATOR) {
+                ++start;
+                continue;
+            }
+            int end = start;
+            int hash = 0;
+            char c;
+            while (end < length && (c = path.charAt(end)) != SEPARATOR) {
+                hash = 31 * hash + c;
+                ++end;
+            }
+            int elementLength = end - start;
+            if (path.charAt(start) == '.' && (elementLength == 1 || (elementLength == 2 && path.charAt(start + 1) == '.'))) {
+                return null;
+            }
+            if (matching) {
+                var child = node.child(hash, path, start, elementLength);
+                if (child == null) {
+                    if (exact) {
+                        return null;
+                    }
+                    matching = false;
+                } else {
+                    node = child;
+                }
+            }
+            start = end;
+        }
+        return node;
+    }
+
+    /**
+     * @param path the address of a NUL-terminated path, encoded in UTF-8 (e.g. what the JDK passes to {@code open});
+     *             relative to the working directory if it does not start with {@code /}
+     * @return the bits of the entitlements granted on {@code path}, by it or by one of its parents
+     */
+    long granted(long path) {
+        if (source.isEmpty()) {
+            return 0;
+        }
+        if (NATIVE_WALK == false) {
+            return granted(Path.of(decode(path)));
+        }
+        var node = walk(MEMORY.get(JAVA_BYTE, path) == '/' ? root : workingDirectory, path);
+        if (node == null) {
+            // . or .. elements
+            return granted(Path.of(decode(path)));
+        }
+        return node.granted;
+    }
+
+    /**
+     * {@link #walk(Node, String, boolean)}, on the bytes of a C string
+     */
+    private static Node walk(Node node, long path) {
+        boolean matching = true;
+        long start = path;
+        byte b;
+        while ((b = MEMORY.get(JAVA_BYTE, start)) != 0) {
+            if (b == '/') {
+                ++start;
+                continue;
+            }
+            long end = start;
+            int hash = 0;
+            while ((b = MEMORY.get(JAVA_BYTE, end)) != 0 && b != '/') {
+                hash = byteHash(hash, b);
+                ++end;
+            }
+            int elementLength = (int) (end - start);
+            if (MEMORY.get(JAVA_BYTE, start) == '.'
+                    && (elementLength == 1 || (elementLength == 2 && MEMORY.get(JAVA_BYTE, start + 1) == '.'))) {
+                return null;
+            }
+            if (matching) {
+                var child = node.child(hash, start, elementLength);
+                if (child == null) {
+                    matching = false;
+                } else {
+                    node = child;
+                }
+            }
+            start = end;
+        }
+        return node;
+    }
+
+    /**
+     * @return the NUL-terminated UTF-8 string at {@code address}; allocates, for the slow paths only
+     */
+    static String decode(long address) {
+        return MEMORY.getUtf8String(address);
+    }
+
+    /**
+     * @return the granted directories (absolute and normalized), and the entitlement bits granted on each
+     */
+    Map<String, Long> grants() {
+        return source;
+    }
+}
@@ -0,0 +1,63 @@
+package org.elasticsearch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Loads the {@link ComponentPolicy} from a file, and reloads it when the file changes. The file has one component per
+ * line (see {@link ComponentPolicy#parse}):
+ * <pre>
+ *     # component = entitlements
+ *     org.example.plugin = READ_FILE, WRITE_FILE
+ *     plugin-z = EXIT_VM
+ *     # granted to every component
+ *     * = READ_FILE
+ *     # granted on a directory (and everything under it) only
+ *     plugin-y = READ_FILE:/var/lib/plugin-y, WRITE_FILE:/tmp
+ * </pre>
+ * Each load compiles a new immutable policy and publishes it with a single volatile write
+ * ({@link EntitlementCheckerImpl#setPolicy}): checking threads never block, and see either the old policy or the new
+ * one, never a mix. A file that does not parse is reported and the current policy stays in place; so does deleting
+ * the file.
+ */
+class PolicyFileWatchingService extends AbstractFileWatchingService {
+
+    private final Consumer<ComponentPolicy> publisher;
+
+    PolicyFileWatchingService(Path policyFile, Consumer<ComponentPolicy> publisher) {
+        super(null);
+        this.pathToWatch = policyFile;
+        this.publisher = publisher;
+    }
+
+    @Override
+    protected void processFileChanges() throws IOException {
+        long startNanos = System.nanoTime();
+        ComponentPolicy policy;
+        try {
+            policy = load();
+        } catch (IllegalArgumentException e) {
+            System.out.println("[Agent] Invalid policy in " + pathToWatch + ", keeping the current one: " + e.getMessage());
+            return;
+        }
+        publisher.accept(policy);
+        System.out.println("[Agent] Loaded " + policy + " from " + pathToWatch + " in "
+                + (System.nanoTime() - startNanos) / 1000 + "us");
+    }
+
+    /**
+     * Read and compile the policy file, without publishing it
+     */
+    ComponentPolicy load() throws IOException {
+        try (var reader = Files.newBufferedReader(pathToWatch)) {
+            return ComponentPolicy.parse(reader);
+        }
+    }
+
+    @Override
+    protected void processInitialFileMissing() {
+        System.out.println("[Agent] No policy file at " + pathToWatch + " (yet), everything is denied");
+    }
+}
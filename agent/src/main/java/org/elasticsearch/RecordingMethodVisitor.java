@@ -94,6 +94,11 @@ class RecordingMethodVisitor extends MethodVisitor {
         instructions.add(new Instruction(-1, labelUtil.getLabel(label)));
     }
 
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        instructions.add(new Instruction(opcode, owner + name + descriptor));
+    }
+
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
         instructions.add(new Instruction(opcode, owner + name + descriptor));
@@ -0,0 +1,172 @@
+package org.elasticsearch;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the already loaded classes that are in the instrumentation plan, and retransforms them.
+ * <p>
+ * Matching is a hash lookup on the class name for the direct targets, and a per-class cached ({@link ClassValue})
+ * walk of the hierarchy for the inheritance targets, so every loaded class is looked at once, and every super type is
+ * resolved once no matter how many classes share it.
+ * <p>
+ * {@link Instrumentation#retransformClasses} calls the transformers on the calling thread, before the (serialized)
+ * redefinition at a safepoint. We split the classes in bounded batches and submit them from a small pool, so that the
+ * ASM work for different batches runs in parallel, and a class that fails does not hold back the others: a failed
+ * batch is retried one class at a time, to isolate (and report) the culprits.
+ */
+class RetransformScheduler {
+
+    static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final Instrumentation instrumentation;
+    private final Set<String> targetClassNames;
+    private final Set<Class<?>> inheritanceTypes;
+    private final int batchSize;
+    private final int parallelism;
+
+    private final ClassValue<Boolean> inheritanceCandidates = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            if (inheritanceTypes.contains(type)) {
+                return true;
+            }
+            var superclass = type.getSuperclass();
+            if (superclass != null && get(superclass)) {
+                return true;
+            }
+            for (var i : type.getInterfaces()) {
+                if (get(i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+
+    RetransformScheduler(Instrumentation instrumentation, Set<String> targetClassNames,
+                         Collection<Class<?>> inheritanceTypes) {
+        this(instrumentation, targetClassNames, inheritanceTypes, DEFAULT_BATCH_SIZE,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    RetransformScheduler(Instrumentation instrumentation, Set<String> targetClassNames,
+                         Collection<Class<?>> inheritanceTypes, int batchSize, int parallelism) {
+        this.instrumentation = instrumentation;
+        this.targetClassNames = Set.copyOf(targetClassNames);
+        this.inheritanceTypes = Set.copyOf(inheritanceTypes);
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the classes among {@code loadedClasses} that need to be retransformed
+     */
+    List<Class<?>> classesToRetransform(Class<?>[] loadedClasses) {
+        var classes = new ArrayList<Class<?>>();
+        for (var c : loadedClasses) {
+            if (isTarget(c) && instrumentation.isModifiableClass(c)) {
+                classes.add(c);
+            }
+        }
+        return classes;
+    }
+
+    private boolean isTarget(Class<?> c) {
+        if (c.isArray() || c.isPrimitive()) {
+            return false;
+        }
+        if (targetClassNames.contains(c.getName())) {
+            return true;
+        }
+        // The watched types themselves are not instrumented, only their subtypes
+        return inheritanceTypes.contains(c) == false && inheritanceCandidates.get(c);
+    }
+
+    /**
+     * Retransform {@code classes} in batches of at most {@code batchSize} classes, at most {@code parallelism} batches
+     * at a time. Waits for all of them to complete.
+     *
+     * @return the number of classes that could not be retransformed
+     */
+    int retransform(List<Class<?>> classes) {
+        if (classes.isEmpty()) {
+            return 0;
+        }
+        var batches = new ArrayList<List<Class<?>>>();
+        for (int i = 0; i < classes.size(); i += batchSize) {
+            batches.add(classes.subList(i, Math.min(classes.size(), i + batchSize)));
+        }
+
+        long startTime = System.nanoTime();
+        var failures = new AtomicInteger();
+        var threadCount = new AtomicInteger();
+        int threads = Math.min(parallelism, batches.size());
+        try (var executor = Executors.newFixedThreadPool(threads, r -> {
+            var t = new Thread(r, "entitlement-retransform-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        })) {
+            var futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < batches.size(); ++i) {
+                int batchId = i;
+                var batch = batches.get(i);
+                futures.add(executor.submit(() -> failures.addAndGet(retransformBatch(batchId, batch))));
+            }
+            for (var future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    System.out.println("[Agent] Retransformation batch failed unexpectedly: " + e.getCause());
+                }
+            }
+        }
+        System.out.println("[Agent] Retransformed " + (classes.size() - failures.get()) + "/" + classes.size()
+                + " classes in " + batches.size() + " batches (" + threads + " threads) in "
+                + elapsedMillis(startTime) + "ms");
+        return failures.get();
+    }
+
+    private int retransformBatch(int batchId, List<Class<?>> batch) {
+        long startTime = System.nanoTime();
+        try {
+            instrumentation.retransformClasses(batch.toArray(Class<?>[]::new));
+            System.out.println("[Agent] Batch " + batchId + ": " + batch.size() + " classes in "
+                    + elapsedMillis(startTime) + "ms");
+            //System.out.println("[Agent] Batch " + batchId + ": " + batch.stream().map(Class::getName).collect(Collectors.joining(";")));
+            return 0;
+        } catch (Exception | LinkageError ex) {
+            if (batch.size() == 1) {
+                System.out.println("[Agent] Cannot retransform " + batch.get(0).getName() + ": " + ex);
+                return 1;
+            }
+            // The whole batch is rolled back: find out which ones are failing
+            System.out.println("[Agent] Batch " + batchId + " failed after " + elapsedMillis(startTime)
+                    + "ms (" + ex + "), retrying classes one by one");
+            int failures = 0;
+            for (var c : batch) {
+                failures += retransformBatch(batchId, List.of(c));
+            }
+            return failures;
+        }
+    }
+
+    static String describe(List<Class<?>> classes) {
+        return classes.stream().map(Class::getSimpleName).collect(Collectors.joining(";"));
+    }
+
+    private static long elapsedMillis(long startTime) {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+}
@@ -8,16 +8,19 @@ import org.objectweb.asm.util.TraceMethodVisitor;
 
 import java.io.PrintWriter;
 
+import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.PROLOGUE_MAX_STACK;
 import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.prologue;
 import static org.objectweb.asm.Opcodes.*;
 
 class SinglePassCheckAndInstrumentMethodClassVisitor extends ClassVisitor {
 
+    private final String className;
     private final String methodName;
     //private final TraceClassVisitor tracer;
 
-    public SinglePassCheckAndInstrumentMethodClassVisitor(ClassVisitor cv, String methodName) {
+    public SinglePassCheckAndInstrumentMethodClassVisitor(ClassVisitor cv, String className, String methodName) {
         super(ASM9, cv);
+        this.className = className;
         this.methodName = methodName;
         //this.tracer = new TraceClassVisitor(cv, new PrintWriter(System.out));
     }
@@ -42,13 +45,15 @@ class SinglePassCheckAndInstrumentMethodClassVisitor extends ClassVisitor {
 
             //System.out.println("[Agent] method " + name + " instrumenting: " + (methodVisitor == null ? "no" : "yes"));
 
+            var entitlement = CheckerFactory.entitlementFor(className, name, desc);
             var recordingVisitor = new RecordingMethodVisitor();
-            prologue(recordingVisitor);
+            prologue(recordingVisitor, entitlement);
 
             return new CheckAndReplayMethodVisitor(
                     new InstrumentingMethodVisitor(
                             //new TraceMethodVisitor(methodVisitor, SinglePassCheckAndInstrumentMethodClassVisitor.this.tracer.p)
-                            methodVisitor
+                            methodVisitor,
+                            entitlement
                     ),
                     new MethodVisitor(ASM9,
                             //new TraceMethodVisitor(methodVisitor, SinglePassCheckAndInstrumentMethodClassVisitor.this.tracer.p)
@@ -69,8 +74,11 @@ class SinglePassCheckAndInstrumentMethodClassVisitor extends ClassVisitor {
 //    }
 
     private static class InstrumentingMethodVisitor extends MethodVisitor {
-        public InstrumentingMethodVisitor(MethodVisitor mv) {
+        private final Entitlement entitlement;
+
+        public InstrumentingMethodVisitor(MethodVisitor mv, Entitlement entitlement) {
             super(Opcodes.ASM9, mv);
+            this.entitlement = entitlement;
             //System.out.println("Instrumenting");
         }
 
@@ -78,7 +86,12 @@ class SinglePassCheckAndInstrumentMethodClassVisitor extends ClassVisitor {
         public void visitCode() {
             //System.out.println("InstrumentingMethodVisitor#visitCode");
             mv.visitCode();
-            prologue(this);
+            prologue(this, entitlement);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitMaxs(Math.max(maxStack, PROLOGUE_MAX_STACK), maxLocals);
         }
     }
 }
@@ -0,0 +1,217 @@
+package org.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the transform pipeline, i.e. what the agent costs at startup.
+ * <p>
+ * {@link EntitlementCheckTransformer#transform} runs concurrently on every class-loading thread, so everything here is
+ * lock-free: {@link LongAdder}s for the counters, an {@link AtomicLongArray} for the (power of two buckets) latency
+ * histogram, and CAS on a small array for the slowest classes. The latter keeps a volatile threshold (a lower bound of
+ * the fastest time in the array, once it is full) so the common case is a single read; concurrent offers can race for
+ * the same slot, so the list is the slowest classes give or take a few near the bottom.
+ */
+class TransformMetrics implements TransformMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.elasticsearch.instrumentation:type=TransformMetrics";
+
+    static final int SLOWEST_CLASSES = 16;
+
+    enum Outcome {
+        /** Not in the plan, rejected by the pre-filters */
+        SKIPPED,
+        /** Rewritten by ASM */
+        REWRITTEN,
+        /** Handed to ASM, but no method matched */
+        UNCHANGED,
+        /** Served from the {@link InstrumentedClassCache} */
+        CACHE_HIT,
+        FAILED
+    }
+
+    record Sample(String className, long nanos) {}
+
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(Long.SIZE);
+
+    private final AtomicReferenceArray<Sample> slowest = new AtomicReferenceArray<>(SLOWEST_CLASSES);
+    private volatile long slowestThreshold;
+
+    TransformMetrics() {
+        for (int i = 0; i < outcomes.length; ++i) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param bytesOut the size of the transformed class, 0 if the class was not transformed
+     */
+    void record(String className, Outcome outcome, long nanos, int bytesIn, int bytesOut) {
+        outcomes[outcome.ordinal()].increment();
+        totalNanos.add(nanos);
+        latencyHistogram.incrementAndGet(bucket(nanos));
+        if (outcome != Outcome.SKIPPED) {
+            this.bytesIn.add(bytesIn);
+            this.bytesOut.add(bytesOut);
+        }
+        if (nanos > slowestThreshold) {
+            offerSlowest(new Sample(className, nanos));
+        }
+    }
+
+    private static int bucket(long nanos) {
+        return Math.min(Long.SIZE - 1, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+
+    private void offerSlowest(Sample sample) {
+        while (true) {
+            int minIndex = -1;
+            Sample min = null;
+            for (int i = 0; i < SLOWEST_CLASSES; ++i) {
+                var current = slowest.get(i);
+                if (current == null) {
+                    minIndex = i;
+                    min = null;
+                    break;
+                }
+                if (min == null || current.nanos() < min.nanos()) {
+                    minIndex = i;
+                    min = current;
+                }
+            }
+            if (min != null && min.nanos() >= sample.nanos()) {
+                return;
+            }
+            if (slowest.compareAndSet(minIndex, min, sample)) {
+                if (min != null) {
+                    // The array is full: what we just evicted was the fastest, anything slower gets in
+                    slowestThreshold = Math.max(slowestThreshold, min.nanos());
+                }
+                return;
+            }
+        }
+    }
+
+    private long count(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    @Override
+    public long getTransformCount() {
+        long count = 0;
+        for (var outcome : outcomes) {
+            count += outcome.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return count(Outcome.SKIPPED);
+    }
+
+    @Override
+    public long getRewrittenCount() {
+        return count(Outcome.REWRITTEN);
+    }
+
+    @Override
+    public long getUnchangedCount() {
+        return count(Outcome.UNCHANGED);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return count(Outcome.CACHE_HIT);
+    }
+
+    @Override
+    public long getFailedCount() {
+        return count(Outcome.FAILED);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getTotalTransformMicros() {
+        return totalNanos.sum() / 1000;
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        var histogram = new long[latencyHistogram.length()];
+        for (int i = 0; i < histogram.length; ++i) {
+            histogram[i] = latencyHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public double getLatencyPercentileMicros(double percentile) {
+        var histogram = getLatencyHistogram();
+        long total = 0;
+        for (var count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return Math.scalb(1.0, i) / 1000;
+            }
+        }
+        return Math.scalb(1.0, histogram.length - 1) / 1000;
+    }
+
+    @Override
+    public String[] getSlowestClasses() {
+        var samples = new ArrayList<Sample>();
+        for (int i = 0; i < SLOWEST_CLASSES; ++i) {
+            var sample = slowest.get(i);
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        samples.sort(Comparator.comparingLong(Sample::nanos).reversed());
+        return samples.stream().map(s -> s.className() + ": " + s.nanos() / 1000 + "us").toArray(String[]::new);
+    }
+
+    @Override
+    public String summary() {
+        var summary = new StringBuilder();
+        summary.append("transforms=").append(getTransformCount())
+                .append(" skipped=").append(getSkippedCount())
+                .append(" rewritten=").append(getRewrittenCount())
+                .append(" unchanged=").append(getUnchangedCount())
+                .append(" cacheHits=").append(getCacheHitCount())
+                .append(" failed=").append(getFailedCount())
+                .append(" bytesIn=").append(getBytesIn())
+                .append(" bytesOut=").append(getBytesOut())
+                .append(" total=").append(getTotalTransformMicros()).append("us")
+                .append(" p50<=").append(getLatencyPercentileMicros(50)).append("us")
+                .append(" p99<=").append(getLatencyPercentileMicros(99)).append("us");
+        for (var slow : getSlowestClasses()) {
+            summary.append("\n    ").append(slow);
+        }
+        return summary.toString();
+    }
+}
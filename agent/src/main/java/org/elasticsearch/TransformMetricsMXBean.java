@@ -0,0 +1,44 @@
+package org.elasticsearch;
+
+/**
+ * JMX view of {@link TransformMetrics}, registered as {@value TransformMetrics#OBJECT_NAME} when
+ * {@value InstrumentationAgent#METRICS_MBEAN_PROPERTY} is set.
+ */
+public interface TransformMetricsMXBean {
+
+    long getTransformCount();
+
+    long getSkippedCount();
+
+    long getRewrittenCount();
+
+    long getUnchangedCount();
+
+    long getCacheHitCount();
+
+    long getFailedCount();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getTotalTransformMicros();
+
+    /**
+     * @return transform calls per latency bucket: bucket {@code i} counts calls that took less than {@code 2^i} ns
+     * (and at least {@code 2^(i-1)} ns)
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * @return an upper bound (the end of the histogram bucket) of the given latency percentile, in microseconds
+     */
+    double getLatencyPercentileMicros(double percentile);
+
+    /**
+     * @return the slowest transformations, as "class: micros", slowest first
+     */
+    String[] getSlowestClasses();
+
+    String summary();
+}
@@ -33,6 +33,56 @@ public class Util {
         return callerClassIfAny.orElse(NO_CLASS);
     }
 
+    /**
+     * For intercepted natives (see {@link Natives#CHECK_OPEN}), which are called by the JDK on behalf of its callers:
+     * their direct caller is always a JDK class (e.g. {@code UnixNativeDispatcher}), whatever code asked for the file.
+     * <p>
+     * When every frame is in the JDK or the agent (e.g. a JDK thread opening a file for a plugin), the open is not left
+     * unchecked if there is anything else to blame: the class the check is delegated to (see {@link Delegation}), if
+     * any, or else the nearest class of a module defined by the platform loader (e.g. {@code java.net.http}), which a
+     * policy can grant like any other component. Only the boot loader and the agent (the JVM starting, loading classes,
+     * or reloading the policy) open files unchecked.
+     *
+     * @return the first class on the stack that is neither in the JDK (defined by the boot or platform loader) nor in
+     * the agent; otherwise the delegated class, or the nearest class defined by the platform loader; or {@code null} if
+     * there is none of those.
+     */
+    public static Class<?> getCallerClassOutsideJdk() {
+        return StackWalker.getInstance(RETAIN_CLASS_REFERENCE)
+                .walk(
+                        frames -> {
+                            Class<?> nearestPlatformClass = null;
+                            var classes = frames.skip(1) // Skip this method
+                                    .map(StackWalker.StackFrame::getDeclaringClass)
+                                    .iterator();
+                            while (classes.hasNext()) {
+                                var type = classes.next();
+                                var loader = type.getClassLoader();
+                                if (loader == ClassLoader.getPlatformClassLoader()) {
+                                    if (nearestPlatformClass == null) {
+                                        nearestPlatformClass = type;
+                                    }
+                                } else if (loader != null && isAgent(type) == false) {
+                                    return type;
+                                }
+                            }
+                            return DELEGATE_CHECK_CLASS.isBound() ? DELEGATE_CHECK_CLASS.get() : nearestPlatformClass;
+                        }
+                );
+    }
+
+    private static boolean isAgent(Class<?> type) {
+        return type.getClassLoader() == Util.class.getClassLoader() && type.getPackageName().equals(Util.class.getPackageName());
+    }
+
+    /**
+     * {@code -Dorg.elasticsearch.instrumentation.debug=true} traces, on stderr, what the agent does on every link and
+     * transform, and the errors it recovers from; nothing is printed otherwise
+     */
+    static final String DEBUG_PROPERTY = "org.elasticsearch.instrumentation.debug";
+
+    static final boolean DEBUG = Boolean.getBoolean(DEBUG_PROPERTY);
+
     static final ScopedValue<Class<?>> DELEGATE_CHECK_CLASS = ScopedValue.newInstance();
 
     static void delegate(Consumer<Class<?>> runnable) {
@@ -0,0 +1,69 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AbstractFileWatchingServiceTests {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Path directory;
+    private Path file;
+    private final LinkedBlockingQueue<String> processed = new LinkedBlockingQueue<>();
+    private AbstractFileWatchingService service;
+
+    @BeforeEach
+    void startWatching() throws IOException {
+        directory = Files.createTempDirectory("file-watching");
+        file = directory.resolve("watched");
+        Files.writeString(file, "first");
+        service = new AbstractFileWatchingService(null) {
+            @Override
+            protected void processFileChanges() throws IOException {
+                processed.add(Files.readString(file));
+            }
+        };
+        service.pathToWatch = file;
+        service.start();
+        assertEquals("first", processed.poll());
+    }
+
+    @AfterEach
+    void stopWatching() throws IOException {
+        service.stop();
+        Files.deleteIfExists(file);
+        Files.delete(directory);
+    }
+
+    @Test
+    void changes() throws IOException, InterruptedException {
+        Files.writeString(file, "second, longer");
+        assertEquals("second, longer", processed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void sameSizeAndModifiedTime() throws IOException, InterruptedException {
+        var lastModified = Files.getLastModifiedTime(file);
+        Files.writeString(file, "other");
+        Files.setLastModifiedTime(file, lastModified);
+        assertEquals("other", processed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void sameContent() throws IOException, InterruptedException {
+        var lastModified = Files.getLastModifiedTime(file);
+        Files.writeString(file, "first");
+        Files.setLastModifiedTime(file, lastModified);
+        assertNull(processed.poll(AbstractFileWatchingService.SETTLE_MILLIS * 5, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,94 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ComponentPolicyTests {
+
+    private static final Path ROOT = Path.of("").toAbsolutePath().getRoot();
+
+    private static ComponentPolicy parse(String policy) throws IOException {
+        return ComponentPolicy.parse(new StringReader(policy));
+    }
+
+    @Test
+    void grantsToComponents() throws IOException {
+        var policy = parse("""
+                org.example.reader = READ_FILE
+                org.example.both = read_file, EXIT_VM ,
+                org.example.none =
+                """);
+        var reader = Component.named("org.example.reader");
+        var both = Component.named("org.example.both");
+        var none = Component.named("org.example.none");
+        assertTrue(policy.isAllowed(reader, Entitlement.READ_FILE));
+        assertFalse(policy.isAllowed(reader, Entitlement.EXIT_VM));
+        assertTrue(policy.isAllowed(both, Entitlement.READ_FILE));
+        assertTrue(policy.isAllowed(both, Entitlement.EXIT_VM));
+        assertFalse(policy.isAllowed(both, Entitlement.WRITE_FILE));
+        for (var entitlement : Entitlement.values()) {
+            assertFalse(policy.isAllowed(none, entitlement));
+            assertFalse(policy.isUnrestricted(entitlement));
+        }
+    }
+
+    @Test
+    void componentsNotInThePolicyGetNothing() throws IOException {
+        var policy = parse("org.example.reader = READ_FILE");
+        assertFalse(policy.isAllowed(Component.named("org.example.registered.later"), Entitlement.READ_FILE));
+        assertFalse(policy.isAllowed(ComponentPolicyTests.class, Entitlement.READ_FILE));
+    }
+
+    @Test
+    void grantsToAllComponents() throws IOException {
+        var policy = parse("""
+                * = READ_FILE
+                org.example.exit = EXIT_VM
+                """);
+        assertTrue(policy.isUnrestricted(Entitlement.READ_FILE));
+        assertFalse(policy.isUnrestricted(Entitlement.EXIT_VM));
+        assertTrue(policy.isAllowed(ComponentPolicyTests.class, Entitlement.READ_FILE));
+        assertTrue(policy.isAllowed(Component.named("org.example.exit"), Entitlement.READ_FILE));
+        assertTrue(policy.isAllowed(Component.named("org.example.exit"), Entitlement.EXIT_VM));
+    }
+
+    @Test
+    void grantsOnDirectories() throws IOException {
+        var data = ROOT.resolve("data");
+        var policy = parse("* = WRITE_FILE:" + data + ", EXIT_VM");
+        assertTrue(policy.isAllowed(ComponentPolicyTests.class, Entitlement.EXIT_VM));
+        assertFalse(policy.isAllowed(ComponentPolicyTests.class, Entitlement.WRITE_FILE));
+        assertFalse(policy.isUnrestricted(Entitlement.WRITE_FILE));
+        assertTrue(policy.isAllowed(ComponentPolicyTests.class, Entitlement.WRITE_FILE, data.resolve("file")));
+        assertFalse(policy.isAllowed(ComponentPolicyTests.class, Entitlement.READ_FILE, data.resolve("file")));
+        assertFalse(policy.isAllowed(ComponentPolicyTests.class, Entitlement.WRITE_FILE, ROOT.resolve("etc")));
+    }
+
+    @Test
+    void unknownEntitlement() {
+        var e = assertThrows(IllegalArgumentException.class, () -> parse("org.example = READ_FILE, FLY"));
+        assertEquals("unknown entitlement [FLY] for org.example", e.getMessage());
+    }
+
+    @Test
+    void emptyDirectory() {
+        var e = assertThrows(IllegalArgumentException.class, () -> parse("org.example = READ_FILE:"));
+        assertEquals("empty directory for [READ_FILE] for org.example", e.getMessage());
+    }
+
+    @Test
+    void toStringListsTheGrants() throws IOException {
+        var data = ROOT.resolve("data");
+        var policy = parse("org.example = EXIT_VM, READ_FILE:" + data);
+        assertEquals("ComponentPolicy{org.example=[EXIT_VM], org.example:" + data + "=[READ_FILE]}", policy.toString());
+        assertEquals("ComponentPolicy{}", ComponentPolicy.DENY_ALL.toString());
+    }
+}
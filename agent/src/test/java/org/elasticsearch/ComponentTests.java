@@ -0,0 +1,107 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ComponentTests {
+
+    static class PluginClass {}
+
+    /**
+     * Defines its own copy of {@link PluginClass}
+     */
+    static class PluginLoader extends ClassLoader {
+        PluginLoader() {
+            super("plugin", ComponentTests.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(PluginClass.class.getName())) {
+                synchronized (getClassLoadingLock(name)) {
+                    var loaded = findLoadedClass(name);
+                    if (loaded != null) {
+                        return loaded;
+                    }
+                    var bytes = classBytes(PluginClass.class);
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static byte[] classBytes(Class<?> type) {
+        try (InputStream in = type.getClassLoader().getResourceAsStream(type.getName().replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    void classesOfARegisteredLoaderBelongToItsComponent() throws ClassNotFoundException {
+        var loader = new PluginLoader();
+        var component = Component.register("org.example.registered", loader);
+        assertSame(Component.named("org.example.registered"), component);
+        var pluginClass = loader.loadClass(PluginClass.class.getName());
+        assertSame(loader, pluginClass.getClassLoader());
+        assertSame(component, Component.of(pluginClass));
+        assertEquals("org.example.registered", Component.componentName(pluginClass));
+        assertEquals("app", Component.componentName(PluginClass.class));
+    }
+
+    @Test
+    void registeringToAnotherComponentFails() {
+        var loader = new PluginLoader();
+        Component.register("org.example.first", loader);
+        // Registering to the same component again is fine
+        Component.register("org.example.first", loader);
+        var e = assertThrows(IllegalStateException.class, () -> Component.register("org.example.second", loader));
+        assertTrue(e.getMessage().endsWith("is already registered to component org.example.first"), e.getMessage());
+    }
+
+    @Test
+    void unregister() throws ClassNotFoundException {
+        var loader = new PluginLoader();
+        var component = Component.register("org.example.unregistered", loader);
+        assertSame(component, Component.unregister(loader));
+        assertNull(Component.unregister(loader));
+        assertEquals(Component.UNNAMED, Component.componentName(loader.loadClass(PluginClass.class.getName())));
+        // Free to register to another component
+        Component.register("org.example.other", loader);
+        assertSame(Component.named("org.example.other"), Component.unregister(loader));
+    }
+
+    @Test
+    void registeredLoadersCanBeCollected() throws ClassNotFoundException, InterruptedException {
+        var loader = register();
+        for (int i = 0; i < 100 && loader.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(loader.get(), "the registered loader was not collected");
+    }
+
+    /**
+     * Register a loader, and resolve the component of one of its classes
+     *
+     * @return the only reference left to the loader
+     */
+    private static WeakReference<ClassLoader> register() throws ClassNotFoundException {
+        var loader = new PluginLoader();
+        var component = Component.register("org.example.collected", loader);
+        assertSame(component, Component.of(loader.loadClass(PluginClass.class.getName())));
+        return new WeakReference<>(loader);
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConstantPoolScannerTests {
+
+    abstract static class WatchedType {
+        boolean exists(Path path, LinkOption... options) {
+            return false;
+        }
+    }
+
+    abstract static class WatchedTypeWithInterface implements Runnable {
+        boolean exists(Path path, LinkOption... options) {
+            return false;
+        }
+    }
+
+    static class Subclass extends WatchedType {
+        @Override
+        boolean exists(Path path, LinkOption... options) {
+            return true;
+        }
+    }
+
+    static class IndirectSubclass extends Subclass {
+        @Override
+        boolean exists(Path path, LinkOption... options) {
+            return true;
+        }
+    }
+
+    static class SubclassNotOverriding extends WatchedType {}
+
+    static class Unrelated {
+        boolean exists(Path path, LinkOption... options) {
+            return true;
+        }
+    }
+
+    static class UnrelatedWithInterface implements Runnable {
+        boolean exists(Path path, LinkOption... options) {
+            return true;
+        }
+
+        @Override
+        public void run() {}
+    }
+
+    static class Caller {
+        boolean call(Unrelated unrelated) {
+            return unrelated.exists(Path.of("."));
+        }
+    }
+
+    private final ConstantPoolScanner scanner = new ConstantPoolScanner(List.of("exists"), List.of(WatchedType.class,
+            WatchedTypeWithInterface.class));
+
+    @Test
+    void watchedTypeIsNotACandidate() {
+        // Like RetransformScheduler and the retransformation path of EntitlementCheckTransformer: only subtypes
+        assertFalse(scanner.isInheritanceCandidate(classBytes(WatchedType.class)));
+        assertFalse(scanner.isInheritanceCandidate(classBytes(WatchedTypeWithInterface.class)));
+    }
+
+    @Test
+    void directSubclassIsACandidate() {
+        assertTrue(scanner.isInheritanceCandidate(classBytes(Subclass.class)));
+    }
+
+    @Test
+    void indirectSubclassMayBeACandidate() {
+        // The scanner cannot see past the direct super class
+        assertTrue(scanner.isInheritanceCandidate(classBytes(IndirectSubclass.class)));
+    }
+
+    @Test
+    void classWithoutTheMethodNameIsNotACandidate() {
+        assertFalse(scanner.isInheritanceCandidate(classBytes(SubclassNotOverriding.class)));
+    }
+
+    @Test
+    void unrelatedClassIsNotACandidate() {
+        assertFalse(scanner.isInheritanceCandidate(classBytes(Unrelated.class)));
+    }
+
+    @Test
+    void unrelatedClassWithInterfacesMayBeACandidate() {
+        assertTrue(scanner.isInheritanceCandidate(classBytes(UnrelatedWithInterface.class)));
+    }
+
+    @Test
+    void unknownBytesAreACandidate() {
+        assertTrue(scanner.isInheritanceCandidate(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    void referencesAnyMethodName() {
+        assertTrue(scanner.referencesAnyMethodName(classBytes(Caller.class)));
+        assertFalse(scanner.referencesAnyMethodName(classBytes(SubclassNotOverriding.class)));
+    }
+
+    static byte[] classBytes(Class<?> type) {
+        try (var stream = type.getClassLoader().getResourceAsStream(type.getName().replace('.', '/') + ".class")) {
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.StructuredTaskScope;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DelegationTests {
+
+    private static final Callable<Class<?>> DELEGATE_CLASS = () -> Util.DELEGATE_CHECK_CLASS.orElse(null);
+
+    private static <T> T callWhere(Class<?> delegateClass, Callable<T> task) throws Exception {
+        return ScopedValue.callWhere(Util.DELEGATE_CHECK_CLASS, delegateClass, task);
+    }
+
+    /**
+     * @return what {@code task} returns, called on another thread
+     */
+    private static <T> T onAnotherThread(Callable<T> task) throws Exception {
+        try (var executor = Executors.newSingleThreadExecutor()) {
+            return executor.submit(task).get();
+        }
+    }
+
+    @Test
+    void wrapWithNothingBound() throws Exception {
+        Runnable runnable = () -> {};
+        assertSame(runnable, Delegation.wrap(runnable));
+        assertSame(DELEGATE_CLASS, Delegation.wrap(DELEGATE_CLASS));
+        assertNull(onAnotherThread(Delegation.wrap(DELEGATE_CLASS)));
+    }
+
+    @Test
+    void wrapCarriesTheBoundClassOver() throws Exception {
+        var wrapped = callWhere(String.class, () -> Delegation.wrap(DELEGATE_CLASS));
+        assertSame(String.class, onAnotherThread(wrapped));
+        // Bound when it runs, not any more after
+        assertNull(DELEGATE_CLASS.call());
+
+        var seen = new Class<?>[1];
+        Runnable task = () -> seen[0] = Util.DELEGATE_CHECK_CLASS.get();
+        var runnable = callWhere(String.class, () -> Delegation.wrap(task));
+        onAnotherThread(() -> {
+            runnable.run();
+            return null;
+        });
+        assertSame(String.class, seen[0]);
+    }
+
+    @Test
+    void executorService() throws Exception {
+        try (var executor = Delegation.executorService(Executors.newFixedThreadPool(2))) {
+            assertNull(executor.submit(DELEGATE_CLASS).get());
+            var futures = callWhere(String.class, () -> List.of(
+                    executor.submit(DELEGATE_CLASS),
+                    executor.invokeAll(List.of(DELEGATE_CLASS, DELEGATE_CLASS)).get(1)
+            ));
+            for (var future : futures) {
+                assertSame(String.class, future.get());
+            }
+            assertSame(String.class, callWhere(String.class, () -> executor.invokeAny(List.of(DELEGATE_CLASS))));
+        }
+    }
+
+    @Test
+    void delegatingToTheCallersClass() throws Exception {
+        var task = Delegation.delegating(DelegationTests.class, DELEGATE_CLASS);
+        assertSame(DelegationTests.class, onAnotherThread(task));
+        assertSame(DelegationTests.class, task.call());
+    }
+
+    @Test
+    void delegatingToTheClassDelegatedTo() throws Exception {
+        var task = callWhere(String.class, () -> Delegation.delegating(String.class, DELEGATE_CLASS));
+        assertSame(String.class, task.call());
+    }
+
+    @Test
+    void delegatingToAnyOtherClass() throws Exception {
+        var e = assertThrows(IllegalCallerException.class, () -> Delegation.delegating(String.class, DELEGATE_CLASS));
+        assertEquals("cannot delegate to java.lang.String: only to the caller's class or to the class delegated to",
+                e.getMessage());
+        assertThrows(IllegalCallerException.class,
+                () -> callWhere(Integer.class, () -> Delegation.delegating(String.class, DELEGATE_CLASS)));
+    }
+
+    @Test
+    void delegatingToNull() {
+        // With nothing bound, null is the class delegated to: it must not get through as such
+        assertThrows(NullPointerException.class, () -> Delegation.delegating(null, DELEGATE_CLASS));
+        assertThrows(NullPointerException.class, () -> Delegation.delegating(DelegationTests.class, null));
+    }
+
+    @Test
+    void forkInAStructuredTaskScope() throws Exception {
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            var subtask = Delegation.fork(scope, DelegationTests.class, DELEGATE_CLASS);
+            var other = scope.fork(DELEGATE_CLASS);
+            scope.join().throwIfFailed();
+            assertSame(DelegationTests.class, subtask.get());
+            assertNull(other.get());
+        }
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            assertThrows(IllegalCallerException.class, () -> Delegation.fork(scope, String.class, DELEGATE_CLASS));
+            scope.join();
+        }
+    }
+
+    @Test
+    void forkInAScopeOpenedWhileDelegating() throws Exception {
+        callWhere(String.class, () -> {
+            try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+                var inherited = scope.fork(DELEGATE_CLASS);
+                var delegated = Delegation.fork(scope, String.class, DELEGATE_CLASS);
+                scope.join().throwIfFailed();
+                assertSame(String.class, inherited.get());
+                assertSame(String.class, delegated.get());
+            }
+            return null;
+        });
+    }
+}
@@ -0,0 +1,39 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EntitlementCheckTransformerTests {
+
+    private static final InstrumentationAgent.MethodKey SYSTEM_EXIT =
+            new InstrumentationAgent.MethodKey("java.lang.System", "exit", "(I)V");
+    private static final InstrumentationAgent.MethodKey SHUTDOWN_EXIT =
+            new InstrumentationAgent.MethodKey("java.lang.Shutdown", "exit", "(I)V");
+    private static final InstrumentationAgent.MethodKey FILE_INIT =
+            new InstrumentationAgent.MethodKey("java.io.File", "<init>", "(Ljava/lang/String;)V");
+    private static final InstrumentationAgent.MethodKey FILE_DELETE =
+            new InstrumentationAgent.MethodKey("java.io.File", "delete", "()Z");
+    private static final InstrumentationAgent.MethodKey MISSING =
+            new InstrumentationAgent.MethodKey("java.lang.System", "missing", "()V");
+
+    private static final Set<InstrumentationAgent.MethodKey> PLAN =
+            Set.of(SYSTEM_EXIT, SHUTDOWN_EXIT, FILE_INIT, FILE_DELETE, MISSING);
+
+    @Test
+    void calleeModeHasNoCallSites() {
+        assertEquals(Set.of(), EntitlementCheckTransformer.callSiteMethods(PLAN, InstrumentationAgent.InstrumentationMode.CALLEE));
+        assertEquals(PLAN, EntitlementCheckTransformer.calleeMethods(PLAN, InstrumentationAgent.InstrumentationMode.CALLEE));
+    }
+
+    @Test
+    void callSitesOnlyForMethodsNoOtherOwnerCanName() {
+        // Shutdown is package-private, File.delete can be invoked on a subclass of File, and MISSING does not exist
+        assertEquals(Set.of(SYSTEM_EXIT, FILE_INIT),
+                EntitlementCheckTransformer.callSiteMethods(PLAN, InstrumentationAgent.InstrumentationMode.CALL_SITE));
+        assertEquals(Set.of(SHUTDOWN_EXIT, FILE_DELETE, MISSING),
+                EntitlementCheckTransformer.calleeMethods(PLAN, InstrumentationAgent.InstrumentationMode.CALL_SITE));
+    }
+}
@@ -0,0 +1,152 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.elasticsearch.InstrumentedClassCache.CRC_OFFSET;
+import static org.elasticsearch.InstrumentedClassCache.HEADER_SIZE;
+import static org.elasticsearch.InstrumentedClassCache.HIGH_OFFSET;
+import static org.elasticsearch.InstrumentedClassCache.LENGTH_OFFSET;
+import static org.elasticsearch.InstrumentedClassCache.LOW_OFFSET;
+import static org.elasticsearch.InstrumentedClassCache.PLAN_OFFSET;
+import static org.elasticsearch.InstrumentedClassCache.RECORD_MAGIC;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InstrumentedClassCacheTests {
+
+    private static final byte[] PLAN = InstrumentedClassCache.planHash("plan");
+    private static final byte[] OTHER_PLAN = InstrumentedClassCache.planHash("other plan");
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("instrumented-class-cache");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private Path file() {
+        return directory.resolve(InstrumentedClassCache.CACHE_FILE_NAME);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void recordLayout() throws IOException {
+        var key = InstrumentedClassCache.key(PLAN, bytes("original"));
+        var instrumented = bytes("instrumented");
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            cache.put(key, instrumented);
+        }
+        var record = ByteBuffer.wrap(Files.readAllBytes(file()));
+        assertEquals(HEADER_SIZE + instrumented.length, record.limit());
+        assertEquals(4 + 8 + 8 + 8 + 4 + 4, HEADER_SIZE);
+        assertEquals(RECORD_MAGIC, record.getInt(0));
+        assertEquals(InstrumentedClassCache.plan(PLAN), record.getLong(PLAN_OFFSET));
+        assertEquals(key.plan(), record.getLong(PLAN_OFFSET));
+        assertEquals(key.high(), record.getLong(HIGH_OFFSET));
+        assertEquals(key.low(), record.getLong(LOW_OFFSET));
+        assertEquals(instrumented.length, record.getInt(LENGTH_OFFSET));
+        var crc = new CRC32();
+        crc.update(instrumented);
+        assertEquals((int) crc.getValue(), record.getInt(CRC_OFFSET));
+        assertArrayEquals(instrumented, Arrays.copyOfRange(record.array(), HEADER_SIZE, record.limit()));
+    }
+
+    @Test
+    void keysDependOnThePlanAndTheClass() {
+        var key = InstrumentedClassCache.key(PLAN, bytes("original"));
+        assertEquals(key, InstrumentedClassCache.key(PLAN, bytes("original")));
+        assertNotEquals(key, InstrumentedClassCache.key(OTHER_PLAN, bytes("original")));
+        assertNotEquals(key, InstrumentedClassCache.key(PLAN, bytes("changed")));
+    }
+
+    @Test
+    void hitsAfterReopening() throws IOException {
+        var key = InstrumentedClassCache.key(PLAN, bytes("original"));
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertNull(cache.get(key));
+            cache.put(key, bytes("instrumented"));
+            assertArrayEquals(bytes("instrumented"), cache.get(key));
+        }
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertArrayEquals(bytes("instrumented"), cache.get(key));
+            assertNull(cache.get(InstrumentedClassCache.key(PLAN, bytes("other"))));
+        }
+    }
+
+    @Test
+    void tornRecordsAreIgnored() throws IOException {
+        var first = InstrumentedClassCache.key(PLAN, bytes("first"));
+        var second = InstrumentedClassCache.key(PLAN, bytes("second"));
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            cache.put(first, bytes("first instrumented"));
+            cache.put(second, bytes("second instrumented"));
+        }
+        var file = Files.readAllBytes(file());
+        Files.write(file(), Arrays.copyOf(file, file.length - 1));
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertArrayEquals(bytes("first instrumented"), cache.get(first));
+            assertNull(cache.get(second));
+            // Appending truncates the torn record first
+            cache.put(second, bytes("second instrumented"));
+        }
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertArrayEquals(bytes("first instrumented"), cache.get(first));
+            assertArrayEquals(bytes("second instrumented"), cache.get(second));
+        }
+    }
+
+    @Test
+    void corruptedPayloadsMiss() throws IOException {
+        var key = InstrumentedClassCache.key(PLAN, bytes("original"));
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            cache.put(key, bytes("instrumented"));
+        }
+        var file = Files.readAllBytes(file());
+        file[HEADER_SIZE] ^= 1;
+        Files.write(file(), file);
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertNull(cache.get(key));
+        }
+    }
+
+    @Test
+    void otherPlansAreDroppedOnOpen() throws IOException {
+        var live = InstrumentedClassCache.key(PLAN, bytes("original"));
+        var stale = InstrumentedClassCache.key(OTHER_PLAN, bytes("original"));
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN, OTHER_PLAN))) {
+            cache.put(stale, bytes("stale"));
+            cache.put(live, bytes("live"));
+        }
+        try (var cache = InstrumentedClassCache.open(directory, List.of(PLAN))) {
+            assertArrayEquals(bytes("live"), cache.get(live));
+            assertNull(cache.get(stale));
+        }
+        assertEquals(HEADER_SIZE + bytes("live").length, Files.size(file()));
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MethodMatcherTests {
+
+    @Test
+    void emptyMatchesNothing() {
+        assertSame(MethodMatcher.EMPTY, MethodMatcher.of(List.of()));
+        assertTrue(MethodMatcher.EMPTY.isEmpty());
+        assertFalse(MethodMatcher.EMPTY.matches("exit", "(I)V"));
+        assertFalse(MethodMatcher.EMPTY.matches("", ""));
+    }
+
+    @Test
+    void matchesEverySignature() {
+        var signatures = new ArrayList<MethodSignature>();
+        for (int i = 0; i < 1000; ++i) {
+            signatures.add(new MethodSignature("method" + i, i % 2 == 0 ? "()V" : "(Ljava/lang/String;)Z"));
+        }
+        var matcher = MethodMatcher.of(signatures);
+        assertFalse(matcher.isEmpty());
+        for (var signature : signatures) {
+            assertTrue(matcher.matches(signature.name(), signature.descriptor()), signature.toString());
+        }
+        assertEquals(signatures, matcher.signatures());
+    }
+
+    @Test
+    void missesOtherNamesAndDescriptors() {
+        var matcher = MethodMatcher.of(List.of(
+                new MethodSignature("exit", "(I)V"),
+                new MethodSignature("halt", "(I)V"),
+                new MethodSignature("exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z")
+        ));
+        assertTrue(matcher.matches("exit", "(I)V"));
+        assertFalse(matcher.matches("exit", "(J)V"));
+        assertFalse(matcher.matches("exit", "()V"));
+        assertFalse(matcher.matches("Exit", "(I)V"));
+        assertFalse(matcher.matches("halt", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"));
+        assertFalse(matcher.matches("<init>", "()V"));
+    }
+
+    @Test
+    void collidingHashesAreAllMatched() {
+        // "Aa" and "BB" have the same String hash code, so do "AaAa", "AaBB", "BBAa" and "BBBB"
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        var colliding = List.of("Aa", "BB", "AaAa", "AaBB", "BBAa", "BBBB");
+        var signatures = new ArrayList<MethodSignature>();
+        for (var name : colliding) {
+            signatures.add(new MethodSignature(name, "()V"));
+        }
+        signatures.add(new MethodSignature("other", "()V"));
+        var matcher = MethodMatcher.of(signatures);
+        for (var name : colliding) {
+            assertTrue(matcher.matches(name, "()V"), name);
+            assertFalse(matcher.matches(name, "(I)V"), name);
+        }
+        assertTrue(matcher.matches("other", "()V"));
+        assertFalse(matcher.matches("AaAaAa", "()V"));
+        assertFalse(matcher.matches("Ab", "()V"));
+    }
+
+    @Test
+    void duplicatesAreIgnored() {
+        var signature = new MethodSignature("exit", "(I)V");
+        var matcher = MethodMatcher.of(List.of(signature, signature, new MethodSignature("exit", "(I)V")));
+        assertEquals(List.of(signature), matcher.signatures());
+        assertTrue(matcher.matches("exit", "(I)V"));
+    }
+}
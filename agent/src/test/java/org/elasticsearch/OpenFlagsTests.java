@@ -0,0 +1,59 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.elasticsearch.OpenFlags.O_APPEND;
+import static org.elasticsearch.OpenFlags.O_CREAT;
+import static org.elasticsearch.OpenFlags.O_RDWR;
+import static org.elasticsearch.OpenFlags.O_TRUNC;
+import static org.elasticsearch.OpenFlags.O_WRONLY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OpenFlagsTests {
+
+    private static final int O_RDONLY = 0;
+
+    private static final long READ = Entitlement.READ_FILE.bit();
+    private static final long WRITE = Entitlement.WRITE_FILE.bit();
+
+    @Test
+    void intent() {
+        assertEquals(OpenFlags.READ, OpenFlags.intent(O_RDONLY));
+        assertEquals(OpenFlags.WRITE, OpenFlags.intent(O_WRONLY));
+        assertEquals(OpenFlags.READ | OpenFlags.WRITE, OpenFlags.intent(O_RDWR));
+        assertEquals(OpenFlags.WRITE | OpenFlags.CREATE, OpenFlags.intent(O_WRONLY | O_CREAT));
+        assertEquals(OpenFlags.READ | OpenFlags.CREATE, OpenFlags.intent(O_RDONLY | O_CREAT));
+    }
+
+    @Test
+    void readOnly() {
+        assertEquals(READ, OpenFlags.entitlements(O_RDONLY));
+    }
+
+    @Test
+    void writing() {
+        assertEquals(WRITE, OpenFlags.entitlements(O_WRONLY));
+        assertEquals(READ | WRITE, OpenFlags.entitlements(O_RDWR));
+        assertEquals(WRITE, OpenFlags.entitlements(O_WRONLY | O_APPEND));
+    }
+
+    @Test
+    void truncatingOrAppendingWrites() {
+        // O_RDONLY | O_TRUNC truncates the file, whatever the access mode says
+        assertEquals(READ | WRITE, OpenFlags.entitlements(O_RDONLY | O_TRUNC));
+        assertEquals(READ | WRITE, OpenFlags.entitlements(O_RDONLY | O_APPEND));
+    }
+
+    @Test
+    void creatingWrites() {
+        assertEquals(READ | WRITE, OpenFlags.entitlements(O_RDONLY | O_CREAT));
+        assertEquals(WRITE, OpenFlags.entitlements(O_WRONLY | O_CREAT | O_TRUNC));
+    }
+
+    @Test
+    void otherFlagsAreIgnored() {
+        int oCloexec = 02000000;
+        int oNofollow = 0400000;
+        assertEquals(READ, OpenFlags.entitlements(O_RDONLY | oCloexec | oNofollow));
+    }
+}
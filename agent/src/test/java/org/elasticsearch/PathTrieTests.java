@@ -0,0 +1,100 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PathTrieTests {
+
+    private static final long READ = Entitlement.READ_FILE.bit();
+    private static final long WRITE = Entitlement.WRITE_FILE.bit();
+
+    private static final Path ROOT = Path.of("").toAbsolutePath().getRoot();
+    private static final Path DATA = ROOT.resolve("data");
+    private static final Path LOGS = ROOT.resolve("var").resolve("logs");
+
+    private static final PathTrie TRIE = PathTrie.compile(Map.of(DATA.toString(), READ, LOGS.toString(), WRITE,
+            DATA.resolve("rw").toString(), WRITE));
+
+    /**
+     * The bits granted on {@code path}, checked to be the same for the {@link Path} and for the C string
+     */
+    private static long granted(PathTrie trie, String path) {
+        long granted = trie.granted(Path.of(path));
+        try (var arena = Arena.ofConfined()) {
+            var string = arena.allocateUtf8String(path);
+            assertEquals(path, PathTrie.decode(string.address()));
+            assertEquals(granted, trie.granted(string.address()), path);
+        }
+        return granted;
+    }
+
+    @Test
+    void grantedOnDirectoriesAndBelow() {
+        assertEquals(READ, granted(TRIE, DATA.toString()));
+        assertEquals(READ, granted(TRIE, DATA.resolve("x").resolve("y").toString()));
+        assertEquals(READ | WRITE, granted(TRIE, DATA.resolve("rw").resolve("file").toString()));
+        assertEquals(WRITE, granted(TRIE, LOGS.resolve("gc.log").toString()));
+    }
+
+    @Test
+    void notGrantedOutside() {
+        assertEquals(0, granted(TRIE, ROOT.toString()));
+        assertEquals(0, granted(TRIE, ROOT.resolve("database").toString()));
+        assertEquals(0, granted(TRIE, ROOT.resolve("var").toString()));
+        assertEquals(0, granted(TRIE, ROOT.resolve("etc").resolve("passwd").toString()));
+    }
+
+    @Test
+    void dotElements() {
+        var sep = ROOT.getFileSystem().getSeparator();
+        assertEquals(READ, granted(TRIE, DATA + sep + "." + sep + "x"));
+        assertEquals(READ, granted(TRIE, LOGS + sep + ".." + sep + ".." + sep + "data" + sep + "x"));
+        assertEquals(0, granted(TRIE, DATA + sep + ".." + sep + "etc" + sep + "passwd"));
+        assertEquals(WRITE, granted(TRIE, DATA + sep + "rw" + sep + ".." + sep + ".." + sep + "var" + sep + "logs"));
+        // Not . or .. elements
+        assertEquals(READ, granted(TRIE, DATA + sep + "..." + sep + ".hidden"));
+    }
+
+    @Test
+    void relativePaths() {
+        var workingDirectory = Path.of("").toAbsolutePath();
+        var trie = PathTrie.compile(Map.of("relative", READ));
+        assertTrue(trie.grants().containsKey(workingDirectory.resolve("relative").toString()));
+        assertEquals(READ, granted(trie, "relative"));
+        assertEquals(READ, granted(trie, "relative" + ROOT.getFileSystem().getSeparator() + "file"));
+        assertEquals(READ, granted(trie, workingDirectory.resolve("relative").resolve("file").toString()));
+        assertEquals(0, granted(trie, "other"));
+        assertEquals(0, granted(trie, ""));
+    }
+
+    @Test
+    void relativePathsUnderAGrantedDirectory() {
+        var workingDirectory = Path.of("").toAbsolutePath();
+        var trie = PathTrie.compile(Map.of(workingDirectory.toString(), READ));
+        assertEquals(READ, granted(trie, "file"));
+        assertEquals(READ, granted(trie, "."));
+        if (workingDirectory.getParent() != null) {
+            assertEquals(0, granted(trie, ".."));
+        }
+    }
+
+    @Test
+    void grantsAreNormalizedAndMerged() {
+        var sep = ROOT.getFileSystem().getSeparator();
+        var trie = PathTrie.compile(Map.of(DATA.toString(), READ, DATA + sep + "x" + sep + "..", WRITE));
+        assertEquals(Map.of(DATA.toString(), READ | WRITE), trie.grants());
+        assertEquals(READ | WRITE, granted(trie, DATA.resolve("file").toString()));
+    }
+
+    @Test
+    void emptyGrantsNothing() {
+        assertEquals(0, granted(PathTrie.EMPTY, DATA.toString()));
+        assertEquals(0, granted(PathTrie.EMPTY, "relative"));
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class UtilTests {
+
+    /**
+     * Asks for the caller outside the JDK, from a loader of its own: not the agent
+     */
+    public static class Plugin implements Supplier<Class<?>> {
+        @Override
+        public Class<?> get() {
+            return Util.getCallerClassOutsideJdk();
+        }
+    }
+
+    static class PluginLoader extends ClassLoader {
+        PluginLoader() {
+            super("plugin", UtilTests.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(Plugin.class.getName())) {
+                synchronized (getClassLoadingLock(name)) {
+                    var loaded = findLoadedClass(name);
+                    if (loaded != null) {
+                        return loaded;
+                    }
+                    var bytes = classBytes(Plugin.class);
+                    return defineClass(name, bytes, 0, bytes.length);
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static byte[] classBytes(Class<?> type) {
+        try (InputStream in = type.getClassLoader().getResourceAsStream(type.getName().replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<Class<?>> plugin() throws ReflectiveOperationException {
+        return (Supplier<Class<?>>) new PluginLoader().loadClass(Plugin.class.getName()).getConstructor().newInstance();
+    }
+
+    @Test
+    void firstClassOutsideTheJdkAndTheAgent() throws Exception {
+        var plugin = plugin();
+        assertSame(plugin.getClass(), plugin.get());
+        // Even with a delegated class: the checker decides what to do with it
+        assertSame(plugin.getClass(), ScopedValue.where(Util.DELEGATE_CHECK_CLASS, String.class).call(plugin::get));
+    }
+
+    /**
+     * @return what {@code caller} returns, called on a thread of its own: the test framework is not on its stack
+     */
+    private static Class<?> onNewThread(Supplier<Class<?>> caller) throws InterruptedException {
+        var result = new Class<?>[1];
+        var thread = Thread.ofPlatform().start(() -> result[0] = caller.get());
+        thread.join();
+        return result[0];
+    }
+
+    @Test
+    void delegatedClassWhenOnlyTheJdkAndTheAgentAreOnTheStack() throws Exception {
+        // These tests are in the package of the agent, and loaded by its loader
+        assertSame(String.class, onNewThread(() -> {
+            try {
+                return ScopedValue.where(Util.DELEGATE_CHECK_CLASS, String.class).call(Util::getCallerClassOutsideJdk);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }));
+    }
+
+    @Test
+    void noneForTheJdkAndTheAgentOpeningForThemselves() throws Exception {
+        assertNull(onNewThread(Util::getCallerClassOutsideJdk));
+    }
+}
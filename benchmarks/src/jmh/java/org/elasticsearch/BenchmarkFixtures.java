@@ -0,0 +1,71 @@
+package org.elasticsearch;
+
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * What the benchmarks share to set up their state: the bytes of a class to rewrite, a loader for the rewritten class,
+ * and the policy they run under. A benchmark sets its policy in its {@code @Setup} and calls {@link #resetPolicy()} in
+ * its {@code @TearDown}, so the next benchmark in the same fork does not inherit it.
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {}
+
+    static final EntitlementPolicy ALLOW_ALL = (callerClass, entitlement) -> true;
+
+    static void allowAll() {
+        EntitlementCheckerImpl.setPolicy(ALLOW_ALL);
+    }
+
+    static void resetPolicy() {
+        EntitlementCheckerImpl.setPolicy(ComponentPolicy.DENY_ALL);
+    }
+
+    static byte[] classBytes(Class<?> clazz) {
+        String fileName = "/" + Type.getInternalName(clazz) + ".class";
+        try (InputStream classStream = clazz.getResourceAsStream(fileName)) {
+            if (classStream == null) {
+                throw new IllegalStateException("Classfile not found in jar: " + fileName);
+            }
+            return classStream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the class {@code className}, defined from {@code bytecodes} by a {@link TestClassLoader}
+     */
+    static <T> Class<? extends T> load(String className, byte[] bytecodes, Class<T> type) throws ClassNotFoundException {
+        return new TestClassLoader(className, bytecodes).loadClass(className).asSubclass(type);
+    }
+
+    /**
+     * Defines the (instrumented) target class itself, and delegates everything else
+     */
+    static class TestClassLoader extends ClassLoader {
+        private final String className;
+        private final byte[] bytecodes;
+
+        TestClassLoader(String className, byte[] bytecodes) {
+            super("benchmark-fixtures", BenchmarkFixtures.class.getClassLoader());
+            this.className = className;
+            this.bytecodes = bytecodes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(className)) {
+                synchronized (getClassLoadingLock(name)) {
+                    var loaded = findLoadedClass(name);
+                    return loaded != null ? loaded : defineClass(name, bytecodes, 0, bytecodes.length);
+                }
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+}
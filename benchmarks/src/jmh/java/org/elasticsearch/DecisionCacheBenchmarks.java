@@ -0,0 +1,76 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeated checks from the same caller, with and without the {@link DecisionCache}.
+ * <p>
+ * The policy resolves the caller to a component (here, its package) and looks up its grants, which is roughly what a
+ * real policy does; {@code setPolicyAndCheck} is the cost of the first check after a policy change, through
+ * {@link EntitlementCheckerImpl#setPolicy} (a new cache, and relinking the inheritance check sites).
+ * {@code componentPolicy} is the same grants compiled into a {@link ComponentPolicy}, without a cache in front.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecisionCacheBenchmarks {
+
+    private EntitlementPolicy policy;
+    private DecisionCache cache;
+    private ComponentPolicy componentPolicy;
+    private Class<?> callerClass;
+    private final EntitlementChecker checker = new EntitlementCheckerImpl();
+
+    @Setup
+    public void setup() {
+        Map<String, Set<Entitlement>> grants = Map.of(
+                DecisionCacheBenchmarks.class.getPackageName(), EnumSet.of(Entitlement.READ_FILE),
+                "org.example.plugin", EnumSet.of(Entitlement.READ_FILE, Entitlement.WRITE_FILE)
+        );
+        policy = (callerClass, entitlement) -> grants.getOrDefault(callerClass.getPackageName(), Set.of()).contains(entitlement);
+        cache = new DecisionCache(policy);
+        componentPolicy = ComponentPolicy.compile(Map.of(
+                Component.componentName(DecisionCacheBenchmarks.class), EnumSet.of(Entitlement.READ_FILE),
+                "org.example.plugin", EnumSet.of(Entitlement.READ_FILE, Entitlement.WRITE_FILE)
+        ));
+        callerClass = DecisionCacheBenchmarks.class;
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.resetPolicy();
+    }
+
+    @Benchmark
+    public boolean uncached() {
+        return policy.isAllowed(callerClass, Entitlement.READ_FILE);
+    }
+
+    @Benchmark
+    public boolean cached() {
+        return cache.isAllowed(callerClass, Entitlement.READ_FILE);
+    }
+
+    @Benchmark
+    public boolean componentPolicy() {
+        return componentPolicy.isAllowed(callerClass, Entitlement.READ_FILE);
+    }
+
+    @Benchmark
+    public void setPolicyAndCheck() {
+        EntitlementCheckerImpl.setPolicy(policy);
+        checker.check(callerClass, Entitlement.READ_FILE);
+    }
+}
@@ -0,0 +1,47 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What carrying the delegation over to a task costs ({@link Delegation#wrap(Runnable)}), with the task run in place so
+ * that only the wrapping and rebinding are measured: {@code unbound} (nothing to carry: no wrapper), {@code bound}
+ * (wrapper and rebinding) and {@code boundByHand} (the same with {@link Util#propagateDelegation}). The bound variants
+ * include binding the class in the first place. Run with {@code -prof gc} for the allocation per task.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DelegationBenchmarks {
+
+    private final AtomicLong ran = new AtomicLong();
+    private final Runnable task = ran::incrementAndGet;
+
+    @Benchmark
+    public long unbound() {
+        Delegation.wrap(task).run();
+        return ran.get();
+    }
+
+    @Benchmark
+    public long bound() {
+        ScopedValue.runWhere(Util.DELEGATE_CHECK_CLASS, DelegationBenchmarks.class, () -> Delegation.wrap(task).run());
+        return ran.get();
+    }
+
+    @Benchmark
+    public long boundByHand() {
+        ScopedValue.runWhere(Util.DELEGATE_CHECK_CLASS, DelegationBenchmarks.class, () -> {
+            var delegateClass = Util.DELEGATE_CHECK_CLASS.get();
+            Util.propagateDelegation(delegateClass, task);
+        });
+        return ran.get();
+    }
+}
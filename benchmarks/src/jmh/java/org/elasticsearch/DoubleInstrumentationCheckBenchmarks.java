@@ -2,12 +2,12 @@ package org.elasticsearch;
 
 import org.objectweb.asm.Type;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Set;
+import java.util.List;
 
 @State(Scope.Benchmark)
 public class DoubleInstrumentationCheckBenchmarks {
@@ -17,39 +17,53 @@ public class DoubleInstrumentationCheckBenchmarks {
         }
     }
 
-    private static final byte[] originalBytecodes = loadClassBytecodes(ClassToInstrument.class);
+    private static final byte[] originalBytecodes = BenchmarkFixtures.classBytes(ClassToInstrument.class);
 
-    private static final String CLASS_NAME = ClassToInstrument.class.getName();
+    /**
+     * Large JDK classes, to compare the cost of rewriting with and without ASM computing frames and maxs.
+     */
+    @State(Scope.Benchmark)
+    public static class LargeClass {
+        @Param({"java.lang.String", "java.util.concurrent.ConcurrentHashMap", "java.lang.Character"})
+        public String className;
+
+        @Param({"toString"})
+        public String methodName;
+
+        @Param({"()Ljava/lang/String;"})
+        public String methodDescriptor;
+
+        String internalClassName;
+        byte[] bytecodes;
+        MethodMatcher methods;
 
-    static byte[] loadClassBytecodes(Class<?> clazz) {
-        String internalName = Type.getInternalName(clazz);
-        String fileName = "/" + internalName + ".class";
-
-        byte[] originalBytecodes;
-        try (InputStream classStream = clazz.getResourceAsStream(fileName)) {
-            if (classStream == null) {
-                throw new IllegalStateException("Classfile not found in jar: " + fileName);
-            }
-            originalBytecodes = classStream.readAllBytes();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        @Setup
+        public void setup() throws ClassNotFoundException {
+            var clazz = Class.forName(className);
+            internalClassName = Type.getInternalName(clazz);
+            bytecodes = BenchmarkFixtures.classBytes(clazz);
+            methods = MethodMatcher.of(List.of(new MethodSignature(methodName, methodDescriptor)));
         }
-        return originalBytecodes;
     }
 
+    private static final String CLASS_NAME = ClassToInstrument.class.getName();
+
+    private static final MethodSignature METHOD = new MethodSignature("methodToInstrument", "()V");
+    private static final MethodMatcher METHODS = MethodMatcher.of(List.of(METHOD));
+
     @Benchmark
     public byte[] noCheck() {
         var classRewriter = new ClassRewriter(CLASS_NAME, originalBytecodes);
-        return classRewriter.instrumentMethodNoChecks(Set.of("methodToInstrument"));
+        return classRewriter.instrumentMethodNoChecks(METHODS);
     }
 
     @Benchmark
     public byte[] noCheckCalledTwice() {
         var classRewriter = new ClassRewriter(CLASS_NAME, originalBytecodes);
-        var instrumentedBytes = classRewriter.instrumentMethodNoChecks(Set.of("methodToInstrument"));
+        var instrumentedBytes = classRewriter.instrumentMethodNoChecks(METHODS);
 
         classRewriter = new ClassRewriter(CLASS_NAME, instrumentedBytes);
-        return classRewriter.instrumentMethodNoChecks(Set.of("methodToInstrument"));
+        return classRewriter.instrumentMethodNoChecks(METHODS);
     }
 
     @Benchmark
@@ -70,16 +84,16 @@ public class DoubleInstrumentationCheckBenchmarks {
     @Benchmark
     public byte[] completeCheckWithTwoPasses() {
         var classRewriter = new ClassRewriter(CLASS_NAME, originalBytecodes);
-        return classRewriter.checkAndInstrumentMethodTwoPasses("methodToInstrument");
+        return classRewriter.checkAndInstrumentMethodTwoPasses(METHOD);
     }
 
     @Benchmark
     public byte[] completeCheckWithTwoPassesCalledTwice() {
         var classRewriter = new ClassRewriter(CLASS_NAME, originalBytecodes);
-        var instrumentedBytes = classRewriter.checkAndInstrumentMethodTwoPasses("methodToInstrument");
+        var instrumentedBytes = classRewriter.checkAndInstrumentMethodTwoPasses(METHOD);
 
         classRewriter = new ClassRewriter(CLASS_NAME, instrumentedBytes);
-        return classRewriter.checkAndInstrumentMethodTwoPasses("methodToInstrument");
+        return classRewriter.checkAndInstrumentMethodTwoPasses(METHOD);
     }
 
     @Benchmark
@@ -96,4 +110,16 @@ public class DoubleInstrumentationCheckBenchmarks {
         classRewriter = new ClassRewriter(CLASS_NAME, instrumentedBytes);
         return classRewriter.checkAndInstrumentMethodSinglePass("methodToInstrument");
     }
+
+    @Benchmark
+    public byte[] largeClassComputeFrames(LargeClass largeClass) {
+        var classRewriter = new ClassRewriter(largeClass.internalClassName, largeClass.bytecodes, true);
+        return classRewriter.instrumentMethodNoChecks(largeClass.methods);
+    }
+
+    @Benchmark
+    public byte[] largeClassNoFrames(LargeClass largeClass) {
+        var classRewriter = new ClassRewriter(largeClass.internalClassName, largeClass.bytecodes, false);
+        return classRewriter.instrumentMethodNoChecks(largeClass.methods);
+    }
 }
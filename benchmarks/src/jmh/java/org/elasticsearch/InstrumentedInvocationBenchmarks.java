@@ -0,0 +1,131 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.Variant.DEEP_CHECK_PROLOGUE;
+import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.Variant.DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES;
+import static org.elasticsearch.InstrumentMethodClassVisitor.InstrumentingMethodVisitor.Variant.PROLOGUE;
+
+/**
+ * What the instrumented code costs at call time (as opposed to {@link DoubleInstrumentationCheckBenchmarks}, which
+ * measures the rewriting): {@link InvocationTargetImpl} is rewritten with each {@link Variant}, loaded through a test
+ * class loader, and called; {@link Variant#BASELINE} is the class as it is. The policy allows everything, so this is
+ * the cost of the happy path.
+ * <p>
+ * Throughput and latency are measured together; run {@link #main} for 1, N and 2N threads (N being the number of
+ * processors) with the {@code gc} profiler, for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InstrumentedInvocationBenchmarks {
+
+    public enum Variant {
+        BASELINE,
+        /** {@link InstrumentMethodClassVisitor.InstrumentingMethodVisitor#prologue}, then the renamed method */
+        PROLOGUE_THEN_CALL,
+        /** {@link InstrumentMethodClassVisitor.InstrumentingMethodVisitor#deepCheckPrologue} */
+        DEEP_CHECK_PROLOGUE,
+        /** {@link InstrumentMethodClassVisitor.InstrumentingMethodVisitor#deepCheckPrologueWithStackFrames} */
+        DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES,
+        /** The invokedynamic prologue linked by {@link CheckerFactory#bootstrap} */
+        INHERITANCE,
+        /** {@link InstrumentAndAnnotateMethodClassVisitor} */
+        ANNOTATED,
+        /** {@link SinglePassCheckAndInstrumentMethodClassVisitor} */
+        SINGLE_PASS
+    }
+
+    private static final String METHOD_NAME = "methodToInstrument";
+    private static final MethodSignature METHOD = new MethodSignature(METHOD_NAME, "(J)V");
+
+    @State(Scope.Benchmark)
+    public static class InstrumentedClass {
+        @Param
+        public Variant variant;
+
+        Class<? extends InvocationTarget> targetClass;
+
+        @Setup(Level.Trial)
+        public void setup() throws ClassNotFoundException {
+            targetClass = instrument(InvocationTargetImpl.class, variant);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkFixtures.resetPolicy();
+        }
+    }
+
+    /**
+     * Allow everything, rewrite {@code target} with {@code variant} and load it (see {@link BenchmarkFixtures#load})
+     */
+    static Class<? extends InvocationTarget> instrument(Class<? extends InvocationTarget> target, Variant variant)
+            throws ClassNotFoundException {
+        CheckerFactory.setMethodsToInterfaces(Map.of(METHOD, List.of(InvocationTarget.class)));
+        CheckerFactory.setEntitlements(
+                Map.of(new InstrumentationAgent.MethodKey(target.getName(), METHOD.name(), METHOD.descriptor()),
+                        Entitlement.READ_FILE),
+                Map.of(METHOD, Entitlement.READ_FILE)
+        );
+        BenchmarkFixtures.allowAll();
+
+        var className = target.getName();
+        var bytecodes = BenchmarkFixtures.classBytes(target);
+        var methods = MethodMatcher.of(List.of(METHOD));
+        var rewriter = new ClassRewriter(className, bytecodes);
+        var instrumented = switch (variant) {
+            case BASELINE -> bytecodes;
+            case PROLOGUE_THEN_CALL -> rewriter.instrumentMethodNoChecks(methods, false, PROLOGUE);
+            case DEEP_CHECK_PROLOGUE -> rewriter.instrumentMethodNoChecks(methods, false, DEEP_CHECK_PROLOGUE);
+            case DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES -> rewriter.instrumentMethodNoChecks(methods, false,
+                    DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES);
+            case INHERITANCE -> rewriter.instrumentMethodNoChecks(MethodMatcher.EMPTY, true);
+            case ANNOTATED -> rewriter.instrumentMethodWithAnnotation(METHOD_NAME);
+            case SINGLE_PASS -> rewriter.checkAndInstrumentMethodSinglePass(METHOD_NAME);
+        };
+        return BenchmarkFixtures.load(className, instrumented, InvocationTarget.class);
+    }
+
+    private InvocationTarget target;
+
+    @Setup(Level.Trial)
+    public void setup(InstrumentedClass instrumentedClass) throws ReflectiveOperationException {
+        target = instrumentedClass.targetClass.getConstructor().newInstance();
+    }
+
+    @Benchmark
+    public long invoke() {
+        target.methodToInstrument(1);
+        return target.sum();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[] { 1, processors, 2 * processors }) {
+            new Runner(new OptionsBuilder()
+                    .include(InstrumentedInvocationBenchmarks.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .jvmArgsAppend("--enable-preview")
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.elasticsearch;
+
+/**
+ * What {@link InstrumentedInvocationBenchmarks} calls: {@link InvocationTargetImpl}, instrumented and loaded through its
+ * own class loader. This interface is shared with the benchmark class loader.
+ */
+public interface InvocationTarget {
+    void methodToInstrument(long value);
+
+    long sum();
+}
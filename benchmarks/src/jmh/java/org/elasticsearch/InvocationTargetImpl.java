@@ -0,0 +1,20 @@
+package org.elasticsearch;
+
+/**
+ * The class {@link InstrumentedInvocationBenchmarks} instruments; keep it free of dependencies other than
+ * {@link InvocationTarget}.
+ */
+public class InvocationTargetImpl implements InvocationTarget {
+
+    private long sum;
+
+    @Override
+    public void methodToInstrument(long value) {
+        sum += value;
+    }
+
+    @Override
+    public long sum() {
+        return sum;
+    }
+}
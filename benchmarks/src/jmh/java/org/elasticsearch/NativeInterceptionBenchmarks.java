@@ -0,0 +1,127 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intercepted native methods ({@link NativeTargetImpl}, rewritten by {@link ClassRewriter#instrumentNativeMethod}),
+ * against the same FFM downcall without the check, linked as {@link Natives#CRITICAL} ({@code downcall}) or not
+ * ({@code downcallNotCritical}): the difference is what the check costs on top of the syscall. {@code interceptedErrno}
+ * fails a {@code close} and reads errno back, which must not allocate (run with {@code -prof gc}). The policy allows
+ * everything, except for {@code interceptedOpen}: it opens (and closes) a file the target is entitled to read through a
+ * directory grant only, so the C string path is matched against the grants on each call, and the stack is walked for
+ * the first caller outside the JDK and the agent (the target itself, loaded by another loader).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NativeInterceptionBenchmarks {
+
+    private static final MethodHandle GETPID$mh = Natives.downcallHandle("getpid", MethodType.methodType(int.class),
+            Natives.CRITICAL);
+    private static final MethodHandle GETPID_NOT_CRITICAL$mh = Natives.downcallHandle("getpid",
+            MethodType.methodType(int.class), 0);
+
+    private static final int O_RDONLY = 0;
+
+    record NativeMethod(String name, String descriptor, String symbol, int flags) {}
+
+    /**
+     * The native methods of {@link NativeTargetImpl}, and how to link them
+     */
+    private static final NativeMethod[] NATIVE_METHODS = {
+            new NativeMethod("getpid0", "()I", "getpid", Natives.CRITICAL),
+            new NativeMethod("ldexp0", "(DI)D", "ldexp", Natives.CRITICAL),
+            new NativeMethod("labs0", "(J)J", "labs", Natives.CRITICAL),
+            new NativeMethod("strerror0", "(I)Ljava/lang/String;", "strerror", 0),
+            new NativeMethod("srand0", "(I)V", "srand", Natives.CRITICAL),
+            new NativeMethod("close0", "(I)I", "close", Natives.CAPTURE_ERRNO),
+            new NativeMethod("open0", "(JII)I", "open", Natives.CAPTURE_ERRNO | Natives.CHECK_OPEN),
+    };
+
+    private NativeTarget intercepted;
+    private Path directory;
+    private MemorySegment file;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException, IOException {
+        var targetClass = intercept();
+        intercepted = targetClass.getConstructor().newInstance();
+        directory = Files.createTempDirectory("native-interception");
+        file = Arena.global().allocateUtf8String(Files.createFile(directory.resolve("file")).toString());
+        EntitlementCheckerImpl.setPolicy(ComponentPolicy.compile(
+                Map.of(ComponentPolicy.ALL_COMPONENTS, List.of(Entitlement.UNCLASSIFIED)),
+                Map.of(Component.componentName(targetClass), Map.of(directory.toString(), List.of(Entitlement.READ_FILE)))
+        ));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFixtures.resetPolicy();
+        Files.deleteIfExists(directory.resolve("file"));
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Allow everything, replace the native methods of {@link NativeTargetImpl} and load it through a
+     * {@link BenchmarkFixtures.TestClassLoader}
+     */
+    static Class<? extends NativeTarget> intercept() throws ClassNotFoundException {
+        BenchmarkFixtures.allowAll();
+        var className = NativeTargetImpl.class.getName();
+        var bytecodes = BenchmarkFixtures.classBytes(NativeTargetImpl.class);
+        for (var nativeMethod : NATIVE_METHODS) {
+            bytecodes = new ClassRewriter(className, bytecodes).instrumentNativeMethod(nativeMethod.name(),
+                    nativeMethod.descriptor(), nativeMethod.symbol(), nativeMethod.flags());
+        }
+        return BenchmarkFixtures.load(className, bytecodes, NativeTarget.class);
+    }
+
+    @Benchmark
+    public int intercepted() {
+        return intercepted.getpid();
+    }
+
+    @Benchmark
+    public int downcall() throws Throwable {
+        return (int) GETPID$mh.invokeExact();
+    }
+
+    @Benchmark
+    public int downcallNotCritical() throws Throwable {
+        return (int) GETPID_NOT_CRITICAL$mh.invokeExact();
+    }
+
+    @Benchmark
+    public int interceptedErrno() {
+        return intercepted.close(-1) + Natives.errno();
+    }
+
+    @Benchmark
+    public int interceptedOpen() {
+        return intercepted.close(intercepted.open(file.address(), O_RDONLY, 0));
+    }
+
+    @Benchmark
+    public double interceptedDoubleSlots() {
+        return intercepted.ldexp(1.5, 4);
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch;
+
+/**
+ * What {@link NativeInterceptionBenchmarks} calls: {@link NativeTargetImpl}, whose native methods are replaced by FFM
+ * downcalls to the libc functions of the same name. This interface is shared with the benchmark class loader.
+ */
+public interface NativeTarget {
+    int getpid();
+
+    double ldexp(double x, int exponent);
+
+    long labs(long value);
+
+    String strerror(int errno);
+
+    void srand(int seed);
+
+    /**
+     * @return what {@code close} returns; on failure, {@link Natives#errno()} is the error
+     */
+    int close(int fd);
+
+    /**
+     * @return what {@code open} returns, once {@link EntitlementChecker#checkOpen} allowed it
+     */
+    int open(long pathAddress, int flags, int mode);
+}
@@ -0,0 +1,57 @@
+package org.elasticsearch;
+
+/**
+ * Native methods of various descriptors (int, long and double slots, void and reference results, static and instance),
+ * with no JNI implementation: they only work once intercepted (see {@link NativeInterceptionBenchmarks#intercept}).
+ */
+public class NativeTargetImpl implements NativeTarget {
+
+    private static native int getpid0();
+
+    private static native double ldexp0(double x, int exponent);
+
+    private static native long labs0(long value);
+
+    private static native String strerror0(int errno);
+
+    private native void srand0(int seed);
+
+    private static native int close0(int fd);
+
+    private static native int open0(long pathAddress, int flags, int mode);
+
+    @Override
+    public int getpid() {
+        return getpid0();
+    }
+
+    @Override
+    public double ldexp(double x, int exponent) {
+        return ldexp0(x, exponent);
+    }
+
+    @Override
+    public long labs(long value) {
+        return labs0(value);
+    }
+
+    @Override
+    public String strerror(int errno) {
+        return strerror0(errno);
+    }
+
+    @Override
+    public void srand(int seed) {
+        srand0(seed);
+    }
+
+    @Override
+    public int close(int fd) {
+        return close0(fd);
+    }
+
+    @Override
+    public int open(long pathAddress, int flags, int mode) {
+        return open0(pathAddress, flags, mode);
+    }
+}
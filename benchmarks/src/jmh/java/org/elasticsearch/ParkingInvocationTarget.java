@@ -0,0 +1,26 @@
+package org.elasticsearch;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The class {@link VirtualThreadScalabilityHarness} instruments: the original method parks, so a virtual thread calling
+ * it unmounts inside the check, and would be pinned (and reported by JFR) if the check path held a monitor. Keep it
+ * free of dependencies other than {@link InvocationTarget}.
+ */
+public class ParkingInvocationTarget implements InvocationTarget {
+
+    static final long PARK_NANOS = 10_000;
+
+    private long sum;
+
+    @Override
+    public void methodToInstrument(long value) {
+        sum += value;
+        LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    @Override
+    public long sum() {
+        return sum;
+    }
+}
@@ -0,0 +1,73 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PathTrie} lookups with more and more directories granted: the cost should depend on the depth of the path
+ * only. {@code granted} is a path under a granted directory (the whole path is walked), {@code notGranted} one diverging
+ * from the grants at the first element, {@code notNormalized} one with a {@code ..} element (the slow path).
+ * {@code grantedNative} looks up the same path as {@code granted}, as a C string (the bytes are matched in place). Run
+ * with {@code -prof gc} to check that lookups do not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathTrieBenchmarks {
+
+    @Param({"1", "100", "10000"})
+    public int grants;
+
+    private final Path granted = Path.of("/srv/elasticsearch/data/nodes/0/indices/abc/0/index/_0.cfs");
+    private final Path notGranted = Path.of("/home/user/some/other/place/file.txt");
+    private final Path notNormalized = Path.of("/srv/elasticsearch/data/nodes/0/../../../../etc/passwd");
+
+    private final MemorySegment grantedNative = Arena.global().allocateUtf8String(granted.toString());
+
+    private PathTrie trie;
+
+    @Setup
+    public void setup() {
+        long bits = Entitlement.READ_FILE.bit();
+        var directories = new HashMap<String, Long>();
+        var random = new Random(42);
+        for (int i = 0; i < grants - 1; ++i) {
+            directories.put("/srv/" + random.nextInt(1000) + "/dir" + i, bits);
+        }
+        directories.put("/srv/elasticsearch/data/nodes/0/indices/abc/0/index", bits);
+        trie = PathTrie.compile(directories);
+    }
+
+    @Benchmark
+    public long granted() {
+        return trie.granted(granted);
+    }
+
+    @Benchmark
+    public long grantedNative() {
+        return trie.granted(grantedNative.address());
+    }
+
+    @Benchmark
+    public long notGranted() {
+        return trie.granted(notGranted);
+    }
+
+    @Benchmark
+    public long notNormalized() {
+        return trie.granted(notNormalized);
+    }
+}
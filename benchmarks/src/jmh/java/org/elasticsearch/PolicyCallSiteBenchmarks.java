@@ -0,0 +1,76 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The inheritance check sites ({@link CheckerFactory.PolicyCallSite}) under a policy where the entitlement is
+ * {@code UNRESTRICTED} (granted to {@link ComponentPolicy#ALL_COMPONENTS}, the site is linked to a no-op) or only
+ * {@code GRANTED} to the calling component (the site runs the check). Each iteration starts by flipping from a
+ * restrictive policy to the one under test, so what is measured is the steady state after a relink.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PolicyCallSiteBenchmarks {
+
+    public enum Policy {
+        UNRESTRICTED(ComponentPolicy.compile(Map.of(ComponentPolicy.ALL_COMPONENTS, List.of(Entitlement.READ_FILE)))),
+        GRANTED(ComponentPolicy.compile(Map.of(
+                Component.componentName(PolicyCallSiteBenchmarks.class), List.of(Entitlement.READ_FILE))));
+
+        private final ComponentPolicy policy;
+
+        Policy(ComponentPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    @Param
+    public Policy policy;
+
+    private InvocationTarget instrumented;
+    private InvocationTarget baseline;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        instrumented = InstrumentedInvocationBenchmarks.instrument(InvocationTargetImpl.class,
+                InstrumentedInvocationBenchmarks.Variant.INHERITANCE).getConstructor().newInstance();
+        baseline = new InvocationTargetImpl();
+    }
+
+    @Setup(Level.Iteration)
+    public void flipPolicy() {
+        BenchmarkFixtures.resetPolicy();
+        EntitlementCheckerImpl.setPolicy(policy.policy);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.resetPolicy();
+    }
+
+    @Benchmark
+    public long instrumented() {
+        instrumented.methodToInstrument(1);
+        return instrumented.sum();
+    }
+
+    @Benchmark
+    public long baseline() {
+        baseline.methodToInstrument(1);
+        return baseline.sum();
+    }
+}
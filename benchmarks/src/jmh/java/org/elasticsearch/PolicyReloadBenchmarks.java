@@ -0,0 +1,84 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reloading the policy file, and of the checks running while it is being reloaded.
+ * <p>
+ * {@code reload} reads, parses and compiles a policy of {@code components} components, and publishes it. The
+ * {@code steady} group runs checks alone; in the {@code duringReload} group the same checks run while another thread
+ * reloads the policy back to back, the worst case for the checkers (every reload drops the cached decisions).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PolicyReloadBenchmarks {
+
+    @Param({"10", "1000"})
+    public int components;
+
+    private Path policyFile;
+    private PolicyFileWatchingService service;
+    private final EntitlementChecker checker = new EntitlementCheckerImpl();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        policyFile = Files.createTempFile("policy", ".properties");
+        var policy = new StringBuilder();
+        policy.append(Component.componentName(PolicyReloadBenchmarks.class)).append(" = READ_FILE\n");
+        for (int i = 1; i < components; ++i) {
+            policy.append("org.example.plugin").append(i).append(" = READ_FILE, WRITE_FILE\n");
+        }
+        Files.writeString(policyFile, policy);
+        service = new PolicyFileWatchingService(policyFile, EntitlementCheckerImpl::setPolicy);
+        EntitlementCheckerImpl.setPolicy(service.load());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFixtures.resetPolicy();
+        Files.deleteIfExists(policyFile);
+    }
+
+    @Benchmark
+    public void reload() throws IOException {
+        EntitlementCheckerImpl.setPolicy(service.load());
+    }
+
+    @Benchmark
+    @Group("steady")
+    @GroupThreads(3)
+    public void check() {
+        checker.check(PolicyReloadBenchmarks.class, Entitlement.READ_FILE);
+    }
+
+    @Benchmark
+    @Group("duringReload")
+    @GroupThreads(3)
+    public void checkDuringReload() {
+        checker.check(PolicyReloadBenchmarks.class, Entitlement.READ_FILE);
+    }
+
+    @Benchmark
+    @Group("duringReload")
+    @GroupThreads(1)
+    public void reloadDuringChecks() throws IOException {
+        EntitlementCheckerImpl.setPolicy(service.load());
+    }
+}
@@ -0,0 +1,94 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An allowed check running the original method, with the three ways of detecting nested checks, called at different
+ * stack depths (Elasticsearch stacks are deep):
+ * <ul>
+ *     <li>{@code stackWalk}: {@link EntitlementCheckerImpl#checkWalkingStack}, walks the whole stack</li>
+ *     <li>{@code scopedValue}: what {@code deepCheckPrologue} emits, binds {@link EntitlementChecker#ALREADY_CHECKED}
+ *     around the original method</li>
+ *     <li>{@code depthMarker}: {@link EntitlementCheckerImpl#check(Class, Entitlement, Runnable)}, a per-thread
+ *     counter</li>
+ * </ul>
+ * The stack is built once per invocation, and the check called {@link #CHECKS_PER_INVOCATION} times at the bottom of
+ * it, so the recursion is amortized away and the scores are the cost of one check (plus the original method, see
+ * {@code baseline}) at that depth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReentrancyDetectionBenchmarks {
+
+    static final int CHECKS_PER_INVOCATION = 1000;
+
+    @Param({"10", "100", "500"})
+    public int stackDepth;
+
+    private final EntitlementCheckerImpl checker = new EntitlementCheckerImpl();
+    private int calls;
+    private final Runnable originalMethod = () -> calls++;
+
+    @Setup
+    public void setup() {
+        BenchmarkFixtures.allowAll();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.resetPolicy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHECKS_PER_INVOCATION)
+    public int stackWalk() {
+        return atDepth(stackDepth, () -> checker.checkWalkingStack(ReentrancyDetectionBenchmarks.class, Entitlement.READ_FILE, originalMethod));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHECKS_PER_INVOCATION)
+    public int scopedValue() {
+        return atDepth(stackDepth, () -> {
+            if (EntitlementChecker.isCurrentCallAlreadyChecked() == false) {
+                checker.check(ReentrancyDetectionBenchmarks.class, Entitlement.READ_FILE);
+                ScopedValue.runWhere(EntitlementChecker.ALREADY_CHECKED, Boolean.TRUE, originalMethod);
+            } else {
+                originalMethod.run();
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHECKS_PER_INVOCATION)
+    public int depthMarker() {
+        return atDepth(stackDepth, () -> checker.check(ReentrancyDetectionBenchmarks.class, Entitlement.READ_FILE, originalMethod));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHECKS_PER_INVOCATION)
+    public int baseline() {
+        return atDepth(stackDepth, originalMethod);
+    }
+
+    private int atDepth(int depth, Runnable check) {
+        if (depth == 0) {
+            for (int i = 0; i < CHECKS_PER_INVOCATION; ++i) {
+                check.run();
+            }
+            return calls;
+        }
+        return atDepth(depth - 1, check);
+    }
+}
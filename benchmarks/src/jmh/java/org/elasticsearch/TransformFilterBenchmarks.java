@@ -0,0 +1,59 @@
+package org.elasticsearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.file.spi.FileSystemProvider;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.BenchmarkFixtures.classBytes;
+
+/**
+ * Per-class cost of {@link EntitlementCheckTransformer#transform} for classes that are not in the plan, which is what
+ * we pay for (almost) every class loaded at startup.
+ */
+@State(Scope.Benchmark)
+public class TransformFilterBenchmarks {
+
+    @Param({"java.util.ArrayList", "java.util.concurrent.ConcurrentHashMap", "java.lang.Character"})
+    public String className;
+
+    private String internalClassName;
+    private byte[] originalBytecodes;
+    private EntitlementCheckTransformer transformer;
+
+    @Setup
+    public void setup() throws ClassNotFoundException {
+        CheckerFactory.setMethodsToInterfaces(Map.of(
+                new MethodSignature("exists", "(Ljava/nio/file/Path;[Ljava/nio/file/LinkOption;)Z"),
+                List.of(FileSystemProvider.class)
+        ));
+
+        var clazz = Class.forName(className);
+        internalClassName = EntitlementCheckTransformer.getInternalClassName(className);
+        originalBytecodes = classBytes(clazz);
+        transformer = new EntitlementCheckTransformer(Set.of(
+                new InstrumentationAgent.MethodKey("java.lang.Shutdown", "exit", "(I)V"),
+                new InstrumentationAgent.MethodKey("java.lang.Shutdown", "halt", "(I)V")
+        ));
+    }
+
+    /**
+     * What the transformer used to do: parse and re-serialize every class, even if there is nothing to instrument.
+     */
+    @Benchmark
+    public byte[] withoutFilter() {
+        var classRewriter = new ClassRewriter(internalClassName, originalBytecodes);
+        return classRewriter.instrumentMethodNoChecks(MethodMatcher.EMPTY);
+    }
+
+    @Benchmark
+    public byte[] withFilter() {
+        return transformer.transform(null, internalClassName, null, null, originalBytecodes);
+    }
+}
@@ -0,0 +1,187 @@
+package org.elasticsearch;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress harness (not a JMH benchmark): starts a lot of virtual threads (a million by default), each calling an
+ * instrumented {@link ParkingInvocationTarget}, whose original method parks inside the check. The target is loaded
+ * as many distinct classes (a thousand by default, each through its own class loader), and the threads spread over
+ * them, so the first checks of each class (which populate the per-class {@link ClassValue}s) run concurrently too.
+ * Reports the throughput, the utilization of the carrier threads, the {@code jdk.VirtualThreadPinned} events recorded
+ * by JFR, and fails if anything got pinned: the check path must never pin a carrier.
+ * <p>
+ * On JDK 21, a virtual thread contending for a monitor blocks its carrier without any pinned event: the contended
+ * {@code jdk.JavaMonitorEnter} events of virtual threads are reported too (expected on the first checks of a class
+ * only, see {@link EntitlementCheckerImpl}), but do not fail the run.
+ * <p>
+ * Usage: {@code VirtualThreadScalabilityHarness [threads] [callsPerThread] [variant] [classes] [--pin]}, variant
+ * being one of {@link InstrumentedInvocationBenchmarks.Variant}. {@code --pin} calls the instrumented method holding a
+ * monitor, to check that pinning is detected. Needs {@code --enable-preview}.
+ */
+public class VirtualThreadScalabilityHarness {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String SUBMIT_FAILED_EVENT = "jdk.VirtualThreadSubmitFailed";
+    private static final String MONITOR_ENTER_EVENT = "jdk.JavaMonitorEnter";
+    private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+    public static void main(String[] args) throws Exception {
+        var positional = Arrays.stream(args).filter(a -> a.startsWith("--") == false).toList();
+        int threads = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 1_000_000;
+        int callsPerThread = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 10;
+        var variant = positional.size() > 2
+                ? InstrumentedInvocationBenchmarks.Variant.valueOf(positional.get(2))
+                : InstrumentedInvocationBenchmarks.Variant.DEEP_CHECK_PROLOGUE_WITH_STACK_FRAMES;
+        int classes = positional.size() > 3 ? Integer.parseInt(positional.get(3)) : 1000;
+        boolean pinInCaller = Arrays.asList(args).contains("--pin");
+
+        var constructors = new Constructor<?>[classes];
+        for (int i = 0; i < classes; ++i) {
+            // A new class loader each time: distinct classes, never checked before
+            constructors[i] = InstrumentedInvocationBenchmarks.instrument(ParkingInvocationTarget.class, variant)
+                    .getConstructor();
+        }
+        int parallelism = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+
+        var recordingFile = Files.createTempFile("virtual-thread-scalability", ".jfr");
+        var sum = new LongAdder();
+        var failures = new LongAdder();
+        long elapsedNanos;
+        long carrierCpuNanos;
+        try (var recording = new Recording()) {
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.enable(SUBMIT_FAILED_EVENT);
+            recording.enable(MONITOR_ENTER_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            var cpuBefore = carrierCpuNanos();
+            long start = System.nanoTime();
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < threads; ++i) {
+                    var constructor = constructors[i % classes];
+                    executor.execute(() -> {
+                        try {
+                            var target = (InvocationTarget) constructor.newInstance();
+                            if (pinInCaller) {
+                                synchronized (target) {
+                                    invoke(target, callsPerThread);
+                                }
+                            } else {
+                                invoke(target, callsPerThread);
+                            }
+                            sum.add(target.sum());
+                        } catch (Throwable t) {
+                            failures.increment();
+                        }
+                    });
+                }
+            }
+            elapsedNanos = System.nanoTime() - start;
+            carrierCpuNanos = 0;
+            for (var carrier : carrierCpuNanos().entrySet()) {
+                carrierCpuNanos += carrier.getValue() - cpuBefore.getOrDefault(carrier.getKey(), 0L);
+            }
+
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        long calls = (long) threads * callsPerThread;
+        System.out.printf(Locale.ROOT, "%s: %d virtual threads x %d calls on %d classes in %d ms%n", variant, threads,
+                callsPerThread, classes, elapsedNanos / 1_000_000);
+        System.out.printf(Locale.ROOT, "throughput: %.0f calls/s%n", calls * 1e9 / elapsedNanos);
+        System.out.printf(Locale.ROOT, "carrier utilization: %.1f%% of %d carriers%n",
+                100.0 * carrierCpuNanos / ((double) elapsedNanos * parallelism), parallelism);
+
+        var pinnedAt = new TreeMap<String, Integer>();
+        var blockedAt = new TreeMap<String, Integer>();
+        long submitFailed = 0;
+        long pinnedNanos = 0;
+        long blockedNanos = 0;
+        try {
+            for (var event : RecordingFile.readAllEvents(recordingFile)) {
+                var type = event.getEventType().getName();
+                if (type.equals(PINNED_EVENT)) {
+                    pinnedAt.merge(parkedAt(event), 1, Integer::sum);
+                    pinnedNanos += event.getDuration().toNanos();
+                } else if (type.equals(SUBMIT_FAILED_EVENT)) {
+                    ++submitFailed;
+                } else if (type.equals(MONITOR_ENTER_EVENT) && event.getThread() != null && event.getThread().isVirtual()) {
+                    blockedAt.merge(parkedAt(event), 1, Integer::sum);
+                    blockedNanos += event.getDuration().toNanos();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(recordingFile);
+        }
+        int pinned = pinnedAt.values().stream().mapToInt(Integer::intValue).sum();
+        System.out.printf(Locale.ROOT, "pinned: %d events, %d ms; submit failed: %d%n", pinned,
+                pinnedNanos / 1_000_000, submitFailed);
+        pinnedAt.forEach((frame, count) -> System.out.printf(Locale.ROOT, "    %6d parked at %s%n", count, frame));
+        System.out.printf(Locale.ROOT, "blocked on a contended monitor (carrier blocked too): %d events, %d ms%n",
+                blockedAt.values().stream().mapToInt(Integer::intValue).sum(), blockedNanos / 1_000_000);
+        blockedAt.forEach((frame, count) -> System.out.printf(Locale.ROOT, "    %6d blocked at %s%n", count, frame));
+
+        if (failures.sum() > 0 || sum.sum() != calls) {
+            System.out.printf(Locale.ROOT, "FAILED: %d threads failed, sum %d, expected %d%n", failures.sum(),
+                    sum.sum(), calls);
+            System.exit(2);
+        }
+        if (pinInCaller == false && pinned > 0) {
+            System.out.println("FAILED: virtual threads were pinned");
+            System.exit(1);
+        }
+    }
+
+    private static void invoke(InvocationTarget target, int calls) {
+        for (int i = 0; i < calls; ++i) {
+            target.methodToInstrument(1);
+        }
+    }
+
+    /**
+     * CPU time of the carrier threads of the default virtual thread scheduler, by thread id
+     */
+    private static Map<Long, Long> carrierCpuNanos() {
+        var threadMXBean = ManagementFactory.getThreadMXBean();
+        var cpuNanos = new HashMap<Long, Long>();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getClass().getName().equals(CARRIER_THREAD_CLASS)) {
+                cpuNanos.put(thread.threadId(), Math.max(0, threadMXBean.getThreadCpuTime(thread.threadId())));
+            }
+        }
+        return cpuNanos;
+    }
+
+    /**
+     * @return the first frame outside the JDK, i.e. the code that parked while pinned (or blocked on a monitor)
+     */
+    private static String parkedAt(RecordedEvent event) {
+        var stackTrace = event.getStackTrace();
+        if (stackTrace == null) {
+            return "<no stack trace>";
+        }
+        return stackTrace.getFrames().stream()
+                .filter(RecordedFrame::isJavaFrame)
+                .map(f -> f.getMethod().getType().getName() + "." + f.getMethod().getName())
+                .filter(m -> m.startsWith("java.") == false && m.startsWith("jdk.") == false)
+                .findFirst()
+                .orElse("<jdk>");
+    }
+}
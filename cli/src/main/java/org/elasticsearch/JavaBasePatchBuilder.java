@@ -0,0 +1,218 @@
+package org.elasticsearch;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+
+/**
+ * Instruments, ahead of time, the classes of the running JDK's java.base that are in the instrumentation plan
+ * ({@link InstrumentationAgent#methodsToTransform()} and {@link InstrumentationAgent#methodsToInterfaces()}), and writes
+ * them to a jar to be used with {@code --patch-module=java.base=<agent jar>:<patch jar>}.
+ * <p>
+ * The agent recognizes the patched classes (via {@link JavaBasePatch}) and leaves them alone, so we do not pay for their
+ * transformation at startup. It also makes the rename-to-{@code original_} strategy usable for classes that are loaded
+ * before premain, which cannot be retransformed.
+ * <p>
+ * Differently from the runtime transformer, here we see the whole java.base hierarchy, so we know exactly which
+ * classes are subtypes of the types in {@link InstrumentationAgent#methodsToInterfaces()}.
+ * <p>
+ * With {@code -Dorg.elasticsearch.instrumentation.natives=true}, the {@link InstrumentationAgent#nativeMethodsToTransform()}
+ * of java.base are replaced with their stubs too (see {@link ClassRewriter#instrumentNativeMethod}). This is the only
+ * way to intercept them: a stub drops the {@code native} modifier, which retransformation rejects, and their classes
+ * are loaded before premain. The agent must run with the same property.
+ * <p>
+ * Usage: {@code JavaBasePatchBuilder <output jar>}
+ */
+public class JavaBasePatchBuilder {
+
+    private static final String MODULE = "java.base";
+
+    record ClassHeader(String superName, String[] interfaces) {}
+
+    public static void main(String[] args) throws IOException {
+        var output = Path.of(args.length > 0 ? args[0] : "java-base-patch.jar");
+
+        var methodsToTransform = InstrumentationAgent.methodsToTransform();
+        var methodsToInterfaces = InstrumentationAgent.methodsToInterfaces();
+        CheckerFactory.setMethodsToInterfaces(methodsToInterfaces);
+        CheckerFactory.setEntitlements(InstrumentationAgent.entitlements(),
+                InstrumentationAgent.inheritanceEntitlements());
+
+        long startTime = System.nanoTime();
+        var classes = readModuleClasses();
+        System.out.println("Read " + classes.size() + " classes from " + MODULE + " in " + elapsedMillis(startTime) + "ms");
+
+        var targetClasses = EntitlementCheckTransformer.compileTargets(methodsToTransform);
+        var inheritanceTypes = methodsToInterfaces.values().stream()
+                .flatMap(List::stream)
+                .map(c -> EntitlementCheckTransformer.getInternalClassName(c.getName()))
+                .collect(Collectors.toSet());
+        var subtypes = findSubtypes(classes, inheritanceTypes);
+
+        var classesToPatch = new HashSet<String>();
+        for (var className : subtypes) {
+            if (declaresAnyMethod(classes.get(className), CheckerFactory.inheritanceMethods)) {
+                classesToPatch.add(className);
+            }
+        }
+        for (var className : targetClasses.keySet()) {
+            if (classes.containsKey(className)) {
+                classesToPatch.add(className);
+            } else {
+                System.out.println("WARNING: " + className + " is not in " + MODULE + ", skipping");
+            }
+        }
+
+        // ClassRewriter (ASM) is CPU bound and independent per class: use all the cores
+        startTime = System.nanoTime();
+        var patchedClasses = classesToPatch.parallelStream()
+                .collect(Collectors.toConcurrentMap(
+                        className -> className,
+                        className -> new ClassRewriter(className, classes.get(className)).instrumentMethodNoChecks(
+                                targetClasses.getOrDefault(className, MethodMatcher.EMPTY),
+                                subtypes.contains(className)
+                        )
+                ));
+        if (Boolean.getBoolean(InstrumentationAgent.NATIVES_PROPERTY)) {
+            for (var nativeMethod : InstrumentationAgent.nativeMethodsToTransform()) {
+                var className = EntitlementCheckTransformer.getInternalClassName(nativeMethod.className());
+                var classBytes = patchedClasses.getOrDefault(className, classes.get(className));
+                if (classBytes == null) {
+                    System.out.println("WARNING: " + className + " is not in " + MODULE + ", skipping");
+                    continue;
+                }
+                patchedClasses.put(className, new ClassRewriter(className, classBytes).instrumentNativeMethod(
+                        nativeMethod.methodName(), nativeMethod.methodDescriptor(), nativeMethod.symbol(),
+                        nativeMethod.flags()
+                ));
+            }
+        }
+        System.out.println("Instrumented " + patchedClasses.size() + " classes in " + elapsedMillis(startTime) + "ms");
+
+        writePatch(output, new TreeMap<>(patchedClasses), JavaBasePatch.currentPlanHash());
+        System.out.println("Patch written to " + output.toAbsolutePath());
+    }
+
+    private static Map<String, byte[]> readModuleClasses() throws IOException {
+        var fs = FileSystems.getFileSystem(URI.create("jrt:/"));
+        var moduleRoot = fs.getPath("modules", MODULE);
+        try (var stream = Files.walk(moduleRoot)) {
+            return stream
+                    .filter(x -> x.toString().endsWith(".class"))
+                    .filter(x -> x.getFileName().toString().equals("module-info.class") == false)
+                    .parallel()
+                    .collect(Collectors.toConcurrentMap(
+                            x -> {
+                                var relative = moduleRoot.relativize(x).toString();
+                                return relative.substring(0, relative.length() - ".class".length());
+                            },
+                            x -> {
+                                try {
+                                    return Files.readAllBytes(x);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }
+                    ));
+        }
+    }
+
+    /**
+     * @return all the classes in {@code classes} that extend or implement (directly or indirectly) one of {@code types}
+     */
+    static Set<String> findSubtypes(Map<String, byte[]> classes, Set<String> types) {
+        var headers = new HashMap<String, ClassHeader>();
+        for (var e : classes.entrySet()) {
+            // The ClassReader constructor only parses the constant pool, the header is read lazily
+            var reader = new ClassReader(e.getValue());
+            headers.put(e.getKey(), new ClassHeader(reader.getSuperName(), reader.getInterfaces()));
+        }
+
+        var known = new HashMap<String, Boolean>();
+        for (var type : types) {
+            known.put(type, Boolean.TRUE);
+        }
+        var subtypes = new ArrayList<String>();
+        for (var className : classes.keySet()) {
+            if (types.contains(className) == false && isSubtype(className, headers, known)) {
+                subtypes.add(className);
+            }
+        }
+        return Set.copyOf(subtypes);
+    }
+
+    private static boolean declaresAnyMethod(byte[] classBytes, MethodMatcher methods) {
+        var found = new boolean[1];
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                found[0] |= methods.matches(name, descriptor);
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return found[0];
+    }
+
+    private static boolean isSubtype(String className, Map<String, ClassHeader> headers, Map<String, Boolean> known) {
+        var result = known.get(className);
+        if (result != null) {
+            return result;
+        }
+        var header = headers.get(className);
+        boolean subtype = false;
+        if (header != null) {
+            subtype = header.superName() != null && isSubtype(header.superName(), headers, known);
+            for (int i = 0; subtype == false && i < header.interfaces().length; ++i) {
+                subtype = isSubtype(header.interfaces()[i], headers, known);
+            }
+        }
+        known.put(className, subtype);
+        return subtype;
+    }
+
+    private static void writePatch(Path output, Map<String, byte[]> patchedClasses, String planHash) throws IOException {
+        var parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (var jar = new JarOutputStream(Files.newOutputStream(output))) {
+            for (var e : patchedClasses.entrySet()) {
+                jar.putNextEntry(new JarEntry(e.getKey() + ".class"));
+                jar.write(e.getValue());
+                jar.closeEntry();
+            }
+
+            jar.putNextEntry(new JarEntry(JavaBasePatch.RESOURCE_NAME));
+            var index = new StringBuilder(planHash).append('\n');
+            for (var className : patchedClasses.keySet()) {
+                index.append(className).append('\n');
+            }
+            jar.write(index.toString().getBytes(StandardCharsets.UTF_8));
+            jar.closeEntry();
+        }
+    }
+
+    private static long elapsedMillis(long startTime) {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+}